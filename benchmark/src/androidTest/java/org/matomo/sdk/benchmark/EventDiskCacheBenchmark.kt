@@ -0,0 +1,63 @@
+package org.matomo.sdk.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.core.app.ApplicationProvider
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import org.matomo.sdk.Matomo
+import org.matomo.sdk.TrackerBuilder
+import org.matomo.sdk.dispatcher.EventDiskCache
+
+/**
+ * The offline path: the queue is written to disk when the device goes offline and read back once it is online again.
+ */
+@RunWith(Parameterized::class)
+class EventDiskCacheBenchmark(private val eventCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private lateinit var diskCache: EventDiskCache
+
+    @Before
+    fun setup() {
+        val tracker = TrackerBuilder(Fixtures.API_URL, 1, "benchmark-$eventCount")
+            .build(Matomo.getInstance(ApplicationProvider.getApplicationContext()))
+        diskCache = EventDiskCache(tracker)
+        diskCache.uncache()
+    }
+
+    @After
+    fun tearDown() {
+        diskCache.uncache()
+    }
+
+    @Test
+    fun roundTrip() {
+        val events = Fixtures.events(eventCount)
+        benchmarkRule.measureRepeated {
+            diskCache.cache(events)
+            diskCache.uncache()
+        }
+    }
+
+    @Test
+    fun cache() {
+        val events = Fixtures.events(eventCount)
+        benchmarkRule.measureRepeated {
+            diskCache.cache(events)
+            runWithTimingDisabled { diskCache.uncache() }
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "events={0}")
+        fun eventCounts() = listOf(20, 500)
+    }
+}
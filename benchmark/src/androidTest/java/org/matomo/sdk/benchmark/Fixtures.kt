@@ -0,0 +1,29 @@
+package org.matomo.sdk.benchmark
+
+import org.matomo.sdk.QueryParams
+import org.matomo.sdk.TrackMe
+import org.matomo.sdk.dispatcher.Event
+
+internal object Fixtures {
+    const val API_URL = "https://example.com/matomo.php"
+
+    /**
+     * A screen view with the parameters a tracker adds to every event.
+     */
+    fun screenView(index: Int = 0): TrackMe = TrackMe()
+        .set(QueryParams.SITE_ID, 1)
+        .set(QueryParams.RECORD, 1)
+        .set(QueryParams.API_VERSION, 1)
+        .set(QueryParams.URL_PATH, "https://org.example.app/main/settings/$index")
+        .set(QueryParams.ACTION_NAME, "Main / Settings / Item $index")
+        .set(QueryParams.VISITOR_ID, "0123456789abcdef")
+        .set(QueryParams.USER_ID, "user@example.com")
+        .set(QueryParams.RANDOM_NUMBER, 123456)
+        .set(QueryParams.SCREEN_RESOLUTION, "1080x2400")
+        .set(QueryParams.USER_AGENT, "Dalvik/2.1.0 (Linux; U; Android 14; Pixel 8 Build/UQ1A.240105.004)")
+        .set(QueryParams.LANGUAGE, "en-us")
+        .set(QueryParams.DATETIME_OF_REQUEST, "2024-01-01 12:00:00")
+        .set(QueryParams.SEND_IMAGE, 0)
+
+    fun events(count: Int): List<Event> = List(count) { Event(screenView(it).toMap()) }
+}
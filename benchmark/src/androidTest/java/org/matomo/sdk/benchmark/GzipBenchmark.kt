@@ -0,0 +1,35 @@
+package org.matomo.sdk.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import org.matomo.sdk.dispatcher.DefaultPacketSender
+import org.matomo.sdk.dispatcher.PacketFactory
+
+/**
+ * Compression of bulk POST bodies, see [DefaultPacketSender.setGzipData].
+ */
+@RunWith(Parameterized::class)
+class GzipBenchmark(private val eventCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    @Test
+    fun gzip() {
+        val packet = PacketFactory(Fixtures.API_URL).buildPackets(Fixtures.events(eventCount)).first()
+        val body = packet.postData!!.toString().toByteArray(Charsets.UTF_8)
+        benchmarkRule.measureRepeated {
+            DefaultPacketSender.gzip(body)
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "events={0}")
+        fun eventCounts() = listOf(2, PacketFactory.PAGE_SIZE)
+    }
+}
@@ -0,0 +1,44 @@
+package org.matomo.sdk.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import org.matomo.sdk.dispatcher.Event
+import org.matomo.sdk.dispatcher.PacketFactory
+
+@RunWith(Parameterized::class)
+class PacketFactoryBenchmark(private val batchSize: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val factory = PacketFactory(Fixtures.API_URL)
+
+    @Test
+    fun buildPackets() {
+        var events: List<Event> = emptyList()
+        benchmarkRule.measureRepeated {
+            // Packing assigns batch ids, fresh events are needed to measure the first attempt rather than a retry.
+            runWithTimingDisabled { events = Fixtures.events(batchSize) }
+            factory.buildPackets(events)
+        }
+    }
+
+    @Test
+    fun buildPackets_retry() {
+        val events = Fixtures.events(batchSize)
+        factory.buildPackets(events)
+        benchmarkRule.measureRepeated {
+            factory.buildPackets(events)
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "batchSize={0}")
+        fun batchSizes() = listOf(1, PacketFactory.PAGE_SIZE, 100, 500)
+    }
+}
@@ -0,0 +1,51 @@
+package org.matomo.sdk.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.matomo.sdk.TrackMe
+import org.matomo.sdk.dispatcher.Event
+
+/**
+ * What every [org.matomo.sdk.Tracker.track] call goes through before the event is queued.
+ */
+@RunWith(AndroidJUnit4::class)
+class TrackMeBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    @Test
+    fun set() {
+        benchmarkRule.measureRepeated {
+            Fixtures.screenView()
+        }
+    }
+
+    @Test
+    fun copy() {
+        val trackMe = Fixtures.screenView()
+        benchmarkRule.measureRepeated {
+            TrackMe(trackMe)
+        }
+    }
+
+    @Test
+    fun toMap() {
+        val trackMe = Fixtures.screenView()
+        benchmarkRule.measureRepeated {
+            trackMe.toMap()
+        }
+    }
+
+    @Test
+    fun encodeEvent() {
+        val map = Fixtures.screenView().toMap()
+        benchmarkRule.measureRepeated {
+            Event(map)
+        }
+    }
+}
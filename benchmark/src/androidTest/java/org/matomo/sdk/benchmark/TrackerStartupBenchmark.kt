@@ -0,0 +1,83 @@
+package org.matomo.sdk.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.core.app.ApplicationProvider
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import org.matomo.sdk.Matomo
+import org.matomo.sdk.TrackMe
+import org.matomo.sdk.Tracker
+import org.matomo.sdk.TrackerBuilder
+import org.matomo.sdk.dispatcher.DefaultDispatcher
+import org.matomo.sdk.dispatcher.DefaultPacketSender
+import org.matomo.sdk.dispatcher.DispatcherFactory
+import org.matomo.sdk.dispatcher.EventCache
+import org.matomo.sdk.dispatcher.EventDiskCache
+import org.matomo.sdk.dispatcher.PacketFactory
+import org.matomo.sdk.tools.Connectivity
+import org.matomo.sdk.tools.PowerState
+
+/**
+ * What creating a tracker in `Application.onCreate` costs, with and without staged init.
+ *
+ * The dispatcher uses polling connectivity, because the system caps the number of network callbacks per app,
+ * which thousands of iterations would exceed.
+ */
+@RunWith(Parameterized::class)
+class TrackerStartupBenchmark(private val stagedInit: Boolean) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val matomo = Matomo.getInstance(ApplicationProvider.getApplicationContext())
+    private lateinit var previousFactory: DispatcherFactory
+
+    @Before
+    fun setup() {
+        previousFactory = matomo.dispatcherFactory
+        matomo.dispatcherFactory = object : DispatcherFactory {
+            override fun build(tracker: Tracker) = DefaultDispatcher(
+                EventCache(EventDiskCache(tracker)),
+                Connectivity(matomo.context),
+                PacketFactory(tracker.apiUrl),
+                DefaultPacketSender(),
+                PowerState(matomo.context)
+            )
+        }
+    }
+
+    @After
+    fun tearDown() {
+        matomo.dispatcherFactory = previousFactory
+    }
+
+    private fun builder() = TrackerBuilder(Fixtures.API_URL, 1, "benchmark-startup").setStagedInit(stagedInit)
+
+    @Test
+    fun build() {
+        benchmarkRule.measureRepeated {
+            builder().build(matomo)
+        }
+    }
+
+    @Test
+    fun buildAndTrack() {
+        benchmarkRule.measureRepeated {
+            val tracker = builder().build(matomo)
+            // Never dispatched, the events are dropped with the tracker
+            tracker.setDispatchInterval(-1)
+            tracker.track(TrackMe())
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "stagedInit={0}")
+        fun modes() = listOf(false, true)
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recognizes events that repeat an event tracked shortly before, e.g. a screen view tracked again by a re-attached fragment.
+ * Events are compared by their parameters, without the ones that differ on every call, see {@link #IGNORED}.
+ * A fingerprint of the parameters finds the candidate, the parameters themselves confirm the match.
+ * Not thread-safe, the tracker calls it under its tracking lock.
+ */
+class DuplicateFilter {
+    static final int CAPACITY = 64;
+    // Added to every event, two identical calls never have the same values
+    private static final String[] IGNORED = {
+            QueryParams.RANDOM_NUMBER.toString(),
+            QueryParams.DATETIME_OF_REQUEST.toString(),
+    };
+    private final long mWindow;
+    // Fingerprint to the event last let through with it, least recently seen first
+    private final LinkedHashMap<Long, Seen> mSeen = new LinkedHashMap<Long, Seen>(CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Seen> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private static class Seen {
+        final Map<String, String> params;
+        final long time;
+
+        Seen(Map<String, String> params, long time) {
+            this.params = params;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param window in milliseconds, how long an event counts as a duplicate of the last one let through
+     */
+    DuplicateFilter(long window) {
+        mWindow = window;
+    }
+
+    long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @param now in milliseconds
+     * @return true if the same event was let through less than the window ago, otherwise it is remembered as let through
+     */
+    boolean isDuplicate(TrackMe trackMe, long now) {
+        Map<String, String> params = trackMe.toMap();
+        long fingerprint = fingerprint(params);
+        Seen seen = mSeen.get(fingerprint);
+        // Different events can share a fingerprint, the newer one takes over the entry then
+        if (seen != null && now - seen.time < mWindow && seen.params.equals(params)) return true;
+        mSeen.put(fingerprint, new Seen(params, now));
+        return false;
+    }
+
+    /**
+     * Independent of the parameter order, which a {@link java.util.HashMap} doesn't guarantee.
+     * Removes the {@link #IGNORED} parameters from the map.
+     */
+    static long fingerprint(Map<String, String> params) {
+        for (String key : IGNORED) params.remove(key);
+        long fingerprint = params.size();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            fingerprint += mix(param.getKey().hashCode() * 0x9E3779B97F4A7C15L + param.getValue().hashCode());
+        }
+        return fingerprint;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -3,6 +3,12 @@ package org.matomo.sdk
 import android.content.SharedPreferences
 import java.util.UUID
 
+/**
+ * Moves settings of old SDK versions from the base preferences into the tracker's preferences.
+ *
+ * The first port records [SETTINGS_VERSION] in the base preferences, later calls return right away.
+ * Legacy settings end up in the tracker that is created first.
+ */
 class LegacySettingsPorter(matomo: Matomo) {
     private val mLegacyPrefs: SharedPreferences
 
@@ -10,48 +16,51 @@ class LegacySettingsPorter(matomo: Matomo) {
         mLegacyPrefs = matomo.preferences
     }
 
+    /**
+     * True if an old SDK version recorded an opt-out that was not ported yet, for processes that leave porting to another one.
+     */
+    fun isLegacyOptOut(): Boolean =
+        mLegacyPrefs.getInt(PREF_KEY_SETTINGS_VERSION, 0) < SETTINGS_VERSION && mLegacyPrefs.getBoolean(LEGACY_PREF_OPT_OUT, false)
+
     fun port(tracker: Tracker) {
+        if (mLegacyPrefs.getInt(PREF_KEY_SETTINGS_VERSION, 0) >= SETTINGS_VERSION) return
+
+        // Collected first, so each file is written once
         val newSettings = tracker.preferences
+        var newEditor: SharedPreferences.Editor? = null
+        val legacyEditor = mLegacyPrefs.edit()
+        fun editNew(): SharedPreferences.Editor = newEditor ?: newSettings.edit().also { newEditor = it }
+
         if (mLegacyPrefs.getBoolean(LEGACY_PREF_OPT_OUT, false)) {
-            newSettings.edit()
-                .putBoolean(Tracker.PREF_KEY_TRACKER_OPTOUT, true)
-                .apply()
-            mLegacyPrefs.edit().remove(LEGACY_PREF_OPT_OUT).apply()
+            editNew().putBoolean(Tracker.PREF_KEY_TRACKER_OPTOUT, true)
+            legacyEditor.remove(LEGACY_PREF_OPT_OUT)
         }
         if (mLegacyPrefs.contains(LEGACY_PREF_USER_ID)) {
-            newSettings.edit()
-                .putString(Tracker.PREF_KEY_TRACKER_USERID, mLegacyPrefs.getString(LEGACY_PREF_USER_ID, UUID.randomUUID().toString()))
-                .apply()
-            mLegacyPrefs.edit().remove(LEGACY_PREF_USER_ID).apply()
+            editNew().putString(Tracker.PREF_KEY_TRACKER_USERID, mLegacyPrefs.getString(LEGACY_PREF_USER_ID, UUID.randomUUID().toString()))
+            legacyEditor.remove(LEGACY_PREF_USER_ID)
         }
         if (mLegacyPrefs.contains(LEGACY_PREF_FIRST_VISIT)) {
-            newSettings.edit().putLong(
-                Tracker.PREF_KEY_TRACKER_FIRSTVISIT,
-                mLegacyPrefs.getLong(LEGACY_PREF_FIRST_VISIT, -1L)
-            ).apply()
-            mLegacyPrefs.edit().remove(LEGACY_PREF_FIRST_VISIT).apply()
+            editNew().putLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, mLegacyPrefs.getLong(LEGACY_PREF_FIRST_VISIT, -1L))
+            legacyEditor.remove(LEGACY_PREF_FIRST_VISIT)
         }
         if (mLegacyPrefs.contains(LEGACY_PREF_VISITCOUNT)) {
-            newSettings.edit().putLong(
-                Tracker.PREF_KEY_TRACKER_VISITCOUNT,
-                mLegacyPrefs.getInt(LEGACY_PREF_VISITCOUNT, 0)
-                    .toLong()
-            ).apply()
-            mLegacyPrefs.edit().remove(LEGACY_PREF_VISITCOUNT).apply()
+            editNew().putLong(Tracker.PREF_KEY_TRACKER_VISITCOUNT, mLegacyPrefs.getInt(LEGACY_PREF_VISITCOUNT, 0).toLong())
+            legacyEditor.remove(LEGACY_PREF_VISITCOUNT)
         }
         if (mLegacyPrefs.contains(LEGACY_PREF_PREV_VISIT)) {
-            newSettings.edit().putLong(
-                Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT,
-                mLegacyPrefs.getLong(LEGACY_PREF_PREV_VISIT, -1)
-            ).apply()
-            mLegacyPrefs.edit().remove(LEGACY_PREF_PREV_VISIT).apply()
+            editNew().putLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, mLegacyPrefs.getLong(LEGACY_PREF_PREV_VISIT, -1))
+            legacyEditor.remove(LEGACY_PREF_PREV_VISIT)
         }
         for ((key) in mLegacyPrefs.all) {
             if (key.startsWith("downloaded:")) {
-                newSettings.edit().putBoolean(key, true).apply()
-                mLegacyPrefs.edit().remove(key).apply()
+                editNew().putBoolean(key, true)
+                legacyEditor.remove(key)
             }
         }
+
+        // The tracker's settings first, if the process dies in between the port simply runs again
+        newEditor?.apply()
+        legacyEditor.putInt(PREF_KEY_SETTINGS_VERSION, SETTINGS_VERSION).apply()
     }
 
     companion object {
@@ -60,5 +69,11 @@ class LegacySettingsPorter(matomo: Matomo) {
         const val LEGACY_PREF_FIRST_VISIT = "tracker.firstvisit"
         const val LEGACY_PREF_VISITCOUNT = "tracker.visitcount"
         const val LEGACY_PREF_PREV_VISIT = "tracker.previousvisit"
+        const val PREF_KEY_SETTINGS_VERSION = "matomo.settings.version"
+
+        /**
+         * Increase this when adding a migration.
+         */
+        const val SETTINGS_VERSION = 1
     }
 }
@@ -7,14 +7,18 @@
 package org.matomo.sdk
 
 import android.annotation.SuppressLint
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.SharedPreferences
+import android.content.res.Configuration
 import org.matomo.sdk.dispatcher.DefaultDispatcherFactory
 import org.matomo.sdk.dispatcher.DispatcherFactory
 import org.matomo.sdk.tools.BuildInfo
 import org.matomo.sdk.tools.Checksum
 import org.matomo.sdk.tools.DeviceHelper
+import org.matomo.sdk.tools.DeviceInfo
 import org.matomo.sdk.tools.PropertySource
+import org.matomo.sdk.tools.StateStore
 import timber.log.Timber
 
 class Matomo private constructor(context: Context) {
@@ -24,7 +28,7 @@ class Matomo private constructor(context: Context) {
     /**
      * Base preferences, tracker independent.
      */
-    val preferences: SharedPreferences = context.getSharedPreferences(BASE_PREFERENCE_FILE, Context.MODE_PRIVATE)
+    val preferences: SharedPreferences by lazy { StateStore.open(this.context, BASE_PREFERENCE_FILE) }
 
     /**
      * If you want to use your own [org.matomo.sdk.dispatcher.Dispatcher]
@@ -44,15 +48,37 @@ class Matomo private constructor(context: Context) {
                     Timber.e(e)
                     "org.matomo.sdk_" + tracker.name
                 }
-                newPrefs = context.getSharedPreferences(prefName, Context.MODE_PRIVATE)
+                newPrefs = StateStore.open(context, prefName)
                 preferenceMap[tracker] = newPrefs
             }
             return newPrefs
         }
     }
 
-    val deviceHelper: DeviceHelper
-        get() = DeviceHelper(context, PropertySource(), BuildInfo())
+    private val deviceInfoLazy = lazy { DeviceInfo(deviceHelper) }
+
+    val deviceHelper: DeviceHelper by lazy { DeviceHelper(this.context, PropertySource(), BuildInfo()) }
+
+    /**
+     * Cached device values, shared by all trackers of this process.
+     */
+    val deviceInfo: DeviceInfo by deviceInfoLazy
+
+    init {
+        this.context.registerComponentCallbacks(object : ComponentCallbacks2 {
+            override fun onConfigurationChanged(newConfig: Configuration) {
+                // Only invalidate what was computed, a change before the first event costs nothing
+                if (deviceInfoLazy.isInitialized()) deviceInfo.invalidate()
+            }
+
+            override fun onLowMemory() {}
+
+            override fun onTrimMemory(level: Int) {
+                // The app went to the background, where it may be killed without further notice
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) StateStore.flushAll()
+            }
+        })
+    }
 
     companion object {
         private const val LOGGER_PREFIX = "MATOMO:"
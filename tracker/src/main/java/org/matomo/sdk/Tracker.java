@@ -9,18 +9,34 @@ package org.matomo.sdk;
 
 import android.content.SharedPreferences;
 
+import org.matomo.sdk.dispatcher.DispatchListener;
 import org.matomo.sdk.dispatcher.DispatchMode;
+import org.matomo.sdk.dispatcher.DispatchPolicy;
 import org.matomo.sdk.dispatcher.Dispatcher;
+import org.matomo.sdk.dispatcher.DispatcherFactory;
+import org.matomo.sdk.dispatcher.DispatcherStats;
+import org.matomo.sdk.dispatcher.MultiProcessDispatcherFactory;
 import org.matomo.sdk.dispatcher.Packet;
-import org.matomo.sdk.tools.DeviceHelper;
+import org.matomo.sdk.tools.DeviceInfo;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import androidx.annotation.Nullable;
@@ -37,7 +53,6 @@ public class Tracker {
     private static final String TAG = Matomo.tag(Tracker.class);
 
     // Matomo default parameter values
-    private static final String DEFAULT_UNKNOWN_VALUE = "unknown";
     private static final String DEFAULT_TRUE_VALUE = "1";
     private static final String DEFAULT_RECORD_VALUE = DEFAULT_TRUE_VALUE;
     private static final String DEFAULT_API_VERSION_VALUE = "1";
@@ -53,6 +68,9 @@ public class Tracker {
     protected static final String PREF_KEY_OFFLINE_CACHE_SIZE = "tracker.cache.size";
     protected static final String PREF_KEY_DISPATCHER_MODE = "tracker.dispatcher.mode";
 
+    // Bounds the memory used while events are held back, e.g. if the initialization takes unexpectedly long
+    private static final int MAX_PRE_INIT_EVENTS = 1000;
+
     private static final Pattern VALID_URLS = Pattern.compile("^(\\w+)(?:://)(.+?)$");
 
     private final Matomo mMatomo;
@@ -60,20 +78,39 @@ public class Tracker {
     private final int mSiteId;
     private final String mDefaultApplicationBaseUrl;
     private final Object mTrackingLock = new Object();
-    private final Dispatcher mDispatcher;
+    // Assigned during initialization, which happens on a background thread with TrackerBuilder#setAsyncInit(boolean)
+    private volatile Dispatcher mDispatcher;
     private final String mName;
     private final Random mRandomAntiCachingValue = new Random(new Date().getTime());
     private final TrackMe mDefaultTrackMe = new TrackMe();
+    private final DeviceInfo mDeviceInfo;
+    private volatile int mDeviceInfoGeneration = -1;
+    private String mAppliedResolution;
+    private String mAppliedLanguage;
 
     private TrackMe mLastEvent;
     private long mSessionTimeout = 30 * 60 * 1000;
     private long mSessionStartTime = 0;
+    private DuplicateFilter mDuplicateFilter;
     private boolean mOptOut;
     private SharedPreferences mPreferences;
 
     private final LinkedHashSet<Callback> mTrackingCallbacks = new LinkedHashSet<>();
     private DispatchMode mDispatchMode;
 
+    private final CountDownLatch mInitLatch = new CountDownLatch(1);
+    private volatile boolean mInitialized = false;
+    private volatile Thread mInitThread;
+    // Calls other than track() stop waiting for the initialization after this, see TrackerBuilder#setInitTimeout(long)
+    private final long mInitDeadline;
+    // Events tracked and calls made before initialization finished or the device info was available, replayed in order afterwards
+    private final ConcurrentLinkedQueue<Runnable> mPreInitBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPreInitCount = new AtomicInteger();
+    private final AtomicBoolean mAwaitingDeviceInfo = new AtomicBoolean();
+    // Handed out by getDispatchPolicy() before initialization finished, applied to the dispatcher afterwards
+    private DispatchPolicy mPreInitPolicy;
+    private volatile TrackerGroup mGroup;
+
     protected Tracker(Matomo matomo, TrackerBuilder config) {
         mMatomo = matomo;
         mApiUrl = config.getApiUrl();
@@ -81,35 +118,170 @@ public class Tracker {
         mName = config.getTrackerName();
         mDefaultApplicationBaseUrl = config.getApplicationBaseUrl();
 
-        new LegacySettingsPorter(mMatomo).port(this);
+        mDeviceInfo = mMatomo.getDeviceInfo();
+
+        mInitDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getInitTimeout());
+        if (config.isAsyncInit()) {
+            // Not on the SDK's shared threads, where it could queue up behind dispatch cycles that block on the network
+            InitExecutor.INSTANCE.execute(() -> {
+                mInitThread = Thread.currentThread();
+                try {
+                    initialize(config);
+                } catch (RuntimeException e) {
+                    Timber.tag(TAG).e(e, "Initialization failed.");
+                }
+            });
+        } else {
+            initialize(config);
+        }
+    }
 
-        mOptOut = getPreferences().getBoolean(PREF_KEY_TRACKER_OPTOUT, false);
+    private void initialize(TrackerBuilder config) {
+        try {
+            // Settings are shared by all processes, they are ported once by the one that owns the network pipeline
+            DispatcherFactory factory = mMatomo.getDispatcherFactory();
+            boolean secondaryProcess = factory instanceof MultiProcessDispatcherFactory && !((MultiProcessDispatcherFactory) factory).isOwnerProcess();
+            LegacySettingsPorter porter = new LegacySettingsPorter(mMatomo);
+            if (!secondaryProcess) porter.port(this);
 
-        mDispatcher = mMatomo.getDispatcherFactory().build(this);
-        mDispatcher.setDispatchMode(getDispatchMode());
+            mOptOut = getPreferences().getBoolean(PREF_KEY_TRACKER_OPTOUT, false) || (secondaryProcess && porter.isLegacyOptOut());
+
+            mDispatcher = mMatomo.getDispatcherFactory().build(this);
+            mDispatcher.setDispatchMode(getDispatchMode());
+
+            String userId = getPreferences().getString(PREF_KEY_TRACKER_USERID, null);
+            mDefaultTrackMe.set(QueryParams.USER_ID, userId);
+
+            String visitorId = getPreferences().getString(PREF_KEY_TRACKER_VISITORID, null);
+            if (visitorId == null) {
+                visitorId = makeRandomVisitorId();
+                // Written right away, events sent with it must not be attributed to a new visitor after a restart
+                getPreferences().edit().putString(PREF_KEY_TRACKER_VISITORID, visitorId).commit();
+            }
+            mDefaultTrackMe.set(QueryParams.VISITOR_ID, visitorId);
 
-        String userId = getPreferences().getString(PREF_KEY_TRACKER_USERID, null);
-        mDefaultTrackMe.set(QueryParams.USER_ID, userId);
+            mDefaultTrackMe.set(QueryParams.SESSION_START, DEFAULT_TRUE_VALUE);
+            mDefaultTrackMe.set(QueryParams.URL_PATH, config.getApplicationBaseUrl());
 
-        String visitorId = getPreferences().getString(PREF_KEY_TRACKER_VISITORID, null);
-        if (visitorId == null) {
-            visitorId = makeRandomVisitorId();
-            getPreferences().edit().putString(PREF_KEY_TRACKER_VISITORID, visitorId).apply();
+            if (!config.isStagedInit()) mDeviceInfo.prefetch();
+        } finally {
+            mInitialized = true;
+            mInitThread = null;
+            mInitLatch.countDown();
         }
-        mDefaultTrackMe.set(QueryParams.VISITOR_ID, visitorId);
+        // For a group that was set up during the initialization
+        applyGroupSettings();
+        replayPreInit();
+    }
 
-        mDefaultTrackMe.set(QueryParams.SESSION_START, DEFAULT_TRUE_VALUE);
+    /**
+     * @return false while a tracker built with {@link TrackerBuilder#setAsyncInit(boolean)} is still initializing
+     */
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Everything but {@link #track(TrackMe)} waits for the initialization to finish, but only until the init timeout has passed.
+     * From then on, setters are buffered like events, see {@link #whenInitialized(Runnable)}, and getters return default values.
+     *
+     * @return false if the initialization did not finish in time
+     */
+    private boolean awaitInit() {
+        return awaitInit(mInitDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean awaitInit(long timeout, TimeUnit unit) {
+        if (mInitialized || Thread.currentThread() == mInitThread) return true;
+        try {
+            return mInitLatch.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Timber.tag(TAG).e(e);
+            Thread.currentThread().interrupt();
+            return mInitialized;
+        }
+    }
+
+    /**
+     * Runs the call once the tracker is initialized, after the events and calls that were buffered before it.
+     */
+    private void whenInitialized(Runnable call) {
+        if (awaitInit()) {
+            replayPreInit();
+            if (mPreInitBuffer.isEmpty()) {
+                call.run();
+                return;
+            }
+            // Events wait for the device info, the call goes after them
+        }
+        mPreInitBuffer.add(call);
+        // If the buffer was replayed in the meantime, the call might have been missed
+        replayPreInit();
+    }
 
-        DeviceHelper deviceHelper = mMatomo.getDeviceHelper();
+    private void replayPreInit() {
+        if (!mInitialized || mPreInitBuffer.isEmpty()) return;
+        if (!mDeviceInfo.isReady()) {
+            replayWhenDeviceInfoReady();
+            return;
+        }
+        synchronized (mTrackingLock) {
+            Runnable call;
+            int replayed = 0;
+            while ((call = mPreInitBuffer.poll()) != null) {
+                call.run();
+                replayed++;
+            }
+            if (replayed > 0) Timber.tag(TAG).d("Replayed %d events and calls made during initialization.", replayed);
+        }
+    }
 
-        String resolution = DEFAULT_UNKNOWN_VALUE;
-        int[] res = deviceHelper.getResolution();
-        if (res != null) resolution = String.format("%sx%s", res[0], res[1]);
-        mDefaultTrackMe.set(QueryParams.SCREEN_RESOLUTION, resolution);
+    /**
+     * Like {@link #replayPreInit()}, but events that wait for the device info are submitted after querying it on the calling thread.
+     */
+    private void replayPreInitNow() {
+        if (mInitialized && !mPreInitBuffer.isEmpty() && !mDeviceInfo.isReady()) mDeviceInfo.load();
+        replayPreInit();
+    }
 
-        mDefaultTrackMe.set(QueryParams.USER_AGENT, deviceHelper.getUserAgent());
-        mDefaultTrackMe.set(QueryParams.LANGUAGE, deviceHelper.getUserLanguage());
-        mDefaultTrackMe.set(QueryParams.URL_PATH, config.getApplicationBaseUrl());
+    private void replayWhenDeviceInfoReady() {
+        if (!mAwaitingDeviceInfo.compareAndSet(false, true)) return;
+        mDeviceInfo.whenReady(() -> {
+            mAwaitingDeviceInfo.set(false);
+            // Waits again if the configuration changed in the meantime
+            replayPreInit();
+        });
+    }
+
+    /**
+     * Copies the shared {@link DeviceInfo} into the default {@link TrackMe}, again after each configuration change.
+     * Never blocks, values that are not cached yet are copied by a later call. Values that were changed on the default TrackMe are kept.
+     */
+    private void applyDeviceInfo() {
+        final int generation = mDeviceInfo.getGeneration();
+        if (generation == mDeviceInfoGeneration) return;
+        synchronized (mDefaultTrackMe) {
+            if (generation == mDeviceInfoGeneration) return;
+            final String resolution = mDeviceInfo.getCachedResolution();
+            final String language = mDeviceInfo.getCachedLanguage();
+            final String userAgent = mDeviceInfo.getCachedUserAgent();
+            if (resolution == null || language == null || userAgent == null) return;
+            if (mDeviceInfoGeneration == -1) {
+                mDefaultTrackMe.trySet(QueryParams.SCREEN_RESOLUTION, resolution);
+                mDefaultTrackMe.trySet(QueryParams.LANGUAGE, language);
+                mDefaultTrackMe.trySet(QueryParams.USER_AGENT, userAgent);
+            } else {
+                if (Objects.equals(mAppliedResolution, mDefaultTrackMe.get(QueryParams.SCREEN_RESOLUTION))) {
+                    mDefaultTrackMe.set(QueryParams.SCREEN_RESOLUTION, resolution);
+                }
+                if (Objects.equals(mAppliedLanguage, mDefaultTrackMe.get(QueryParams.LANGUAGE))) {
+                    mDefaultTrackMe.set(QueryParams.LANGUAGE, language);
+                }
+            }
+            mAppliedResolution = resolution;
+            mAppliedLanguage = language;
+            mDeviceInfoGeneration = generation;
+        }
     }
 
     public void addTrackingCallback(Callback callback) {
@@ -120,8 +292,23 @@ public class Tracker {
         this.mTrackingCallbacks.remove(callback);
     }
 
+    /**
+     * Follows events from the dispatcher's queue to the server, e.g. for health monitoring.
+     */
+    public void addDispatchListener(DispatchListener listener) {
+        whenInitialized(() -> mDispatcher.addListener(listener));
+    }
+
+    public void removeDispatchListener(DispatchListener listener) {
+        whenInitialized(() -> mDispatcher.removeListener(listener));
+    }
+
     public void reset() {
-        dispatch();
+        whenInitialized(this::resetNow);
+    }
+
+    private void resetNow() {
+        if (!mOptOut) mDispatcher.forceDispatch();
 
         String visitorId = makeRandomVisitorId();
 
@@ -162,14 +349,17 @@ public class Tracker {
      * @param optOut true to disable reporting
      */
     public void setOptOut(boolean optOut) {
-        mOptOut = optOut;
-        getPreferences().edit().putBoolean(PREF_KEY_TRACKER_OPTOUT, optOut).apply();
+        whenInitialized(() -> {
+            mOptOut = optOut;
+            getPreferences().edit().putBoolean(PREF_KEY_TRACKER_OPTOUT, optOut).apply();
+        });
     }
 
     /**
      * @return true if Matomo is currently disabled
      */
     public boolean isOptOut() {
+        awaitInit();
         return mOptOut;
     }
 
@@ -196,6 +386,7 @@ public class Tracker {
      * @return the default TrackMe object
      */
     public TrackMe getDefaultTrackMe() {
+        if (awaitInit()) applyDeviceInfo();
         return mDefaultTrackMe;
     }
 
@@ -220,34 +411,101 @@ public class Tracker {
         return mSessionTimeout;
     }
 
+    /**
+     * Drops events that repeat an event tracked less than the window ago, e.g. a screen view tracked again by a re-attached fragment.
+     * Values that differ on every call, like the anti-caching random number, are ignored when comparing events.
+     * Default is 0, which disables the filter.
+     *
+     * @param milliseconds 0 to disable
+     */
+    public void setDuplicateWindow(long milliseconds) {
+        synchronized (mTrackingLock) {
+            mDuplicateFilter = milliseconds > 0 ? new DuplicateFilter(milliseconds) : null;
+        }
+    }
+
+    /**
+     * @return in milliseconds, 0 if disabled
+     */
+    public long getDuplicateWindow() {
+        synchronized (mTrackingLock) {
+            return mDuplicateFilter != null ? mDuplicateFilter.getWindow() : 0;
+        }
+    }
+
     /**
      * {@link Dispatcher#getConnectionTimeOut()}
      */
     public int getDispatchTimeout() {
-        return mDispatcher.getConnectionTimeOut();
+        return awaitInit() ? mDispatcher.getConnectionTimeOut() : Dispatcher.DEFAULT_CONNECTION_TIMEOUT;
     }
 
     /**
      * {@link Dispatcher#setConnectionTimeOut(int)}
      */
     public void setDispatchTimeout(int timeout) {
-        mDispatcher.setConnectionTimeOut(timeout);
+        whenInitialized(() -> {
+            mDispatcher.setConnectionTimeOut(timeout);
+            applyGroupSettings();
+        });
     }
 
     /**
-     * Processes all queued events in background thread
+     * Processes all queued events in background thread.
+     * For a tracker in a {@link TrackerGroup}, this includes the queues of the group's other servers.
      */
     public void dispatch() {
-        if (mOptOut) return;
-        mDispatcher.forceDispatch();
+        whenInitialized(() -> {
+            if (mOptOut) return;
+            mDispatcher.forceDispatch();
+            for (Dispatcher server : getServerDispatchers()) server.forceDispatch();
+        });
     }
 
     /**
-     * Process all queued events and block until processing is complete
+     * Process all queued events and block until processing is complete, this includes waiting for the initialization.
+     * For a tracker in a {@link TrackerGroup}, this includes the queues of the group's other servers.
      */
     public void dispatchBlocking() {
+        awaitInit(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        replayPreInitNow();
         if (mOptOut) return;
         mDispatcher.forceDispatchBlocking();
+        for (Dispatcher server : getServerDispatchers()) server.forceDispatchBlocking();
+    }
+
+    /**
+     * Process all queued events and block until processing is complete or the timeout has passed.
+     * Events that could not be sent in time are kept in the offline cache.
+     * The timeout includes waiting for the initialization, if it doesn't finish in time, nothing is dispatched.
+     * For a tracker in a {@link TrackerGroup}, this includes the queues of the group's other servers, which share the timeout.
+     *
+     * @param timeout in milliseconds
+     * @return true if all events were dispatched in time
+     */
+    public boolean dispatchBlocking(long timeout) {
+        final long start = System.nanoTime();
+        if (!awaitInit(timeout, TimeUnit.MILLISECONDS)) return false;
+        replayPreInitNow();
+        if (mOptOut) return true;
+        final List<Dispatcher> servers = getServerDispatchers();
+        // Started together, so waiting for one doesn't hold up the others
+        for (Dispatcher server : servers) server.forceDispatch();
+        boolean done = mDispatcher.forceDispatchBlocking(remaining(start, timeout));
+        for (Dispatcher server : servers) done &= server.forceDispatchBlocking(remaining(start, timeout));
+        return done;
+    }
+
+    private static long remaining(long start, long timeout) {
+        return Math.max(0, timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Counters and histograms of this tracker's dispatcher, e.g. to tune {@link #setDispatchInterval(long)}.
+     * Taking a snapshot is cheap enough to be done periodically in production.
+     */
+    public DispatcherStats getDispatcherStats() {
+        return awaitInit() ? mDispatcher.getStats() : new DispatcherStats();
     }
 
     /**
@@ -257,7 +515,10 @@ public class Tracker {
      * @param dispatchInterval in milliseconds
      */
     public Tracker setDispatchInterval(long dispatchInterval) {
-        mDispatcher.setDispatchInterval(dispatchInterval);
+        whenInitialized(() -> {
+            mDispatcher.setDispatchInterval(dispatchInterval);
+            applyGroupSettings();
+        });
         return this;
     }
 
@@ -268,7 +529,10 @@ public class Tracker {
      * @param dispatchGzipped boolean
      */
     public Tracker setDispatchGzipped(boolean dispatchGzipped) {
-        mDispatcher.setDispatchGzipped(dispatchGzipped);
+        whenInitialized(() -> {
+            mDispatcher.setDispatchGzipped(dispatchGzipped);
+            applyGroupSettings();
+        });
         return this;
     }
 
@@ -276,7 +540,7 @@ public class Tracker {
      * @return in milliseconds
      */
     public long getDispatchInterval() {
-        return mDispatcher.getDispatchInterval();
+        return awaitInit() ? mDispatcher.getDispatchInterval() : Dispatcher.DEFAULT_DISPATCH_INTERVAL;
     }
 
     /**
@@ -347,11 +611,48 @@ public class Tracker {
      * @see DispatchMode
      */
     public void setDispatchMode(DispatchMode mode) {
-        mDispatchMode = mode;
-        if (mode != DispatchMode.EXCEPTION) {
-            getPreferences().edit().putString(PREF_KEY_DISPATCHER_MODE, mode.toString()).apply();
+        whenInitialized(() -> {
+            mDispatchMode = mode;
+            if (mode != DispatchMode.EXCEPTION) {
+                getPreferences().edit().putString(PREF_KEY_DISPATCHER_MODE, mode.toString()).apply();
+            }
+            mDispatcher.setDispatchMode(mode);
+            applyGroupSettings();
+        });
+    }
+
+    /**
+     * Fine tuning for the network and battery aware dispatch modes.
+     * The policy is not persisted.
+     *
+     * @see DispatchPolicy
+     */
+    public DispatchPolicy getDispatchPolicy() {
+        if (awaitInit()) return mDispatcher.getDispatchPolicy();
+        synchronized (mTrackingLock) {
+            if (mInitialized) return mDispatcher.getDispatchPolicy();
+            if (mPreInitPolicy == null) {
+                // Changes made to it in the meantime are kept
+                final DispatchPolicy policy = new DispatchPolicy();
+                mPreInitPolicy = policy;
+                whenInitialized(() -> {
+                    mDispatcher.setDispatchPolicy(policy);
+                    applyGroupSettings();
+                });
+            }
+            return mPreInitPolicy;
         }
-        mDispatcher.setDispatchMode(mode);
+    }
+
+    /**
+     * @see DispatchPolicy
+     */
+    public Tracker setDispatchPolicy(DispatchPolicy policy) {
+        whenInitialized(() -> {
+            mDispatcher.setDispatchPolicy(policy);
+            applyGroupSettings();
+        });
+        return this;
     }
 
     /**
@@ -368,8 +669,10 @@ public class Tracker {
      * @param userId passing null will delete the current user-id.
      */
     public Tracker setUserId(String userId) {
-        mDefaultTrackMe.set(QueryParams.USER_ID, userId);
-        getPreferences().edit().putString(PREF_KEY_TRACKER_USERID, userId).apply();
+        whenInitialized(() -> {
+            mDefaultTrackMe.set(QueryParams.USER_ID, userId);
+            getPreferences().edit().putString(PREF_KEY_TRACKER_USERID, userId).apply();
+        });
         return this;
     }
 
@@ -377,6 +680,7 @@ public class Tracker {
      * @return a user-id string, either the one you set or the one Matomo generated for you.
      */
     public String getUserId() {
+        awaitInit();
         return mDefaultTrackMe.get(QueryParams.USER_ID);
     }
 
@@ -386,11 +690,12 @@ public class Tracker {
      * If this value is not set Matomo will still track visits, but the unique visitors metric might be less accurate.
      */
     public Tracker setVisitorId(String visitorId) throws IllegalArgumentException {
-        if (confirmVisitorIdFormat(visitorId)) mDefaultTrackMe.set(QueryParams.VISITOR_ID, visitorId);
+        if (confirmVisitorIdFormat(visitorId)) whenInitialized(() -> mDefaultTrackMe.set(QueryParams.VISITOR_ID, visitorId));
         return this;
     }
 
     public String getVisitorId() {
+        awaitInit();
         return mDefaultTrackMe.get(QueryParams.VISITOR_ID);
     }
 
@@ -480,37 +785,148 @@ public class Tracker {
         trackMe.set(QueryParams.URL_PATH, urlPath);
     }
 
+    /**
+     * Never blocks on initialization or on querying the device, events tracked before either finished are buffered and replayed in order.
+     */
     public Tracker track(TrackMe trackMe) {
+        if (!mInitialized || !mDeviceInfo.isReady()) {
+            if (mPreInitCount.incrementAndGet() > MAX_PRE_INIT_EVENTS) {
+                mPreInitCount.decrementAndGet();
+                Timber.tag(TAG).w("Too many events waiting for the tracker to be ready, event dropped: %s", trackMe);
+                return this;
+            }
+            // The replay happens later, keep the time of the actual event
+            trackMe.trySet(QueryParams.DATETIME_OF_REQUEST, new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ", Locale.US).format(new Date()));
+            mPreInitBuffer.add(() -> {
+                mPreInitCount.decrementAndGet();
+                trackNow(trackMe);
+            });
+            // If the buffer was replayed in the meantime, the event might have been missed
+            replayPreInit();
+            return this;
+        }
         synchronized (mTrackingLock) {
-            final boolean newSession = System.currentTimeMillis() - mSessionStartTime > mSessionTimeout;
+            // Older buffered events go first
+            replayPreInit();
+            trackNow(trackMe);
+        }
+        return this;
+    }
 
-            if (newSession) {
-                mSessionStartTime = System.currentTimeMillis();
-                injectInitialParams(trackMe);
+    /**
+     * Tracks several events at once, e.g. the impressions of a feed.
+     * Each one is processed like by {@link #track(TrackMe)}, then they are queued together, so they end up in the same bulk requests.
+     * On a {@link TrackerGroup}, only the copies of each event are queued together.
+     */
+    public Tracker trackAll(List<TrackMe> trackMes) {
+        if (!mInitialized || !mDeviceInfo.isReady()) {
+            // Buffered, and replayed in order once the tracker is ready
+            for (TrackMe trackMe : trackMes) track(trackMe);
+            return this;
+        }
+        synchronized (mTrackingLock) {
+            replayPreInit();
+            List<TrackMe> prepared = new ArrayList<>(trackMes.size());
+            for (TrackMe trackMe : trackMes) {
+                trackMe = prepare(trackMe);
+                if (trackMe != null) prepared.add(trackMe);
             }
+            if (prepared.isEmpty()) return this;
+            if (mOptOut) {
+                Timber.tag(TAG).d("%d events omitted due to opt out.", prepared.size());
+                return this;
+            }
+            TrackerGroup group = mGroup;
+            if (group != null) {
+                for (TrackMe trackMe : prepared) group.submit(trackMe, mDispatcher);
+            } else {
+                mDispatcher.submitAll(prepared);
+            }
+            Timber.tag(TAG).d("%d events added to the queue.", prepared.size());
+        }
+        return this;
+    }
 
-            injectBaseParams(trackMe);
+    // Must be called while holding mTrackingLock
+    private void trackNow(TrackMe trackMe) {
+        trackMe = prepare(trackMe);
+        if (trackMe == null) return;
+        if (!mOptOut) {
+            TrackerGroup group = mGroup;
+            if (group != null) group.submit(trackMe, mDispatcher);
+            else mDispatcher.submit(trackMe);
+            Timber.tag(TAG).d("Event added to the queue: %s", trackMe);
+        } else {
+            Timber.tag(TAG).d("Event omitted due to opt out: %s", trackMe);
+        }
+    }
 
-            for (Callback callback : mTrackingCallbacks) {
-                trackMe = callback.onTrack(trackMe);
-                if (trackMe == null) {
-                    Timber.tag(TAG).d("Tracking aborted by %s", callback);
-                    return this;
-                }
-            }
+    /**
+     * Runs the event through the duplicate filter, injection and the callbacks. Must be called while holding mTrackingLock.
+     *
+     * @return the event to submit, null if it was dropped
+     */
+    @Nullable
+    private TrackMe prepare(TrackMe trackMe) {
+        // Compared as passed in, before anything is injected
+        if (mDuplicateFilter != null && mDuplicateFilter.isDuplicate(trackMe, System.currentTimeMillis())) {
+            Timber.tag(TAG).d("Duplicate event dropped: %s", trackMe);
+            return null;
+        }
 
-            mLastEvent = trackMe;
-            if (!mOptOut) {
-                mDispatcher.submit(trackMe);
-                Timber.tag(TAG).d("Event added to the queue: %s", trackMe);
-            } else {
-                Timber.tag(TAG).d("Event omitted due to opt out: %s", trackMe);
+        final boolean newSession = System.currentTimeMillis() - mSessionStartTime > mSessionTimeout;
+
+        if (newSession) {
+            mSessionStartTime = System.currentTimeMillis();
+            injectInitialParams(trackMe);
+        }
+
+        applyDeviceInfo();
+        injectBaseParams(trackMe);
+
+        for (Callback callback : mTrackingCallbacks) {
+            trackMe = callback.onTrack(trackMe);
+            if (trackMe == null) {
+                Timber.tag(TAG).d("Tracking aborted by %s", callback);
+                return null;
             }
+        }
 
-            return this;
+        mLastEvent = trackMe;
+        return trackMe;
+    }
+
+    /**
+     * Events are fanned out by the group from now on, see {@link TrackerGroup}.
+     *
+     * @throws IllegalStateException if the tracker already belongs to another group
+     */
+    void setGroup(TrackerGroup group) {
+        synchronized (mTrackingLock) {
+            if (mGroup != null && mGroup != group) throw new IllegalStateException("Tracker '" + mName + "' already belongs to a TrackerGroup.");
+            mGroup = group;
         }
     }
 
+    /**
+     * @return null while the tracker is initializing
+     */
+    @Nullable
+    Dispatcher getDispatcher() {
+        return mInitialized ? mDispatcher : null;
+    }
+
+    private List<Dispatcher> getServerDispatchers() {
+        TrackerGroup group = mGroup;
+        return group != null ? group.getServerDispatchers() : Collections.emptyList();
+    }
+
+    // The dispatchers of the group's other servers follow this tracker's dispatch settings
+    private void applyGroupSettings() {
+        TrackerGroup group = mGroup;
+        if (group != null) group.applySettings();
+    }
+
     public static String makeRandomVisitorId() {
         return UUID.randomUUID().toString().replaceAll("-", "").substring(0, 16);
     }
@@ -560,7 +976,7 @@ public class Tracker {
      * @param dryRunTarget a data structure the data should be passed into
      */
     public void setDryRunTarget(List<Packet> dryRunTarget) {
-        mDispatcher.setDryRunTarget(dryRunTarget);
+        whenInitialized(() -> mDispatcher.setDryRunTarget(dryRunTarget));
     }
 
     /**
@@ -569,12 +985,25 @@ public class Tracker {
      * @return a datastructure or null
      */
     public List<Packet> getDryRunTarget() {
-        return mDispatcher.getDryRunTarget();
+        return awaitInit() ? mDispatcher.getDryRunTarget() : null;
+    }
+
+    // Trackers built with TrackerBuilder#setAsyncInit(boolean) are initialized one after another on this thread
+    private static final class InitExecutor {
+        static final ExecutorService INSTANCE;
+
+        static {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    runnable -> new Thread(runnable, "Matomo-init"));
+            executor.allowCoreThreadTimeOut(true);
+            INSTANCE = executor;
+        }
     }
 
     public interface Callback {
         /**
          * This method will be called after parameter injection and before transmission within {@link Tracker#track(TrackMe)}.
+         * For events that {@link Tracker#track(TrackMe)} held back, it is called later, when they are replayed, possibly on a background thread.
          * Blocking within this method will block tracking.
          *
          * @param trackMe The `TrackMe` that was passed to {@link Tracker#track(TrackMe)} after all data has been injected.
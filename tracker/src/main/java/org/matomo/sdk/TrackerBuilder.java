@@ -7,10 +7,14 @@ import java.net.URL;
  * Configuration details for a {@link Tracker}
  */
 public class TrackerBuilder {
+    public static final long DEFAULT_INIT_TIMEOUT = 2 * 1000; // 2s
     private final String mApiUrl;
     private final int mSiteId;
     private String mTrackerName;
     private String mApplicationBaseUrl;
+    private boolean mStagedInit = false;
+    private boolean mAsyncInit = false;
+    private long mInitTimeout = DEFAULT_INIT_TIMEOUT;
 
     public static TrackerBuilder createDefault(String apiUrl, int siteId) {
         return new TrackerBuilder(apiUrl, siteId, "Default Tracker");
@@ -67,6 +71,52 @@ public class TrackerBuilder {
         return mApplicationBaseUrl;
     }
 
+    /**
+     * Queries the device, e.g. for the screen resolution, once the first event is tracked, instead of in the background right after {@link #build(Matomo)}.
+     * Useful if the tracker is created in {@link android.app.Application#onCreate()}, where that work competes with the app start for the CPU.
+     * Tracking never waits for the device either way, events are held back until the values are available.
+     * Defaults to false.
+     */
+    public TrackerBuilder setStagedInit(boolean stagedInit) {
+        mStagedInit = stagedInit;
+        return this;
+    }
+
+    public boolean isStagedInit() {
+        return mStagedInit;
+    }
+
+    /**
+     * Initializes the tracker, e.g. reading its settings and setting up the dispatcher, on a background thread.
+     * {@link #build(Matomo)} returns right away, events tracked in the meantime are buffered and replayed in order.
+     * Other calls on the tracker wait until the initialization finished, at most until {@link #setInitTimeout(long)} has passed.
+     * Defaults to false.
+     */
+    public TrackerBuilder setAsyncInit(boolean asyncInit) {
+        mAsyncInit = asyncInit;
+        return this;
+    }
+
+    public boolean isAsyncInit() {
+        return mAsyncInit;
+    }
+
+    /**
+     * How long after {@link #build(Matomo)} calls on a tracker with {@link #setAsyncInit(boolean)} wait for the initialization.
+     * After that they no longer block: setters are buffered and replayed in order like events, getters return default values.
+     * Defaults to {@link #DEFAULT_INIT_TIMEOUT}.
+     *
+     * @param timeout in milliseconds
+     */
+    public TrackerBuilder setInitTimeout(long timeout) {
+        mInitTimeout = timeout;
+        return this;
+    }
+
+    public long getInitTimeout() {
+        return mInitTimeout;
+    }
+
     public Tracker build(Matomo matomo) {
         if (mApplicationBaseUrl == null) {
             mApplicationBaseUrl = String.format("https://%s/", matomo.getContext().getPackageName());
@@ -0,0 +1,265 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.matomo.sdk.dispatcher.Dispatcher;
+import org.matomo.sdk.dispatcher.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Sends every event of a tracker to further sites, e.g. a roll-up site, without tracking it once per site.
+ * <p>
+ * Injection, callbacks and session handling run once, on the tracker the group was created for.
+ * The event is encoded once as well, each destination only substitutes the site id and its overrides.
+ * Destinations on the tracker's server are queued with the tracker's own events and share its bulk requests.
+ * Destinations on other servers are queued per server, by a dispatcher from {@link org.matomo.sdk.dispatcher.DispatcherFactory#build(Tracker, String)}
+ * that follows the tracker's dispatch settings, and is dispatched together with the tracker's own.
+ * A tracker can belong to one group only.
+ * <pre>
+ * TrackerGroup group = new TrackerGroup(tracker);
+ * group.addDestination(new TrackerGroup.Destination(2));
+ * group.addDestination(new TrackerGroup.Destination(7, "https://rollup.example.com/matomo.php").set(QueryParams.USER_ID, null));
+ * TrackHelper.track().screen("/main").with(tracker);
+ * </pre>
+ */
+public class TrackerGroup {
+    private static final String TAG = Matomo.tag(TrackerGroup.class);
+    private final Tracker mTracker;
+    // Dispatchers of the destinations on other servers, by API URL
+    private final Map<String, Dispatcher> mServerDispatchers = new LinkedHashMap<>();
+    private volatile List<Route> mRoutes;
+    // Keys that differ between destinations, everything else is encoded once per event
+    private volatile Set<String> mVariableKeys;
+
+    /**
+     * @throws IllegalStateException if the tracker already belongs to another group
+     */
+    public TrackerGroup(Tracker tracker) {
+        mTracker = tracker;
+        Route own = new Route(null, tracker.getAPIUrl());
+        own.targets.add(new Target("", Collections.emptySet()));
+        mRoutes = Collections.singletonList(own);
+        mVariableKeys = Collections.singleton(QueryParams.SITE_ID.toString());
+        tracker.setGroup(this);
+    }
+
+    public Tracker getTracker() {
+        return mTracker;
+    }
+
+    /**
+     * Events tracked from now on are sent to this destination as well.
+     */
+    public synchronized TrackerGroup addDestination(Destination destination) {
+        String apiUrl = destination.mApiUrl != null ? destination.mApiUrl : mTracker.getAPIUrl();
+        List<Route> routes = new ArrayList<>(mRoutes.size() + 1);
+        Route route = null;
+        for (Route existing : mRoutes) {
+            // Copied, the current list may be in use by a track() call
+            Route copy = new Route(existing.dispatcher, existing.apiUrl);
+            copy.targets.addAll(existing.targets);
+            if (existing.apiUrl.equals(apiUrl)) route = copy;
+            routes.add(copy);
+        }
+        if (route == null) {
+            route = new Route(getServerDispatcher(apiUrl), apiUrl);
+            routes.add(route);
+        }
+        route.targets.add(destination.toTarget());
+
+        Set<String> variableKeys = new HashSet<>(mVariableKeys);
+        variableKeys.addAll(destination.mOverrides.keySet());
+        mVariableKeys = variableKeys;
+        mRoutes = routes;
+        return this;
+    }
+
+    private Dispatcher getServerDispatcher(String apiUrl) {
+        Dispatcher dispatcher = mServerDispatchers.get(apiUrl);
+        if (dispatcher == null) {
+            dispatcher = mTracker.getMatomo().getDispatcherFactory().build(mTracker, apiUrl);
+            // Otherwise applied once the tracker is initialized
+            Dispatcher own = mTracker.getDispatcher();
+            if (own != null) copySettings(own, dispatcher);
+            mServerDispatchers.put(apiUrl, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Called by the tracker after its dispatch settings changed.
+     */
+    synchronized void applySettings() {
+        Dispatcher own = mTracker.getDispatcher();
+        if (own == null) return;
+        for (Dispatcher dispatcher : mServerDispatchers.values()) copySettings(own, dispatcher);
+    }
+
+    private void copySettings(Dispatcher own, Dispatcher dispatcher) {
+        // Unchanged values are not set again, that could reschedule a dispatcher
+        if (dispatcher.getDispatchMode() != mTracker.getDispatchMode()) dispatcher.setDispatchMode(mTracker.getDispatchMode());
+        if (dispatcher.getDispatchPolicy() != own.getDispatchPolicy()) dispatcher.setDispatchPolicy(own.getDispatchPolicy());
+        if (dispatcher.getDispatchInterval() != own.getDispatchInterval()) dispatcher.setDispatchInterval(own.getDispatchInterval());
+        if (dispatcher.getConnectionTimeOut() != own.getConnectionTimeOut()) dispatcher.setConnectionTimeOut(own.getConnectionTimeOut());
+        if (dispatcher.getDispatchGzipped() != own.getDispatchGzipped()) dispatcher.setDispatchGzipped(own.getDispatchGzipped());
+    }
+
+    /**
+     * Same as {@link Tracker#dispatch()}, which includes the queues of all servers.
+     */
+    public void dispatch() {
+        mTracker.dispatch();
+    }
+
+    /**
+     * Same as {@link Tracker#dispatchBlocking(long)}, which includes the queues of all servers.
+     *
+     * @param timeout in milliseconds, for all servers together
+     * @return true if all events were dispatched in time
+     */
+    public boolean dispatchBlocking(long timeout) {
+        return mTracker.dispatchBlocking(timeout);
+    }
+
+    /**
+     * The dispatchers of the destinations on other servers, dispatched by the tracker together with its own.
+     */
+    synchronized List<Dispatcher> getServerDispatchers() {
+        return new ArrayList<>(mServerDispatchers.values());
+    }
+
+    /**
+     * Called by the tracker instead of submitting the event to its own dispatcher.
+     */
+    void submit(TrackMe trackMe, Dispatcher trackerDispatcher) {
+        final List<Route> routes = mRoutes;
+        final Set<String> variableKeys = mVariableKeys;
+
+        Map<String, String> params = trackMe.toMap();
+        Map<String, String> values = new HashMap<>();
+        for (String key : variableKeys) {
+            String value = params.remove(key);
+            if (value != null) values.put(key, value);
+        }
+        final String common = Event.encodeParams(params);
+
+        for (Route route : routes) {
+            List<String> queries = new ArrayList<>(route.targets.size());
+            for (Target target : route.targets) queries.add(target.encode(values, common));
+            Dispatcher dispatcher = route.dispatcher != null ? route.dispatcher : trackerDispatcher;
+            dispatcher.submit(trackMe, queries);
+        }
+        Timber.tag(TAG).v("Event submitted for %d servers: %s", routes.size(), trackMe);
+    }
+
+    /**
+     * A further site that receives the tracker's events.
+     */
+    public static class Destination {
+        private final int mSiteId;
+        @Nullable private final String mApiUrl;
+        private final Map<String, String> mOverrides = new LinkedHashMap<>();
+
+        /**
+         * A site on the tracker's server.
+         */
+        public Destination(int siteId) {
+            this(siteId, null);
+        }
+
+        /**
+         * @param apiUrl the server's tracking endpoint, null for the tracker's server
+         */
+        public Destination(int siteId, @Nullable String apiUrl) {
+            mSiteId = siteId;
+            mApiUrl = apiUrl;
+            mOverrides.put(QueryParams.SITE_ID.toString(), String.valueOf(siteId));
+        }
+
+        /**
+         * Overrides a value for this destination only, e.g. a custom dimension that is numbered differently on this site.
+         *
+         * @param value null to leave the parameter out
+         */
+        public Destination set(@NonNull QueryParams key, @Nullable String value) {
+            if (key == QueryParams.SITE_ID) throw new IllegalArgumentException("Use the constructor to set the site id.");
+            mOverrides.put(key.toString(), value);
+            return this;
+        }
+
+        public int getSiteId() {
+            return mSiteId;
+        }
+
+        @Nullable
+        public String getApiUrl() {
+            return mApiUrl;
+        }
+
+        private Target toTarget() {
+            StringBuilder prefix = new StringBuilder();
+            for (Map.Entry<String, String> override : mOverrides.entrySet()) {
+                if (override.getValue() == null) continue;
+                if (prefix.length() > 0) prefix.append('&');
+                Event.appendParam(prefix, override.getKey(), override.getValue());
+            }
+            return new Target(prefix.toString(), new HashSet<>(mOverrides.keySet()));
+        }
+    }
+
+    private static class Route {
+        // null for the tracker's own dispatcher
+        @Nullable final Dispatcher dispatcher;
+        final String apiUrl;
+        final List<Target> targets = new ArrayList<>();
+
+        Route(@Nullable Dispatcher dispatcher, String apiUrl) {
+            this.dispatcher = dispatcher;
+            this.apiUrl = apiUrl;
+        }
+    }
+
+    private static class Target {
+        // Site id and overrides, encoded once
+        final String prefix;
+        final Set<String> overriddenKeys;
+
+        Target(String prefix, Set<String> overriddenKeys) {
+            this.prefix = prefix;
+            this.overriddenKeys = overriddenKeys;
+        }
+
+        String encode(Map<String, String> values, String common) {
+            StringBuilder sb = new StringBuilder(prefix.length() + common.length() + 64);
+            sb.append('?').append(prefix);
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                if (overriddenKeys.contains(value.getKey())) continue;
+                if (sb.length() > 1) sb.append('&');
+                Event.appendParam(sb, value.getKey(), value.getValue());
+            }
+            if (!common.isEmpty()) {
+                if (sb.length() > 1) sb.append('&');
+                sb.append(common);
+            }
+            return sb.toString();
+        }
+    }
+}
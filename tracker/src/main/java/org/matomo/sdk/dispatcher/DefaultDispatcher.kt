@@ -7,25 +7,39 @@
 package org.matomo.sdk.dispatcher
 
 import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.QueryParams
 import org.matomo.sdk.TrackMe
 import org.matomo.sdk.tools.Connectivity
+import org.matomo.sdk.tools.PowerState
 import timber.log.Timber
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.concurrent.Volatile
 import kotlin.math.min
 
 
 /**
  * Responsible for transmitting packets to a server
+ *
+ * Without a [DispatchScheduler] the dispatcher runs its own thread while there are events to dispatch.
+ * With a scheduler, dispatch cycles are run by the scheduler instead, which can be shared between dispatchers.
  */
-class DefaultDispatcher(
+class DefaultDispatcher @JvmOverloads constructor(
     private val eventCache: EventCache,
     private val connectivity: Connectivity,
     private val packetFactory: PacketFactory,
-    private val packetSender: PacketSender
+    private val packetSender: PacketSender,
+    private val powerState: PowerState? = null,
+    private val scheduler: DispatchScheduler? = null
 ) : Dispatcher {
     private val threadControl = Any()
+    private val cycleLock = Any()
+
+    // Held while events that belong together are queued, so a dispatch cycle can't drain only part of them
+    private val drainLock = Any()
     private val sleepToken = Semaphore(0)
 
     @Volatile
@@ -45,16 +59,52 @@ class DefaultDispatcher(
     @Volatile
     private var dispatchMode = DispatchMode.ALWAYS
 
+    @Volatile
+    private var dispatchPolicy = DispatchPolicy()
+
     @Volatile
     private var running = false
 
+    @Volatile
+    private var stopped = false
+
     @Volatile
     private var dispatchThread: Thread? = null
     private var mDryRunTarget: MutableList<Packet>? = null
+    private val stats = DispatcherStats(
+        { eventCache.size() },
+        { eventCache.diskCache?.currentSize ?: 0 },
+        { eventCache.diskCache?.evictions ?: 0 }
+    )
+    private val notifier = DispatchNotifier(scheduler ?: DispatchScheduler.shared)
+    private val lastEvictions = AtomicLong()
 
     init {
         packetSender.setGzipData(dispatchGzipped)
         packetSender.setTimeout(timeOut.toLong())
+        connectivity.setListener { onConnectivityChanged(it) }
+        powerState?.setListener { onPowerStateChanged(it) }
+    }
+
+    /**
+     * Starts draining the backlog as soon as the network returns, instead of waiting for the next dispatch interval.
+     */
+    private fun onConnectivityChanged(state: Connectivity) {
+        if (!state.isConnected) return
+        Timber.tag(TAG).d("Network is available again.")
+        wakeUp()
+    }
+
+    private fun onPowerStateChanged(state: PowerState) {
+        if (dispatchMode != DispatchMode.UNMETERED_OR_CHARGING || !state.isCharging) return
+        Timber.tag(TAG).d("Device is charging.")
+        wakeUp()
+    }
+
+    private fun wakeUp() {
+        if (dispatchInterval == -1L || eventCache.isEmpty) return
+        // A freshly launched loop would wait one interval first, give it a free pass.
+        if (forceDispatch()) wakeLoop()
     }
 
     /**
@@ -109,16 +159,38 @@ class DefaultDispatcher(
 
     override fun setDispatchMode(dispatchModeIn: DispatchMode) {
         this.dispatchMode = dispatchModeIn
+        observePowerState()
     }
 
     override fun getDispatchMode(): DispatchMode {
         return dispatchMode
     }
 
+    override fun setDispatchPolicy(dispatchPolicyIn: DispatchPolicy) {
+        this.dispatchPolicy = dispatchPolicyIn
+        observePowerState()
+    }
+
+    override fun getDispatchPolicy(): DispatchPolicy {
+        return dispatchPolicy
+    }
+
+    /**
+     * Being plugged in has to wake the dispatcher even if the power state was never queried, e.g. while on an unmetered network.
+     */
+    private fun observePowerState() {
+        if (dispatchMode == DispatchMode.UNMETERED_OR_CHARGING || dispatchPolicy.powerSaveIntervalFactor > 1f) powerState?.observe()
+    }
+
     private fun launch(): Boolean {
         synchronized(threadControl) {
-            if (!running) {
+            if (!running && !stopped) {
                 running = true
+                if (scheduler != null) {
+                    retryCounter = 0
+                    scheduler.schedule(job, nextCycleDelay())
+                    return true
+                }
                 val thread = Thread(loop)
                 thread.priority = Thread.MIN_PRIORITY
                 thread.name = "Matomo-default-dispatcher"
@@ -137,13 +209,28 @@ class DefaultDispatcher(
     override fun forceDispatch(): Boolean {
         if (!launch()) {
             retryCounter = 0
-            sleepToken.release()
+            wakeLoop()
             return false
         }
         return true
     }
 
+    /**
+     * Skips the remaining wait time of the current dispatch interval.
+     */
+    private fun wakeLoop() {
+        if (stopped) return
+        if (scheduler != null) scheduler.schedule(job, 0)
+        else sleepToken.release()
+    }
+
     override fun forceDispatchBlocking() {
+        if (scheduler != null) {
+            // Run a cycle on the calling thread, a cycle that the scheduler is running right now finishes first.
+            if (!stopped) synchronized(cycleLock) { dispatchCycle() }
+            return
+        }
+
         synchronized(threadControl) {
             // force thread to exit after it completes its dispatch loop
             forcedBlocking = true
@@ -169,6 +256,73 @@ class DefaultDispatcher(
         }
     }
 
+    /**
+     * Stops this dispatcher for good, a cycle that is currently running still finishes.
+     * Events that were not dispatched yet are moved to the disk cache, so they can be sent after the next app start.
+     */
+    fun shutdown() {
+        synchronized(threadControl) {
+            stopped = true
+            running = false
+        }
+        scheduler?.cancel(job)
+        sleepToken.release()
+        synchronized(cycleLock) { updateCacheState(false) }
+        notifier.flush()
+    }
+
+    override fun forceDispatchBlocking(timeout: Long): Boolean {
+        if (stopped || !isOnline) {
+            // Nothing can be sent, e.g. in DispatchMode.EXCEPTION, so don't wait for a cycle just to write the cache.
+            updateCacheState(false)
+            notifier.flush()
+            return false
+        }
+
+        var finished: Boolean
+        if (scheduler != null) {
+            val latch = CountDownLatch(1)
+            blockingWaiters.add(latch)
+            if (forceDispatch()) wakeLoop()
+            finished = awaitUninterruptibly { latch.await(timeout, TimeUnit.MILLISECONDS) }
+            blockingWaiters.remove(latch)
+        } else {
+            synchronized(threadControl) {
+                // force thread to exit after it completes its dispatch loop
+                forcedBlocking = true
+            }
+            if (forceDispatch()) sleepToken.release()
+            val dispatchThreadLocal = dispatchThread
+            finished = dispatchThreadLocal == null || awaitUninterruptibly {
+                dispatchThreadLocal.join(timeout)
+                !dispatchThreadLocal.isAlive
+            }
+            synchronized(threadControl) {
+                forcedBlocking = false
+            }
+        }
+
+        finished = finished && eventCache.isEmpty
+        if (!finished) {
+            // Out of time, write whatever is still queued to disk in one go.
+            // Events of a packet that is still being sent are requeued by the running cycle if that fails.
+            Timber.tag(TAG).d("Blocking dispatch did not finish within %dms.", timeout)
+            updateCacheState(false)
+            notifier.flush()
+        }
+        return finished
+    }
+
+    private inline fun awaitUninterruptibly(await: () -> Boolean): Boolean {
+        return try {
+            await()
+        } catch (e: InterruptedException) {
+            Timber.tag(TAG).d("Interrupted while waiting for dispatch to complete")
+            Thread.currentThread().interrupt()
+            false
+        }
+    }
+
     override fun clear() {
         eventCache.clear()
         // Try to exit the loop as the queue is empty
@@ -176,70 +330,62 @@ class DefaultDispatcher(
     }
 
     override fun submit(trackMe: TrackMe) {
-        eventCache.add(Event(trackMe.toMap()))
-        if (dispatchInterval != -1L) launch()
+        submit(trackMe, System.currentTimeMillis())
+    }
+
+    override fun submit(trackMe: TrackMe, timestamp: Long) {
+        val priority = isPriority(trackMe)
+        eventCache.add(Event(timestamp, trackMe.toMap(), priority))
+        stats.onSubmitted()
+        notifier.onEnqueued()
+        if (dispatchInterval == -1L) return
+        // Don't let orders and the like wait for the interval
+        if (priority) wakeUp()
+        else launch()
+    }
+
+    override fun submitAll(trackMes: List<TrackMe>) {
+        var priority = false
+        synchronized(drainLock) {
+            for (trackMe in trackMes) {
+                val eventPriority = isPriority(trackMe)
+                priority = priority || eventPriority
+                eventCache.add(Event(trackMe.toMap(), eventPriority))
+                stats.onSubmitted()
+                notifier.onEnqueued()
+            }
+        }
+        if (dispatchInterval == -1L) return
+        if (priority) wakeUp()
+        else launch()
+    }
+
+    override fun submit(trackMe: TrackMe, encodedQueries: List<String>) {
+        val priority = isPriority(trackMe)
+        val timestamp = System.currentTimeMillis()
+        synchronized(drainLock) {
+            for (query in encodedQueries) {
+                eventCache.add(Event(timestamp, query, priority))
+                stats.onSubmitted()
+                notifier.onEnqueued()
+            }
+        }
+        if (dispatchInterval == -1L) return
+        if (priority) wakeUp()
+        else launch()
     }
 
     private val loop: Runnable = Runnable {
         retryCounter = 0
         while (running) {
             try {
-                var sleepTime = dispatchInterval
-                if (retryCounter > 1)
-                    sleepTime += min(
-                        (retryCounter * dispatchInterval).toDouble(),
-                        (5 * dispatchInterval).toDouble()
-                    ).toLong()
-
                 // Either we wait the interval or forceDispatch() granted us one free pass
-                sleepToken.tryAcquire(sleepTime, TimeUnit.MILLISECONDS)
+                sleepToken.tryAcquire(nextCycleDelay(), TimeUnit.MILLISECONDS)
             } catch (e: InterruptedException) {
                 Timber.tag(TAG).e(e)
             }
-            if (eventCache.updateState(isOnline)) {
-                var count = 0
-                val drainedEvents: List<Event> = ArrayList()
-                eventCache.drainTo(drainedEvents)
-                Timber.tag(TAG).d("Drained %s events.", drainedEvents.size)
-                for (packet in packetFactory.buildPackets(drainedEvents)) {
-                    var success: Boolean
-
-                    if (mDryRunTarget != null) {
-                        Timber.tag(TAG).d("DryRun, stored HttpRequest, now %d.", mDryRunTarget!!.size)
-                        success = mDryRunTarget!!.add(packet)
-                    } else {
-                        success = packetSender.send(packet)
-                    }
-
-                    if (success) {
-                        count += packet.eventCount
-                        retryCounter = 0
-                    } else {
-                        // On network failure, requeue all un-sent events, but use isOnline to determine if events should be cached in
-                        // memory or disk
-                        Timber.tag(TAG).d("Failure while trying to send packet")
-                        retryCounter++
-                        break
-                    }
-
-                    // Re-check network connectivity to early exit if we drop offline.  This speeds up how quickly the setOffline method will
-                    // take effect
-                    if (!isOnline) {
-                        Timber.tag(TAG).d("Disconnected during dispatch loop")
-                        break
-                    }
-                }
-
-                Timber.tag(TAG).d("Dispatched %d events.", count)
-                if (count < drainedEvents.size) {
-                    Timber.tag(TAG).d("Unable to send all events, re-queueing %d events", drainedEvents.size - count)
-                    // Requeue events to the event cache that weren't processed (either PacketSender failure or we are now offline).  Once the
-                    // events are re-queued we update the event cache state to write the re-queued events to disk or to leave them in memory
-                    // depending on the connectivity state of the device.
-                    eventCache.requeue(drainedEvents.subList(count, drainedEvents.size))
-                    eventCache.updateState(isOnline)
-                }
-            }
+            if (stopped) break
+            synchronized(cycleLock) { dispatchCycle() }
 
             synchronized(threadControl) {
                 // We may be done or this was a forced dispatch.  If we are in a blocking force dispatch we need to exit immediately to ensure
@@ -251,6 +397,172 @@ class DefaultDispatcher(
         }
     }
 
+    // Threads waiting in forceDispatchBlocking(timeout) for the next cycle to finish
+    private val blockingWaiters = CopyOnWriteArrayList<CountDownLatch>()
+
+    private val job = object : DispatchScheduler.Job {
+        override fun runCycle(): Long {
+            // Only release those that were waiting before this cycle drained the cache
+            val waiters = ArrayList(blockingWaiters)
+            synchronized(cycleLock) { if (!stopped) dispatchCycle() }
+            for (waiter in waiters) waiter.countDown()
+            synchronized(threadControl) {
+                if (stopped || eventCache.isEmpty || dispatchInterval < 0) {
+                    running = false
+                    return -1
+                }
+            }
+            return nextCycleDelay()
+        }
+    }
+
+    /**
+     * The dispatch interval, adjusted by the [DispatchPolicy] and extended by a backoff after failed attempts.
+     */
+    private fun nextCycleDelay(): Long {
+        val interval = dispatchPolicy.getDispatchInterval(dispatchInterval, powerState)
+        var delay = interval
+        if (retryCounter > 1)
+            delay += min(
+                (retryCounter * interval).toDouble(),
+                (5 * interval).toDouble()
+            ).toLong()
+        return delay
+    }
+
+    private fun dispatchCycle() {
+        try {
+            runDispatchCycle()
+        } finally {
+            notifier.flush()
+        }
+    }
+
+    private fun runDispatchCycle() {
+        val online = isOnline
+        if (!online && isMeteredForPriority) {
+            // Only the priority events go out over the metered network, the backlog waits for an unmetered one
+            val drainedEvents: List<Event> = ArrayList()
+            synchronized(drainLock) { eventCache.drainPriorityTo(drainedEvents) }
+            Timber.tag(TAG).d("Drained %s priority events for a metered network.", drainedEvents.size)
+            if (drainedEvents.isNotEmpty()) send(drainedEvents) { connectivity.isConnected }
+            updateCacheState(false)
+            return
+        }
+        if (updateCacheState(online)) {
+            val drainedEvents: List<Event> = ArrayList()
+            synchronized(drainLock) { eventCache.drainTo(drainedEvents) }
+            Timber.tag(TAG).d("Drained %s events.", drainedEvents.size)
+            send(drainedEvents) { isOnline }
+        }
+    }
+
+    /**
+     * @param stillOnline checked after every packet, sending stops early once it is false
+     */
+    private fun send(drainedEvents: List<Event>, stillOnline: () -> Boolean) {
+        // Priority events are drained first, they get packets of their own so they don't wait for a large backlog upload.
+        var priorityCount = 0
+        while (priorityCount < drainedEvents.size && drainedEvents[priorityCount].isPriority) priorityCount++
+        val packets = packetFactory.buildPackets(drainedEvents.subList(0, priorityCount)) +
+                packetFactory.buildPackets(drainedEvents.subList(priorityCount, drainedEvents.size))
+        for (packet in packets) notifier.post { it.onPacketBuilt(packet) }
+        // Packets carry their own events, events that could not be packed were dropped by the factory
+        var next = 0
+        var count = 0
+        while (next < packets.size) {
+            val packet = packets[next]
+            val result: SendResult
+            notifier.post { it.onSendStarted(packet) }
+            val sendStart = System.nanoTime()
+            if (mDryRunTarget != null) {
+                Timber.tag(TAG).d("DryRun, stored HttpRequest, now %d.", mDryRunTarget!!.size)
+                result = if (mDryRunTarget!!.add(packet)) SendResult.SENT else SendResult.FAILED
+            } else {
+                result = packetSender.sendForResult(packet)
+            }
+
+            val duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendStart)
+            stats.onPacket(packet.eventCount, duration, result)
+            notifier.post { it.onSendFinished(packet, result, duration) }
+
+            if (!result.isHandled(packet.eventCount)) {
+                stats.onPacketFailed()
+                // On network failure, requeue all un-sent events, but use isOnline to determine if events should be cached in
+                // memory or disk. They keep their batch id, so the server can recognize those it already stored.
+                Timber.tag(TAG).d("Failure while trying to send packet")
+                retryCounter++
+                break
+            }
+            next++
+
+            // Events that the server rejected as invalid are not requeued, they would be rejected again.
+            count += packet.eventCount - min(result.invalid, packet.eventCount)
+            recordSent(packet.events, result)
+            retryCounter = 0
+
+            // Re-check network connectivity to early exit if we drop offline.  This speeds up how quickly the setOffline method will
+            // take effect
+            if (!stillOnline()) {
+                Timber.tag(TAG).d("Disconnected during dispatch loop")
+                break
+            }
+        }
+
+        Timber.tag(TAG).d("Dispatched %d events.", count)
+        val toRequeue = ArrayList<Event>()
+        for (i in next until packets.size) toRequeue.addAll(packets[i].events)
+        if (toRequeue.isNotEmpty()) {
+            Timber.tag(TAG).d("Unable to send all events, re-queueing %d events", toRequeue.size)
+            // Requeue events to the event cache that weren't processed (either PacketSender failure or we are now offline).  Once the
+            // events are re-queued we update the event cache state to write the re-queued events to disk or to leave them in memory
+            // depending on the connectivity state of the device.
+            eventCache.requeue(toRequeue)
+            val requeued = toRequeue.size
+            notifier.post { it.onRequeued(requeued) }
+            updateCacheState(isOnline)
+        }
+    }
+
+    /**
+     * [EventCache.updateState] that also tells the listeners about events moved to disk and evicted cache containers.
+     */
+    private fun updateCacheState(online: Boolean): Boolean {
+        if (!notifier.isActive) return eventCache.updateState(online)
+        val queued = eventCache.size()
+        val hasEvents = eventCache.updateState(online)
+        if (!online) {
+            val spilled = queued - eventCache.size()
+            if (spilled > 0) notifier.post { it.onSpilledToDisk(spilled) }
+        }
+        val evictions = eventCache.diskCache?.evictions ?: 0
+        val previous = lastEvictions.getAndSet(evictions)
+        if (evictions > previous) notifier.post { it.onEvicted((evictions - previous).toInt()) }
+        return hasEvents
+    }
+
+    private fun recordSent(packetEvents: List<Event>, result: SendResult) {
+        val now = System.currentTimeMillis()
+        val rejected = min(result.invalid, packetEvents.size)
+        // Without invalid_indices it is unknown which ones were rejected, their latency is recorded as well
+        var sent = packetEvents.size - rejected
+        for (i in packetEvents.indices) {
+            if (sent == 0) break
+            if (result.isInvalid(i)) continue
+            stats.onEventSent(now - packetEvents[i].timeStamp)
+            sent--
+        }
+        stats.onPacketSent(rejected)
+    }
+
+    private fun isPriority(trackMe: TrackMe): Boolean {
+        if (trackMe.has(QueryParams.ORDER_ID)) return true
+        val goalId = trackMe.get(QueryParams.GOAL_ID)
+        // Goal 0 is used for cart updates
+        if (goalId != null && goalId != "0") return true
+        return trackMe.get(QueryParams.ACTION_NAME)?.startsWith(FATAL_EXCEPTION_PREFIX) == true
+    }
+
     private val isOnline: Boolean
         get() {
             if (!connectivity.isConnected) return false
@@ -259,9 +571,21 @@ class DefaultDispatcher(
                 DispatchMode.EXCEPTION -> false
                 DispatchMode.ALWAYS -> true
                 DispatchMode.WIFI_ONLY -> connectivity.type == Connectivity.Type.WIFI
+                DispatchMode.UNMETERED_ONLY -> !connectivity.isMetered || isMeteredAllowed
+                DispatchMode.UNMETERED_OR_CHARGING -> !connectivity.isMetered || powerState?.isCharging == true || isMeteredAllowed
             }
         }
 
+    private val isMeteredAllowed: Boolean
+        get() = dispatchPolicy.allowsMetered(eventCache.oldestTimestamp)
+
+    // Connected, but isOnline is false because the network is metered
+    private val isMeteredForPriority: Boolean
+        get() {
+            if (dispatchMode != DispatchMode.UNMETERED_ONLY && dispatchMode != DispatchMode.UNMETERED_OR_CHARGING) return false
+            return connectivity.isConnected && connectivity.isMetered && dispatchPolicy.isMeteredForPriority && eventCache.hasPriorityEvents()
+        }
+
     override fun setDryRunTarget(dryRunTarget: MutableList<Packet>) {
         mDryRunTarget = dryRunTarget
     }
@@ -270,7 +594,20 @@ class DefaultDispatcher(
         return mDryRunTarget!!
     }
 
+    override fun getStats(): DispatcherStats = stats
+
+    override fun addListener(listener: DispatchListener) {
+        notifier.addListener(listener)
+    }
+
+    override fun removeListener(listener: DispatchListener) {
+        notifier.removeListener(listener)
+    }
+
     companion object {
         private val TAG = tag(DefaultDispatcher::class.java)
+
+        // See TrackHelper.Exception
+        private const val FATAL_EXCEPTION_PREFIX = "exception/fatal/"
     }
 }
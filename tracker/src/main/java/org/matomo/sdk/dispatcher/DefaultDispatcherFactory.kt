@@ -1,15 +1,34 @@
 package org.matomo.sdk.dispatcher
 
 import org.matomo.sdk.Tracker
-import org.matomo.sdk.tools.Connectivity
+import org.matomo.sdk.tools.NetworkCallbackConnectivity
+import org.matomo.sdk.tools.PowerState
 
-open class DefaultDispatcherFactory : DispatcherFactory {
+/**
+ * Builds [DefaultDispatcher]s that run their dispatch cycles on the given [DispatchScheduler].
+ */
+open class DefaultDispatcherFactory @JvmOverloads constructor(
+    private val scheduler: DispatchScheduler = DispatchScheduler.shared
+) : DispatcherFactory {
     override fun build(tracker: Tracker): Dispatcher {
         return DefaultDispatcher(
             EventCache(EventDiskCache(tracker)),
-            Connectivity(tracker.matomo.context),
+            NetworkCallbackConnectivity(tracker.matomo.context),
             PacketFactory(tracker.apiUrl),
-            DefaultPacketSender()
+            DefaultPacketSender(),
+            PowerState(tracker.matomo.context),
+            scheduler
+        )
+    }
+
+    override fun build(tracker: Tracker, apiUrl: String): Dispatcher {
+        return DefaultDispatcher(
+            EventCache(EventDiskCache(tracker, apiUrl)),
+            NetworkCallbackConnectivity(tracker.matomo.context),
+            PacketFactory(apiUrl),
+            DefaultPacketSender(),
+            PowerState(tracker.matomo.context),
+            scheduler
         )
     }
 }
@@ -1,5 +1,8 @@
 package org.matomo.sdk.dispatcher
 
+import androidx.annotation.VisibleForTesting
+import org.json.JSONException
+import org.json.JSONObject
 import org.matomo.sdk.Matomo.Companion.tag
 import timber.log.Timber
 import java.io.BufferedReader
@@ -11,23 +14,33 @@ import java.io.OutputStream
 import java.io.OutputStreamWriter
 import java.net.HttpURLConnection
 import java.net.URL
+import java.net.URLEncoder
 import java.nio.charset.StandardCharsets
 import java.util.zip.GZIPOutputStream
 
 class DefaultPacketSender : PacketSender {
     private var mTimeout = Dispatcher.DEFAULT_CONNECTION_TIMEOUT.toLong()
     private var mGzip = false
+    private var mBatchIdHeader: String? = BATCH_ID_HEADER
+    private var mBatchIdParameter: String? = null
 
-    override fun send(packet: Packet): Boolean {
+    override fun send(packet: Packet): Boolean = sendForResult(packet).isSuccessful
+
+    override fun sendForResult(packet: Packet): SendResult {
         var urlConnection: HttpURLConnection? = null
+        var reusable = false
+        var payloadBytes = 0L
+        var transferredBytes = 0L
         try {
-            urlConnection = URL(packet.targetURL).openConnection() as HttpURLConnection
+            urlConnection = URL(targetUrl(packet)).openConnection() as HttpURLConnection
 
             Timber.tag(TAG).v("Connection is open to %s", urlConnection.url.toExternalForm())
             Timber.tag(TAG).v("Sending: %s", packet)
 
             urlConnection.connectTimeout = mTimeout.toInt()
             urlConnection.readTimeout = mTimeout.toInt()
+            val batchIdHeader = mBatchIdHeader
+            if (batchIdHeader != null && packet.batchId != null) urlConnection.setRequestProperty(batchIdHeader, packet.batchId)
 
             // IF there is json data we have to do a post
             if (packet.postData != null) { // POST
@@ -36,19 +49,18 @@ class DefaultPacketSender : PacketSender {
                 urlConnection.setRequestProperty("charset", "utf-8")
 
                 val toPost = packet.postData.toString()
+                val postBytes = toPost.toByteArray(StandardCharsets.UTF_8)
+                payloadBytes = postBytes.size.toLong()
                 if (mGzip) {
                     urlConnection.addRequestProperty("Content-Encoding", "gzip")
-                    val byteArrayOS = ByteArrayOutputStream()
-
-                    GZIPOutputStream(byteArrayOS).use { gzipStream ->
-                        gzipStream.write(toPost.toByteArray(StandardCharsets.UTF_8))
-                    }
+                    val gzipped = gzip(postBytes)
+                    transferredBytes = gzipped.size.toLong()
                     // If closing fails we assume the written data to be invalid.
                     // Don't catch the exception and let it abort the `send(Packet)` call.
                     var outputStream: OutputStream? = null
                     try {
                         outputStream = urlConnection.outputStream
-                        outputStream.write(byteArrayOS.toByteArray())
+                        outputStream.write(gzipped)
                     } finally {
                         if (outputStream != null) {
                             try {
@@ -64,6 +76,7 @@ class DefaultPacketSender : PacketSender {
                     try {
                         writer = BufferedWriter(OutputStreamWriter(urlConnection.outputStream, StandardCharsets.UTF_8))
                         writer.write(toPost)
+                        transferredBytes = payloadBytes
                     } finally {
                         if (writer != null) {
                             try {
@@ -77,21 +90,41 @@ class DefaultPacketSender : PacketSender {
                 }
             } else { // GET
                 urlConnection.doOutput = false // Defaults to false, but for readability
+                payloadBytes = urlConnection.url.toExternalForm().length.toLong()
+                transferredBytes = payloadBytes
             }
 
             val statusCode = urlConnection.responseCode
             Timber.tag(TAG).v("Transmission finished (code=%d).", statusCode)
             val successful = checkResponseCode(statusCode)
 
+            // Only bulk requests answer with a summary of what was stored
+            val isBulk = packet.postData != null
+            var body: String? = null
             if (successful) {
                 // https://github.com/matomo-org/matomo-sdk-android/issues/226
 
                 val `is` = urlConnection.inputStream
                 if (`is` != null) {
                     try {
-                        `is`.close()
+                        // Reading the body to the end returns the connection to the keep-alive pool,
+                        // so the next packet to the same host skips the TCP and TLS handshake.
+                        val response = ByteArrayOutputStream()
+                        val buffer = ByteArray(1024)
+                        var read: Int
+                        while ((`is`.read(buffer).also { read = it }) != -1) {
+                            if (isBulk && response.size() < MAX_RESPONSE_SIZE) response.write(buffer, 0, read)
+                        }
+                        if (isBulk) body = response.toString("UTF-8")
+                        reusable = true
                     } catch (e: IOException) {
-                        Timber.tag(TAG).d(e, "Failed to close the error stream.")
+                        Timber.tag(TAG).d(e, "Failed to read the response body.")
+                    } finally {
+                        try {
+                            `is`.close()
+                        } catch (e: IOException) {
+                            Timber.tag(TAG).d(e, "Failed to close the input stream.")
+                        }
                     }
                 }
             } else {
@@ -112,17 +145,47 @@ class DefaultPacketSender : PacketSender {
                     }
                 }
                 Timber.tag(TAG).w("Transmission failed (code=%d, reason=%s)", statusCode, errorReason.toString())
+                if (isBulk) body = errorReason.toString()
             }
 
-            return successful
+            return parseResult(statusCode, successful, body, payloadBytes, transferredBytes)
         } catch (e: Exception) {
             Timber.tag(TAG).e(e, "Transmission failed unexpectedly.")
-            return false
+            return SendResult.FAILED
         } finally {
-            urlConnection?.disconnect()
+            // Disconnecting closes the socket, only do it if the connection can't be reused anyway.
+            if (!reusable) urlConnection?.disconnect()
         }
     }
 
+    private fun targetUrl(packet: Packet): String {
+        val parameter = mBatchIdParameter
+        val batchId = packet.batchId
+        if (parameter == null || batchId == null) return packet.targetURL
+        val separator = if (packet.targetURL.contains('?')) '&' else '?'
+        return packet.targetURL + separator + parameter + "=" + URLEncoder.encode(batchId, "UTF-8")
+    }
+
+    /**
+     * The server, or a proxy in front of it, can use the batch id to drop packets it has already stored.
+     * Retries after a timeout or a lost response carry the same id as the original attempt.
+     *
+     * @param header name of the HTTP header that carries [Packet.getBatchId], null to not send it as header.
+     * Defaults to [BATCH_ID_HEADER].
+     */
+    fun setBatchIdHeader(header: String?) {
+        mBatchIdHeader = header
+    }
+
+    /**
+     * Like [setBatchIdHeader], but as query parameter of the request URL, for setups that can't see request headers.
+     *
+     * @param parameter name of the query parameter, null to not send it as parameter (default)
+     */
+    fun setBatchIdParameter(parameter: String?) {
+        mBatchIdParameter = parameter
+    }
+
     override fun setTimeout(timeout: Long) {
         mTimeout = timeout
     }
@@ -133,6 +196,40 @@ class DefaultPacketSender : PacketSender {
 
     companion object {
         private val TAG = tag(DefaultPacketSender::class.java)
+        const val BATCH_ID_HEADER = "X-Matomo-Batch-Id"
+
+        // A bulk response lists at most one index per event, anything longer is not a tracking response.
+        private const val MAX_RESPONSE_SIZE = 64 * 1024
+
+        /**
+         * Compresses a POST body, as sent with [setGzipData].
+         */
+        @VisibleForTesting
+        @JvmStatic
+        fun gzip(data: ByteArray): ByteArray {
+            val byteArrayOS = ByteArrayOutputStream()
+            GZIPOutputStream(byteArrayOS).use { gzipStream ->
+                gzipStream.write(data)
+            }
+            return byteArrayOS.toByteArray()
+        }
+
+        private fun parseResult(statusCode: Int, successful: Boolean, body: String?, payloadBytes: Long, transferredBytes: Long): SendResult {
+            if (body.isNullOrBlank()) return SendResult(statusCode, successful, payloadBytes = payloadBytes, transferredBytes = transferredBytes)
+            return try {
+                val json = JSONObject(body)
+                val tracked = json.optInt("tracked", -1)
+                val indices = json.optJSONArray("invalid_indices")
+                val invalidIndices = IntArray(indices?.length() ?: 0) { indices!!.getInt(it) }
+                // Without token_auth the server only counts the invalid requests
+                val invalid = json.optInt("invalid", invalidIndices.size)
+                if (invalid > 0) Timber.tag(TAG).w("Server rejected %d events: %s", invalid, invalidIndices.contentToString())
+                SendResult(statusCode, successful, tracked, invalid, invalidIndices, payloadBytes, transferredBytes)
+            } catch (e: JSONException) {
+                Timber.tag(TAG).d("Response is not a bulk tracking summary: %s", body)
+                SendResult(statusCode, successful, payloadBytes = payloadBytes, transferredBytes = transferredBytes)
+            }
+        }
         private fun checkResponseCode(code: Int): Boolean {
             return code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_OK
         }
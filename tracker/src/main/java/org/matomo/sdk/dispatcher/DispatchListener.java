@@ -0,0 +1,47 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk.dispatcher;
+
+/**
+ * Follows events from {@link Dispatcher#submit(org.matomo.sdk.TrackMe)} to the wire, e.g. to export the SDK's health to an APM.
+ * <p>
+ * Notifications are collected while the dispatcher works and delivered in batches after each dispatch cycle, on a background thread
+ * that is neither the tracking nor the dispatch thread. Within a batch they keep their order. All methods are optional.
+ */
+public interface DispatchListener {
+
+    /**
+     * @param count events submitted since the last batch
+     */
+    default void onEnqueued(int count) {}
+
+    /**
+     * @param count events written to the offline cache, e.g. because the device is offline
+     */
+    default void onSpilledToDisk(int count) {}
+
+    default void onPacketBuilt(Packet packet) {}
+
+    default void onSendStarted(Packet packet) {}
+
+    /**
+     * @param result   status code and per event outcome
+     * @param duration in milliseconds
+     */
+    default void onSendFinished(Packet packet, SendResult result, long duration) {}
+
+    /**
+     * @param count events put back into the queue after a failed or partial send
+     */
+    default void onRequeued(int count) {}
+
+    /**
+     * @param containers offline cache containers deleted because they were too old or the cache was full
+     */
+    default void onEvicted(int containers) {}
+}
@@ -12,6 +12,16 @@ public enum DispatchMode {
      * Dispatch only on WIFI
      */
     WIFI_ONLY("wifi_only"),
+    /**
+     * Dispatch only on networks that don't incur costs for the user, e.g. most WIFI networks.
+     * See {@link DispatchPolicy#setMeteredBacklogAge(long)} to allow metered networks for old backlogs.
+     */
+    UNMETERED_ONLY("unmetered_only"),
+    /**
+     * Dispatch on networks that don't incur costs for the user, or on any network while the device is charging.
+     * See {@link DispatchPolicy#setMeteredBacklogAge(long)} to allow metered networks for old backlogs.
+     */
+    UNMETERED_OR_CHARGING("unmetered_or_charging"),
     /**
      * The dispatcher will assume being offline. This is not persisted and will revert on app restart.
      * Ensures no information is lost when tracking exceptions. See #247
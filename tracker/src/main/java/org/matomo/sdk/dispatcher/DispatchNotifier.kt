@@ -0,0 +1,75 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import org.matomo.sdk.Matomo.Companion.tag
+import timber.log.Timber
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Collects [DispatchListener] notifications and delivers them in batches on the [executor].
+ *
+ * Without listeners, recording is a no-op. Submitted events are only counted, so tracking never waits for a listener.
+ */
+internal class DispatchNotifier(private val executor: Executor = DispatchScheduler.shared) {
+    private val listeners = CopyOnWriteArrayList<DispatchListener>()
+    private val pending = ConcurrentLinkedQueue<(DispatchListener) -> Unit>()
+    private val enqueued = AtomicInteger()
+    private val flushScheduled = AtomicBoolean()
+
+    val isActive: Boolean
+        get() = listeners.isNotEmpty()
+
+    fun addListener(listener: DispatchListener) {
+        listeners.addIfAbsent(listener)
+    }
+
+    fun removeListener(listener: DispatchListener) {
+        listeners.remove(listener)
+    }
+
+    fun onEnqueued() {
+        if (isActive) enqueued.incrementAndGet()
+    }
+
+    fun post(notification: (DispatchListener) -> Unit) {
+        if (isActive) pending.add(notification)
+    }
+
+    /**
+     * Hands everything recorded so far to the listeners, as one batch.
+     */
+    fun flush() {
+        if (!isActive || (enqueued.get() == 0 && pending.isEmpty())) return
+        if (flushScheduled.compareAndSet(false, true)) executor.execute { deliver() }
+    }
+
+    private fun deliver() {
+        // Anything recorded from here on goes into the next batch
+        flushScheduled.set(false)
+        val enqueuedCount = enqueued.getAndSet(0)
+        val batch = ArrayList<(DispatchListener) -> Unit>()
+        while (true) batch.add(pending.poll() ?: break)
+
+        for (listener in listeners) {
+            try {
+                if (enqueuedCount > 0) listener.onEnqueued(enqueuedCount)
+                for (notification in batch) notification(listener)
+            } catch (e: Exception) {
+                Timber.tag(TAG).e(e, "Dispatch listener %s failed.", listener)
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = tag(DispatchNotifier::class.java)
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher;
+
+import androidx.annotation.Nullable;
+
+import org.matomo.sdk.tools.PowerState;
+
+/**
+ * Fine tuning for the {@link DispatchMode}s that take the network cost and battery into account.
+ * The policy is not persisted and will revert to its defaults on app restart.
+ */
+public class DispatchPolicy {
+    private volatile long mMeteredBacklogAge = -1;
+    private volatile float mPowerSaveIntervalFactor = 1f;
+    private volatile boolean mMeteredForPriority = true;
+
+    /**
+     * For {@link DispatchMode#UNMETERED_ONLY} and {@link DispatchMode#UNMETERED_OR_CHARGING}:
+     * Once the oldest queued event is older than this, metered networks will be used too.
+     * This prevents events from expiring in the offline cache when there is no unmetered network for a long time.
+     * <p>
+     * &gt;0 = age in ms<br>
+     * -1 = never fall back to metered networks (default)<br>
+     *
+     * @param age in milliseconds
+     */
+    public DispatchPolicy setMeteredBacklogAge(long age) {
+        mMeteredBacklogAge = age;
+        return this;
+    }
+
+    public long getMeteredBacklogAge() {
+        return mMeteredBacklogAge;
+    }
+
+    /**
+     * For {@link DispatchMode#UNMETERED_ONLY} and {@link DispatchMode#UNMETERED_OR_CHARGING}:
+     * Whether priority events, i.e. orders, goals and fatal exceptions, are sent over metered networks right away.
+     * Only they are sent, the rest of the backlog still waits for an unmetered network. Enabled by default.
+     */
+    public DispatchPolicy setMeteredForPriority(boolean meteredForPriority) {
+        mMeteredForPriority = meteredForPriority;
+        return this;
+    }
+
+    public boolean isMeteredForPriority() {
+        return mMeteredForPriority;
+    }
+
+    /**
+     * While battery saver is enabled, the dispatch interval is multiplied by this factor.
+     * Defaults to 1, i.e. the interval is not changed.
+     *
+     * @param factor values below 1 are ignored
+     */
+    public DispatchPolicy setPowerSaveIntervalFactor(float factor) {
+        mPowerSaveIntervalFactor = Math.max(1f, factor);
+        return this;
+    }
+
+    public float getPowerSaveIntervalFactor() {
+        return mPowerSaveIntervalFactor;
+    }
+
+    /**
+     * @param oldestEventTimestamp timestamp of the oldest queued event, -1 if there is none
+     * @return true if a metered network may be used for the current backlog
+     */
+    public boolean allowsMetered(long oldestEventTimestamp) {
+        final long maxAge = mMeteredBacklogAge;
+        if (maxAge < 0 || oldestEventTimestamp < 0) return false;
+        return System.currentTimeMillis() - oldestEventTimestamp >= maxAge;
+    }
+
+    /**
+     * @param interval   the configured dispatch interval in milliseconds
+     * @param powerState may be null if the power state is unknown
+     * @return the interval to actually wait between dispatches
+     */
+    public long getDispatchInterval(long interval, @Nullable PowerState powerState) {
+        final float factor = mPowerSaveIntervalFactor;
+        if (interval <= 0 || factor <= 1f || powerState == null || !powerState.isPowerSaveMode()) return interval;
+        return (long) (interval * factor);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import org.matomo.sdk.Matomo.Companion.tag
+import timber.log.Timber
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.Volatile
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Runs the dispatch cycles of any number of dispatchers on one [ScheduledExecutorService].
+ *
+ * Instead of one sleeping thread per dispatcher, there is a single pending wake-up for the earliest due cycle.
+ * When it fires, all cycles that are due within [COALESCE_WINDOW] run together, so several trackers wake the device once instead of
+ * once each. A job never runs concurrently with itself.
+ *
+ * Dispatch cycles block on the network, for as long as the connection timeout allows. Short one-off work, e.g. listener
+ * notifications or reading a cache, runs via [execute] on the [tasks] executor instead. For the [shared] scheduler these are
+ * threads of their own, so slow servers don't hold up the rest of the SDK. Either way the thread count doesn't grow with the
+ * number of trackers.
+ */
+class DispatchScheduler @JvmOverloads constructor(
+    executor: ScheduledExecutorService,
+    private val tasks: Executor = executor
+) : Executor {
+    // Replaced by the shared pool if the app shuts its executor down
+    @Volatile
+    private var executor: ScheduledExecutorService = executor
+    private val lock = Any()
+
+    // Jobs waiting for their next cycle and when it is due
+    private val scheduled = HashMap<Job, Long>()
+
+    // Jobs that are currently running and the earliest time a new cycle was requested for while they were
+    private val running = HashMap<Job, Long>()
+    private var wakeUp: ScheduledFuture<*>? = null
+    private var wakeUpAt = Long.MAX_VALUE
+
+    interface Job {
+        /**
+         * Runs one dispatch cycle.
+         *
+         * @return delay in milliseconds until the next cycle, or a negative value if there is nothing left to do
+         */
+        fun runCycle(): Long
+    }
+
+    /**
+     * Schedules a cycle for the job, if it was already scheduled the earlier cycle wins.
+     *
+     * @param delay in milliseconds, 0 to run as soon as possible
+     */
+    fun schedule(job: Job, delay: Long) {
+        val due = now() + max(0, delay)
+        synchronized(lock) {
+            val pending = running[job]
+            if (pending != null) {
+                // Picked up once the running cycle finishes
+                running[job] = if (pending == CANCELLED) due else min(pending, due)
+                return
+            }
+            val existing = scheduled[job]
+            if (existing == null || due < existing) scheduled[job] = due
+            updateWakeUp()
+        }
+    }
+
+    /**
+     * Removes any scheduled cycle of this job. A cycle that is already running will finish, but is not rescheduled.
+     */
+    fun cancel(job: Job) {
+        synchronized(lock) {
+            scheduled.remove(job)
+            if (running.containsKey(job)) running[job] = CANCELLED
+            updateWakeUp()
+        }
+    }
+
+    /**
+     * Runs a short one-off task as soon as possible, on the [tasks] executor. Must not block on the network.
+     */
+    override fun execute(task: Runnable) {
+        val guarded = Runnable {
+            try {
+                task.run()
+            } catch (e: Exception) {
+                Timber.tag(TAG).e(e, "Background task failed.")
+            }
+        }
+        try {
+            tasks.execute(guarded)
+        } catch (e: RejectedExecutionException) {
+            if (this === shared) throw e
+            Timber.tag(TAG).w(e, "Task executor rejected a task, running it on the shared pool.")
+            shared.tasks.execute(guarded)
+        }
+    }
+
+    /**
+     * Runs the action with the executor, if the executor was shut down, with the shared pool from then on.
+     */
+    private fun <T> withExecutor(action: (ScheduledExecutorService) -> T): T {
+        val current = executor
+        return try {
+            action(current)
+        } catch (e: RejectedExecutionException) {
+            if (current === sharedExecutor) throw e
+            Timber.tag(TAG).w(e, "Executor rejected a dispatch cycle, using the shared pool instead.")
+            executor = sharedExecutor
+            action(sharedExecutor)
+        }
+    }
+
+    private fun onWakeUp() {
+        val due = ArrayList<Job>()
+        synchronized(lock) {
+            wakeUp = null
+            wakeUpAt = Long.MAX_VALUE
+            val horizon = now() + COALESCE_WINDOW
+            val it = scheduled.entries.iterator()
+            while (it.hasNext()) {
+                val entry = it.next()
+                if (entry.value <= horizon) {
+                    it.remove()
+                    running[entry.key] = Long.MAX_VALUE
+                    due.add(entry.key)
+                }
+            }
+            updateWakeUp()
+        }
+        if (due.size > 1) Timber.tag(TAG).v("Running %d dispatch cycles together.", due.size)
+        for (job in due) withExecutor { it.execute { runJob(job) } }
+    }
+
+    private fun runJob(job: Job) {
+        var delay = -1L
+        try {
+            delay = job.runCycle()
+        } catch (e: Exception) {
+            Timber.tag(TAG).e(e, "Dispatch cycle failed.")
+        }
+        synchronized(lock) {
+            val requested = running.remove(job) ?: Long.MAX_VALUE
+            if (requested == CANCELLED) return
+            var next = requested
+            if (delay >= 0) next = min(next, now() + delay)
+            if (next != Long.MAX_VALUE) scheduled[job] = next
+            updateWakeUp()
+        }
+    }
+
+    // Must be called while holding the lock
+    private fun updateWakeUp() {
+        var earliest = Long.MAX_VALUE
+        for (due in scheduled.values) earliest = min(earliest, due)
+        if (earliest == wakeUpAt) return
+
+        wakeUp?.cancel(false)
+        wakeUp = null
+        wakeUpAt = earliest
+        if (earliest == Long.MAX_VALUE) return
+        wakeUp = withExecutor { it.schedule(Runnable { onWakeUp() }, max(0, earliest - now()), TimeUnit.MILLISECONDS) }
+    }
+
+    companion object {
+        private val TAG = tag(DispatchScheduler::class.java)
+
+        /**
+         * Cycles due within this many milliseconds are run together with the one that woke the scheduler.
+         */
+        const val COALESCE_WINDOW = 5 * 1000L
+        private const val CANCELLED = Long.MIN_VALUE
+        private const val SHARED_POOL_SIZE = 2
+        private const val SHARED_TASK_POOL_SIZE = 2
+        private const val KEEP_ALIVE_SECONDS = 30L
+
+        private fun now(): Long = TimeUnit.NANOSECONDS.toMillis(System.nanoTime())
+
+        /**
+         * Process-wide scheduler used by the [DefaultDispatcherFactory] and for all other background work of the SDK.
+         * Dispatch cycles and one-off tasks run on separate threads, which time out when idle, so no thread is kept around while
+         * there is nothing to do.
+         */
+        @JvmStatic
+        val shared: DispatchScheduler by lazy {
+            val tasks = ThreadPoolExecutor(
+                SHARED_TASK_POOL_SIZE, SHARED_TASK_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                LinkedBlockingQueue(), threadFactory("Matomo-worker-")
+            ).apply { allowCoreThreadTimeOut(true) }
+            DispatchScheduler(sharedExecutor, tasks)
+        }
+
+        private val sharedExecutor: ScheduledExecutorService by lazy {
+            ScheduledThreadPoolExecutor(SHARED_POOL_SIZE, threadFactory("Matomo-dispatcher-")).apply {
+                setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)
+                allowCoreThreadTimeOut(true)
+                removeOnCancelPolicy = true
+            }
+        }
+
+        private fun threadFactory(prefix: String): ThreadFactory {
+            val threadCount = AtomicInteger(0)
+            return ThreadFactory { runnable ->
+                Thread(runnable, prefix + threadCount.incrementAndGet()).apply {
+                    priority = Thread.MIN_PRIORITY
+                }
+            }
+        }
+    }
+}
@@ -56,6 +56,17 @@ public interface Dispatcher {
 
     DispatchMode getDispatchMode();
 
+    /**
+     * Fine tuning for the network and battery aware {@link DispatchMode}s.
+     * Ignored by dispatchers that don't support it.
+     */
+    default void setDispatchPolicy(DispatchPolicy dispatchPolicy) {
+    }
+
+    default DispatchPolicy getDispatchPolicy() {
+        return new DispatchPolicy();
+    }
+
     /**
      * Starts the dispatcher for one cycle if it is currently not working.
      * If the dispatcher is working it will skip the dispatch interval once.
@@ -69,6 +80,19 @@ public interface Dispatcher {
      */
     void forceDispatchBlocking();
 
+    /**
+     * Like {@link #forceDispatchBlocking()}, but returns once the timeout has passed, even if the dispatch is still in progress.
+     * Events that could not be sent in time are written to the disk cache before returning.
+     * Dispatchers that don't support a timeout block until the dispatch is complete.
+     *
+     * @param timeout in milliseconds
+     * @return true if all events were dispatched in time
+     */
+    default boolean forceDispatchBlocking(long timeout) {
+        forceDispatchBlocking();
+        return true;
+    }
+
     /**
      * To clear the dispatchers queue
      */
@@ -79,6 +103,52 @@ public interface Dispatcher {
      */
     void submit(TrackMe trackMe);
 
+    /**
+     * Submits an event that was tracked earlier, e.g. in another process and forwarded by {@link ForwardingDispatcher}.
+     *
+     * @param timestamp when the event was tracked, in milliseconds, the offline cache age counts from there
+     */
+    default void submit(TrackMe trackMe, long timestamp) {
+        submit(trackMe);
+    }
+
+    /**
+     * Submits several events at once, e.g. the impressions of a feed.
+     * They are queued together and end up in the same bulk requests, a dispatch can't take only part of them.
+     */
+    default void submitAll(List<TrackMe> trackMes) {
+        for (TrackMe trackMe : trackMes) submit(trackMe);
+    }
+
+    /**
+     * Submits copies of one event that were already encoded, e.g. one per site by {@link org.matomo.sdk.TrackerGroup}.
+     * The copies are queued together and end up in the same bulk requests.
+     *
+     * @param trackMe        the event the copies were made from
+     * @param encodedQueries one query per copy, see {@link Event#getEncodedQuery()}
+     */
+    default void submit(TrackMe trackMe, List<String> encodedQueries) {
+        for (String query : encodedQueries) submit(Event.decodeQuery(query));
+    }
+
+    /**
+     * Counters and histograms about the events that went through this dispatcher, see {@link DispatcherStats#snapshot()}.
+     * Empty for dispatchers that don't record any.
+     */
+    default DispatcherStats getStats() {
+        return new DispatcherStats();
+    }
+
+    /**
+     * Notifications are delivered in batches on a background thread, see {@link DispatchListener}.
+     * Dispatchers that don't support listeners never notify them.
+     */
+    default void addListener(DispatchListener listener) {
+    }
+
+    default void removeListener(DispatchListener listener) {
+    }
+
     /**
      * For debugging purposes
      * When this is non null then instead of sending data over the network it will be written into this list.
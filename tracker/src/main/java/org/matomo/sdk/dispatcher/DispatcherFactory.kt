@@ -4,5 +4,11 @@ import org.matomo.sdk.Tracker
 
 interface DispatcherFactory {
     fun build(tracker: Tracker): Dispatcher
+
+    /**
+     * Builds a dispatcher that sends events of the tracker to another server, for the destinations of a [org.matomo.sdk.TrackerGroup].
+     * It has a queue and offline cache of its own, no further tracker is created for it.
+     */
+    fun build(tracker: Tracker, apiUrl: String): Dispatcher = DefaultDispatcherFactory().build(tracker, apiUrl)
 }
 
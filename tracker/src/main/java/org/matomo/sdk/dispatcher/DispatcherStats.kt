@@ -0,0 +1,116 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counters and histograms of a [Dispatcher], e.g. to tune the dispatch interval or the offline cache.
+ *
+ * Recording is lock-free and [snapshot] only copies a few hundred longs, so this can be polled in production.
+ *
+ * @param queueDepth events waiting in memory
+ * @param diskCacheSize bytes used by the offline cache
+ * @param diskCacheEvictions cache containers deleted because they were too old or the cache was full
+ */
+class DispatcherStats @JvmOverloads constructor(
+    private val queueDepth: () -> Int = { 0 },
+    private val diskCacheSize: () -> Long = { 0 },
+    private val diskCacheEvictions: () -> Long = { 0 }
+) {
+    private val eventsSubmitted = AtomicLong()
+    private val eventsSent = AtomicLong()
+    private val eventsRejected = AtomicLong()
+    private val packetsSent = AtomicLong()
+    private val packetsFailed = AtomicLong()
+    private val bytesUncompressed = AtomicLong()
+    private val bytesSent = AtomicLong()
+    private val enqueueToSend = Histogram()
+    private val packetSize = Histogram()
+    private val sendDuration = Histogram()
+
+    internal fun onSubmitted() {
+        eventsSubmitted.incrementAndGet()
+    }
+
+    /**
+     * @param duration milliseconds spent sending the packet
+     */
+    internal fun onPacket(eventCount: Int, duration: Long, result: SendResult) {
+        packetSize.record(eventCount.toLong())
+        sendDuration.record(duration)
+        bytesUncompressed.addAndGet(result.payloadBytes)
+        bytesSent.addAndGet(result.transferredBytes)
+    }
+
+    /**
+     * A packet that the server did not process at all and that is retried as a whole.
+     */
+    internal fun onPacketFailed() {
+        packetsFailed.incrementAndGet()
+    }
+
+    internal fun onPacketSent(rejected: Int) {
+        packetsSent.incrementAndGet()
+        eventsRejected.addAndGet(rejected.toLong())
+    }
+
+    /**
+     * @param latency milliseconds between tracking and sending the event
+     */
+    internal fun onEventSent(latency: Long) {
+        eventsSent.incrementAndGet()
+        enqueueToSend.record(latency)
+    }
+
+    fun snapshot(): Snapshot = Snapshot(
+        eventsSubmitted = eventsSubmitted.get(),
+        eventsSent = eventsSent.get(),
+        eventsRejected = eventsRejected.get(),
+        packetsSent = packetsSent.get(),
+        packetsFailed = packetsFailed.get(),
+        bytesUncompressed = bytesUncompressed.get(),
+        bytesSent = bytesSent.get(),
+        queueDepth = queueDepth(),
+        diskCacheSize = diskCacheSize(),
+        diskCacheEvictions = diskCacheEvictions(),
+        enqueueToSend = enqueueToSend.snapshot(),
+        packetSize = packetSize.snapshot(),
+        sendDuration = sendDuration.snapshot()
+    )
+
+    /**
+     * @property eventsRejected events the server reported as invalid, these are dropped
+     * @property packetsFailed attempts that have to be retried, i.e. the retries so far
+     * @property bytesUncompressed request payload before gzip
+     * @property bytesSent request payload as sent
+     * @property enqueueToSend milliseconds between tracking and sending an event
+     * @property packetSize events per packet
+     * @property sendDuration milliseconds per send attempt
+     */
+    class Snapshot internal constructor(
+        val eventsSubmitted: Long,
+        val eventsSent: Long,
+        val eventsRejected: Long,
+        val packetsSent: Long,
+        val packetsFailed: Long,
+        val bytesUncompressed: Long,
+        val bytesSent: Long,
+        val queueDepth: Int,
+        val diskCacheSize: Long,
+        val diskCacheEvictions: Long,
+        val enqueueToSend: Histogram.Snapshot,
+        val packetSize: Histogram.Snapshot,
+        val sendDuration: Histogram.Snapshot
+    ) {
+        override fun toString(): String = "DispatcherStats(" +
+                "submitted=$eventsSubmitted, sent=$eventsSent, rejected=$eventsRejected, " +
+                "packets=$packetsSent, failed=$packetsFailed, bytes=$bytesUncompressed/$bytesSent, " +
+                "queue=$queueDepth, disk=$diskCacheSize, evictions=$diskCacheEvictions, " +
+                "latency=[$enqueueToSend], packetSize=[$packetSize], sendDuration=[$sendDuration])"
+    }
+}
@@ -1,8 +1,12 @@
 package org.matomo.sdk.dispatcher;
 
 
+import androidx.annotation.Nullable;
+
 import org.matomo.sdk.Matomo;
+import org.matomo.sdk.TrackMe;
 
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.Map;
 
@@ -12,9 +16,19 @@ public class Event {
     private static final String TAG = Matomo.tag(Event.class);
     private final long mTimestamp;
     private final String mQuery;
+    private final boolean mPriority;
+    private String mBatchId;
 
     public Event(Map<String, String> eventData) {
-        this(urlEncodeUTF8(eventData));
+        this(eventData, false);
+    }
+
+    public Event(Map<String, String> eventData, boolean priority) {
+        this(System.currentTimeMillis(), eventData, priority);
+    }
+
+    public Event(long timestamp, Map<String, String> eventData, boolean priority) {
+        this(timestamp, urlEncodeUTF8(eventData), priority);
     }
 
     public Event(String query) {
@@ -22,14 +36,45 @@ public class Event {
     }
 
     public Event(long timestamp, String query) {
+        this(timestamp, query, false);
+    }
+
+    public Event(long timestamp, String query, boolean priority) {
+        this(timestamp, query, priority, null);
+    }
+
+    public Event(long timestamp, String query, boolean priority, @Nullable String batchId) {
         this.mTimestamp = timestamp;
         this.mQuery = query;
+        this.mPriority = priority;
+        this.mBatchId = batchId;
     }
 
     public long getTimeStamp() {
         return mTimestamp;
     }
 
+    /**
+     * Priority events, e.g. orders, skip ahead of the regular backlog and are dispatched right away.
+     */
+    public boolean isPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Set when the event is first packed, a retry sends it again in a packet with the same id.
+     *
+     * @return id of the packet this event was sent in, null if it was not sent yet
+     */
+    @Nullable
+    public String getBatchId() {
+        return mBatchId;
+    }
+
+    void setBatchId(@Nullable String batchId) {
+        mBatchId = batchId;
+    }
+
     public String getEncodedQuery() {
         return mQuery;
     }
@@ -76,15 +121,46 @@ public class Event {
      * URL encodes a key-value map
      */
     private static String urlEncodeUTF8(Map<String, String> map) {
+        String params = encodeParams(map);
+        return params.isEmpty() ? "" : "?" + params;
+    }
+
+    /**
+     * Encodes the parameters like {@link #Event(Map)} does, but without the leading '?', so queries can be assembled from parts.
+     */
+    public static String encodeParams(Map<String, String> map) {
         StringBuilder sb = new StringBuilder(100);
-        sb.append('?');
         for (Map.Entry<String, String> entry : map.entrySet()) {
-            sb.append(urlEncodeUTF8(entry.getKey()));
-            sb.append('=');
-            sb.append(urlEncodeUTF8(entry.getValue()));
-            sb.append('&');
+            if (sb.length() > 0) sb.append('&');
+            appendParam(sb, entry.getKey(), entry.getValue());
         }
+        return sb.toString();
+    }
+
+    /**
+     * Appends one encoded "key=value" pair, see {@link #encodeParams(Map)}.
+     */
+    public static void appendParam(StringBuilder sb, String key, String value) {
+        sb.append(urlEncodeUTF8(key));
+        sb.append('=');
+        sb.append(urlEncodeUTF8(value));
+    }
 
-        return sb.substring(0, sb.length() - 1);
+    /**
+     * Reverses {@link #getEncodedQuery()}.
+     */
+    public static TrackMe decodeQuery(String query) {
+        TrackMe trackMe = new TrackMe();
+        int start = query.startsWith("?") ? 1 : 0;
+        for (String pair : query.substring(start).split("&")) {
+            int split = pair.indexOf('=');
+            if (split == -1) continue;
+            try {
+                trackMe.set(URLDecoder.decode(pair.substring(0, split), "UTF-8"), URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+            } catch (Exception e) {
+                Timber.tag(TAG).e(e, "Cannot decode %s", pair);
+            }
+        }
+        return trackMe;
     }
 }
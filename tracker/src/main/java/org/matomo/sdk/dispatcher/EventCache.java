@@ -13,6 +13,8 @@ import timber.log.Timber;
 public class EventCache {
     private static final String TAG = Matomo.tag(EventCache.class);
     private final LinkedBlockingDeque<Event> mQueue = new LinkedBlockingDeque<>();
+    // Drained before anything in mQueue
+    private final LinkedBlockingDeque<Event> mPriorityQueue = new LinkedBlockingDeque<>();
     private final EventDiskCache mDiskCache;
 
     public EventCache(EventDiskCache cache) {
@@ -20,20 +22,70 @@ public class EventCache {
     }
 
     public void add(Event event) {
-        mQueue.add(event);
+        queueFor(event).add(event);
     }
 
+    private LinkedBlockingDeque<Event> queueFor(Event event) {
+        return event.isPriority() ? mPriorityQueue : mQueue;
+    }
+
+    /**
+     * Priority events come first, followed by all other events.
+     */
     public void drainTo(List<Event> drainedEvents) {
+        mPriorityQueue.drainTo(drainedEvents);
         mQueue.drainTo(drainedEvents);
     }
 
     public void clear() {
         mDiskCache.uncache();
+        mPriorityQueue.clear();
         mQueue.clear();
     }
 
     public boolean isEmpty() {
-        return mQueue.isEmpty() && mDiskCache.isEmpty();
+        return mPriorityQueue.isEmpty() && mQueue.isEmpty() && mDiskCache.isEmpty();
+    }
+
+    /**
+     * @return number of events waiting in memory
+     */
+    public int size() {
+        return mPriorityQueue.size() + mQueue.size();
+    }
+
+    public EventDiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * @return true if priority events are waiting, in memory or on disk
+     */
+    public boolean hasPriorityEvents() {
+        return !mPriorityQueue.isEmpty() || mDiskCache.hasPriorityEvents();
+    }
+
+    /**
+     * Drains only the priority events, including those on disk, all other events stay where they are.
+     */
+    public void drainPriorityTo(List<Event> drainedEvents) {
+        final List<Event> uncache = mDiskCache.uncachePriority();
+        ListIterator<Event> it = uncache.listIterator(uncache.size());
+        // Older than what is in memory
+        while (it.hasPrevious()) mPriorityQueue.offerFirst(it.previous());
+        mPriorityQueue.drainTo(drainedEvents);
+    }
+
+    /**
+     * @return timestamp of the oldest event waiting for dispatch, in memory or on disk, -1 if there is none
+     */
+    public long getOldestTimestamp() {
+        long oldest = mDiskCache.getOldestTimestamp();
+        Event head = mQueue.peekFirst();
+        if (head != null && (oldest == -1 || head.getTimeStamp() < oldest)) oldest = head.getTimeStamp();
+        head = mPriorityQueue.peekFirst();
+        if (head != null && (oldest == -1 || head.getTimeStamp() < oldest)) oldest = head.getTimeStamp();
+        return oldest;
     }
 
     public boolean updateState(boolean online) {
@@ -42,21 +94,27 @@ public class EventCache {
             ListIterator<Event> it = uncache.listIterator(uncache.size());
             while (it.hasPrevious()) {
                 // Anything from  disk cache is older then what the queue could currently contain.
-                mQueue.offerFirst(it.previous());
+                Event event = it.previous();
+                queueFor(event).offerFirst(event);
             }
             Timber.tag(TAG).d("Switched state to ONLINE, uncached %d events from disk.", uncache.size());
-        } else if (!mQueue.isEmpty()) {
+        } else if (!mQueue.isEmpty() || !mPriorityQueue.isEmpty()) {
             List<Event> toCache = new ArrayList<>();
-            mQueue.drainTo(toCache);
+            drainTo(toCache);
             mDiskCache.cache(toCache);
             Timber.tag(TAG).d("Switched state to OFFLINE, caching %d events to disk.", toCache.size());
         }
-        return online && !mQueue.isEmpty();
+        return online && (!mQueue.isEmpty() || !mPriorityQueue.isEmpty());
     }
 
+    /**
+     * Puts events that could not be sent back in front of the queue, in the order they are in.
+     */
     public void requeue(List<Event> events) {
-        for (Event e : events) {
-            mQueue.offerFirst(e);
+        ListIterator<Event> it = events.listIterator(events.size());
+        while (it.hasPrevious()) {
+            Event event = it.previous();
+            queueFor(event).offerFirst(event);
         }
     }
 
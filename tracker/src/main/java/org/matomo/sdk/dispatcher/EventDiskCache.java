@@ -26,26 +26,72 @@ import timber.log.Timber;
 public class EventDiskCache {
     private static final String TAG = Matomo.tag(EventDiskCache.class);
     private static final String CACHE_DIR_NAME = "piwik_cache";
-    private static final String VERSION = "1";
+    // "1": timestamp and query per line, "2": timestamp, batch id and query per line
+    private static final String VERSION = "2";
+    private static final String LEGACY_VERSION = "1";
+    private static final String NO_BATCH_ID = "-";
+    private static final String CONTAINER_PREFIX = "events_";
+    private static final String PRIORITY_CONTAINER_PREFIX = "priority_";
     private final LinkedBlockingQueue<File> mEventContainer = new LinkedBlockingQueue<>();
     private final File mCacheDir;
     private final long mMaxAge;
     private final long mMaxSize;
-    private long mCurrentSize = 0;
+    // Written under the instance lock, volatile so the stats can read it without waiting for disk IO
+    private volatile long mCurrentSize = 0;
+    private volatile long mEvictions = 0;
     private boolean mDelayedClear = false;
+    private boolean mLoaded = false;
 
     public EventDiskCache(Tracker tracker) {
+        this(tracker, getCacheDir(tracker, getHost(tracker.getAPIUrl())));
+    }
+
+    /**
+     * For the tracker's events that go to another server, see {@link DispatcherFactory#build(Tracker, String)}.
+     * The cache directory is per tracker and server, the default one is shared by all trackers on the same host.
+     */
+    public EventDiskCache(Tracker tracker, String apiUrl) {
+        this(tracker, getCacheDir(tracker, getHost(apiUrl) + "_" + Integer.toHexString((tracker.getName() + " " + apiUrl).hashCode())));
+    }
+
+    /**
+     * For events that a secondary process could not forward to the owner process yet, see {@link ForwardingDispatcher}.
+     * The directory is per process and forwarding name, apart from the caches of the owner process.
+     */
+    public static EventDiskCache forForwarding(Tracker tracker, String processName, String name) {
+        String dirName = "forward_" + processName.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + Integer.toHexString(name.hashCode());
+        return new EventDiskCache(tracker, getCacheDir(tracker, dirName));
+    }
+
+    private EventDiskCache(Tracker tracker, File cacheDir) {
         mMaxAge = tracker.getOfflineCacheAge();
         mMaxSize = tracker.getOfflineCacheSize();
-        File baseDir = new File(tracker.getMatomo().getContext().getCacheDir(), CACHE_DIR_NAME);
+        mCacheDir = cacheDir;
+    }
+
+    private static File getCacheDir(Tracker tracker, String name) {
+        return new File(new File(tracker.getMatomo().getContext().getCacheDir(), CACHE_DIR_NAME), name);
+    }
+
+    private static String getHost(String apiUrl) {
         try {
-            mCacheDir = new File(baseDir, new URL(tracker.getAPIUrl()).getHost());
+            return new URL(apiUrl).getHost();
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * Stored containers are only listed on first use, which keeps disk IO out of the tracker's construction.
+     * Must be called from a synchronized method.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) return;
+        mLoaded = true;
         File[] storedContainers = mCacheDir.listFiles();
         if (storedContainers != null) {
-            Arrays.sort(storedContainers);
+            // By age, regardless of the container type
+            Arrays.sort(storedContainers, (c1, c2) -> Long.compare(getContainerTimestamp(c1), getContainerTimestamp(c2)));
             for (File container : storedContainers) {
                 mCurrentSize += container.length();
                 mEventContainer.add(container);
@@ -60,23 +106,20 @@ public class EventDiskCache {
             Timber.tag(TAG).d("Caching is disabled.");
             while (!mEventContainer.isEmpty()) {
                 File head = mEventContainer.poll();
+                mCurrentSize -= head.length();
                 if (head.delete()) {
                     Timber.tag(TAG).e("Deleted cache container %s", head.getPath());
                 }
+                mEvictions++;
             }
         } else if (mMaxAge > 0) {
             final Iterator<File> iterator = mEventContainer.iterator();
             while (iterator.hasNext()) {
                 File head = iterator.next();
-                long timestamp;
-                try {
-                    final String[] split = head.getName().split("_");
-                    timestamp = Long.parseLong(split[1]);
-                } catch (Exception e) {
-                    Timber.tag(TAG).e(e);
-                    timestamp = 0;
-                }
+                long timestamp = getContainerTimestamp(head);
                 if (timestamp < (System.currentTimeMillis() - mMaxAge)) {
+                    mCurrentSize -= head.length();
+                    mEvictions++;
                     if (head.delete()) Timber.tag(TAG).e("Deleted cache container %s", head.getPath());
                     else Timber.tag(TAG).e("Failed to delete cache container %s", head.getPath());
                     iterator.remove();
@@ -87,19 +130,67 @@ public class EventDiskCache {
             }
         }
         if (mMaxSize != 0) {
-            final Iterator<File> iterator = mEventContainer.iterator();
-            while (iterator.hasNext() && mCurrentSize > mMaxSize) {
-                File head = iterator.next();
-                mCurrentSize -= head.length();
-                iterator.remove();
-                if (head.delete()) Timber.tag(TAG).e("Deleted cache container %s", head.getPath());
-                else Timber.tag(TAG).e("Failed to delete cache container %s", head.getPath());
-            }
+            // Regular events are evicted first, priority events only if that was not enough.
+            evictOldest(false);
+            evictOldest(true);
         }
         long stopTime = System.currentTimeMillis();
         Timber.tag(TAG).d("Cache check took %dms", (stopTime - startTime));
     }
 
+    // Must be called from a synchronized method
+    private void evictOldest(boolean includePriority) {
+        final Iterator<File> iterator = mEventContainer.iterator();
+        while (iterator.hasNext() && mCurrentSize > mMaxSize) {
+            File head = iterator.next();
+            if (!includePriority && isPriorityContainer(head)) continue;
+            mCurrentSize -= head.length();
+            mEvictions++;
+            iterator.remove();
+            if (head.delete()) Timber.tag(TAG).e("Deleted cache container %s", head.getPath());
+            else Timber.tag(TAG).e("Failed to delete cache container %s", head.getPath());
+        }
+    }
+
+    private static boolean isPriorityContainer(File container) {
+        return container.getName().startsWith(PRIORITY_CONTAINER_PREFIX);
+    }
+
+    private static long getContainerTimestamp(File container) {
+        try {
+            final String[] split = container.getName().split("_");
+            return Long.parseLong(split[1]);
+        } catch (Exception e) {
+            Timber.tag(TAG).e(e);
+            return 0;
+        }
+    }
+
+    /**
+     * Containers are named after their newest event, so the oldest cached event is at least as old as the returned value.
+     *
+     * @return timestamp of the oldest container or -1 if the cache is empty
+     */
+    public synchronized long getOldestTimestamp() {
+        ensureLoaded();
+        File head = mEventContainer.peek();
+        return head != null ? getContainerTimestamp(head) : -1;
+    }
+
+    /**
+     * @return bytes used by the cache containers, 0 until the cache was first used
+     */
+    public long getCurrentSize() {
+        return mCurrentSize;
+    }
+
+    /**
+     * @return number of containers deleted because they were too old or the cache was full
+     */
+    public long getEvictions() {
+        return mEvictions;
+    }
+
     private boolean isCachingEnabled() {
         return mMaxAge >= 0;
     }
@@ -107,17 +198,25 @@ public class EventDiskCache {
     public synchronized void cache(@NonNull List<Event> toCache) {
         if (!isCachingEnabled() || toCache.isEmpty()) return;
 
+        ensureLoaded();
         checkCacheLimits();
 
         long startTime = System.currentTimeMillis();
 
-        File container = writeEventFile(toCache);
-        if (container != null) {
-            mEventContainer.add(container);
-            mCurrentSize += container.length();
+        List<Event> priority = new ArrayList<>();
+        List<Event> regular = new ArrayList<>();
+        for (Event event : toCache) {
+            if (event.isPriority()) priority.add(event);
+            else regular.add(event);
+        }
+        for (File container : Arrays.asList(writeEventFile(priority, PRIORITY_CONTAINER_PREFIX), writeEventFile(regular, CONTAINER_PREFIX))) {
+            if (container != null) {
+                mEventContainer.add(container);
+                mCurrentSize += container.length();
+            }
         }
         long stopTime = System.currentTimeMillis();
-        Timber.tag(TAG).d("Caching of %d events took %dms (%s)", toCache.size(), (stopTime - startTime), container);
+        Timber.tag(TAG).d("Caching of %d events took %dms (%d priority)", toCache.size(), (stopTime - startTime), priority.size());
     }
 
     @NonNull
@@ -125,10 +224,12 @@ public class EventDiskCache {
         List<Event> events = new ArrayList<>();
         if (!isCachingEnabled()) return events;
 
+        ensureLoaded();
         long startTime = System.currentTimeMillis();
         while (!mEventContainer.isEmpty()) {
             File head = mEventContainer.poll();
             if (head != null) {
+                mCurrentSize -= head.length();
                 events.addAll(readEventFile(head));
                 if (!head.delete()) Timber.tag(TAG).e("Failed to delete cache container %s", head.getPath());
             }
@@ -141,7 +242,41 @@ public class EventDiskCache {
         return events;
     }
 
+    /**
+     * @return true if priority events are cached
+     */
+    public synchronized boolean hasPriorityEvents() {
+        ensureLoaded();
+        for (File container : mEventContainer) {
+            if (isPriorityContainer(container)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Like {@link #uncache()}, but only takes the priority events and leaves all others on disk.
+     */
+    @NonNull
+    public synchronized List<Event> uncachePriority() {
+        List<Event> events = new ArrayList<>();
+        if (!isCachingEnabled()) return events;
+
+        ensureLoaded();
+        final Iterator<File> iterator = mEventContainer.iterator();
+        while (iterator.hasNext()) {
+            File container = iterator.next();
+            if (!isPriorityContainer(container)) continue;
+            iterator.remove();
+            mCurrentSize -= container.length();
+            events.addAll(readEventFile(container));
+            if (!container.delete()) Timber.tag(TAG).e("Failed to delete cache container %s", container.getPath());
+        }
+        Timber.tag(TAG).d("Uncached %d priority events", events.size());
+        return events;
+    }
+
     public synchronized boolean isEmpty() {
+        ensureLoaded();
         if (!mDelayedClear) {
             checkCacheLimits();
             mDelayedClear = true;
@@ -160,8 +295,10 @@ public class EventDiskCache {
             BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
 
             String versionLine = bufferedReader.readLine();
-            if (!VERSION.equals(versionLine)) return events;
+            final boolean legacy = LEGACY_VERSION.equals(versionLine);
+            if (!legacy && !VERSION.equals(versionLine)) return events;
 
+            final boolean priority = isPriorityContainer(file);
             final long cutoff = System.currentTimeMillis() - mMaxAge;
             String line;
             while ((line = bufferedReader.readLine()) != null) {
@@ -172,8 +309,17 @@ public class EventDiskCache {
                     long timestamp = Long.parseLong(line.substring(0, split));
                     if (mMaxAge > 0 && timestamp < cutoff) continue;
 
-                    String query = line.substring(split + 1);
-                    events.add(new Event(timestamp, query));
+                    String batchId = null;
+                    int queryStart = split + 1;
+                    if (!legacy) {
+                        final int idSplit = line.indexOf(" ", queryStart);
+                        if (idSplit == -1) continue;
+                        batchId = line.substring(queryStart, idSplit);
+                        if (NO_BATCH_ID.equals(batchId)) batchId = null;
+                        queryStart = idSplit + 1;
+                    }
+                    String query = line.substring(queryStart);
+                    events.add(new Event(timestamp, query, priority, batchId));
                 } catch (Exception e) { Timber.tag(TAG).e(e); }
             }
         } catch (IOException e) {
@@ -189,13 +335,13 @@ public class EventDiskCache {
     }
 
     @Nullable
-    private File writeEventFile(@NonNull List<Event> events) {
+    private File writeEventFile(@NonNull List<Event> events, String prefix) {
         if (events.isEmpty()) return null;
 
         if (!mCacheDir.exists() && !mCacheDir.mkdirs())
             Timber.tag(TAG).e("Failed to make disk-cache dir '%s'", mCacheDir);
 
-        File newFile = new File(mCacheDir, "events_" + events.get(events.size() - 1).getTimeStamp());
+        File newFile = new File(mCacheDir, prefix + events.get(events.size() - 1).getTimeStamp());
         FileWriter out = null;
         boolean dataWritten = false;
         try {
@@ -205,7 +351,10 @@ public class EventDiskCache {
             final long cutoff = System.currentTimeMillis() - mMaxAge;
             for (Event event : events) {
                 if (mMaxAge > 0 && event.getTimeStamp() < cutoff) continue;
-                out.append(String.valueOf(event.getTimeStamp())).append(" ").append(event.getEncodedQuery()).append("\n");
+                final String batchId = event.getBatchId();
+                out.append(String.valueOf(event.getTimeStamp())).append(" ")
+                        .append(batchId != null ? batchId : NO_BATCH_ID).append(" ")
+                        .append(event.getEncodedQuery()).append("\n");
                 dataWritten = true;
             }
         } catch (IOException e) {
@@ -0,0 +1,125 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.database.Cursor
+import android.net.Uri
+import android.os.Binder
+import android.os.Bundle
+import android.os.Process
+import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.TrackMe
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Receives events that other processes of the same app forward via [ForwardingDispatcher] and hands them to the dispatcher of the
+ * tracker with the same name in this process. See [MultiProcessDispatcherFactory] for the setup.
+ *
+ * Only [call] is supported, all other [ContentProvider] methods are stubs.
+ */
+class EventForwardingProvider : ContentProvider() {
+
+    override fun onCreate(): Boolean = true
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
+        // Not meant to be exported, but don't take events from other apps even if it is.
+        if (Binder.getCallingUid() != Process.myUid()) {
+            Timber.tag(TAG).w("Rejecting call from uid %d.", Binder.getCallingUid())
+            return null
+        }
+        val dispatcher = arg?.let { dispatchers[it] }
+        val result = Bundle()
+        if (dispatcher == null) {
+            Timber.tag(TAG).d("No dispatcher registered for tracker '%s'.", arg)
+            result.putBoolean(KEY_ACCEPTED, false)
+            return result
+        }
+        when (method) {
+            METHOD_SUBMIT -> {
+                val events = extras?.getStringArrayList(KEY_EVENTS)
+                val timestamps = extras?.getLongArray(KEY_TIMESTAMPS)
+                if (events != null) {
+                    for (i in events.indices) {
+                        // Keeps the time it was tracked at, not when it arrived here
+                        if (timestamps != null && i < timestamps.size) dispatcher.submit(decode(events[i]), timestamps[i])
+                        else dispatcher.submit(decode(events[i]))
+                    }
+                    Timber.tag(TAG).v("Received %d events for '%s'.", events.size, arg)
+                }
+            }
+
+            METHOD_DISPATCH -> dispatcher.forceDispatch()
+            else -> {
+                result.putBoolean(KEY_ACCEPTED, false)
+                return result
+            }
+        }
+        result.putBoolean(KEY_ACCEPTED, true)
+        return result
+    }
+
+    override fun query(uri: Uri, projection: Array<out String>?, selection: String?, selectionArgs: Array<out String>?, sortOrder: String?): Cursor? =
+        null
+
+    override fun getType(uri: Uri): String? = null
+
+    override fun insert(uri: Uri, values: ContentValues?): Uri? = null
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int = 0
+
+    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<out String>?): Int = 0
+
+    companion object {
+        private val TAG = tag(EventForwardingProvider::class.java)
+        internal const val METHOD_SUBMIT = "submit"
+        internal const val METHOD_DISPATCH = "dispatch"
+        internal const val KEY_EVENTS = "events"
+        internal const val KEY_TIMESTAMPS = "timestamps"
+        internal const val KEY_ACCEPTED = "accepted"
+
+        // Tracker name to the dispatcher that owns its network pipeline in this process
+        private val dispatchers = ConcurrentHashMap<String, Dispatcher>()
+
+        /**
+         * Lets forwarded events of the given tracker be sent by this dispatcher.
+         */
+        @JvmStatic
+        fun register(trackerName: String, dispatcher: Dispatcher) {
+            dispatchers[trackerName] = dispatcher
+        }
+
+        @JvmStatic
+        fun unregister(trackerName: String) {
+            dispatchers.remove(trackerName)
+        }
+
+        /**
+         * Events are forwarded as query strings, "key=value" pairs separated by "&" and URL encoded.
+         */
+        internal fun encode(trackMe: TrackMe): String {
+            val sb = StringBuilder()
+            for ((key, value) in trackMe.toMap()) {
+                if (sb.isNotEmpty()) sb.append('&')
+                sb.append(Uri.encode(key)).append('=').append(Uri.encode(value))
+            }
+            return sb.toString()
+        }
+
+        internal fun decode(event: String): TrackMe {
+            val trackMe = TrackMe()
+            for (pair in event.split('&')) {
+                val split = pair.indexOf('=')
+                if (split == -1) continue
+                trackMe.set(Uri.decode(pair.substring(0, split)), Uri.decode(pair.substring(split + 1)))
+            }
+            return trackMe
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import org.matomo.sdk.Tracker
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Future
+import java.util.concurrent.ScheduledExecutorService
+
+/**
+ * Builds dispatchers that run on an executor owned by the app, instead of the SDK's own threads.
+ *
+ * All dispatchers built by this factory share the executor and are scoped to this factory:
+ * [shutdown] stops all of them, without touching the executor itself or other users of it.
+ *
+ * ```
+ * matomo.setDispatcherFactory(ExecutorDispatcherFactory(appExecutor))
+ * ```
+ */
+class ExecutorDispatcherFactory(private val executor: ScheduledExecutorService) : DefaultDispatcherFactory(DispatchScheduler(executor)) {
+    private val dispatchers = CopyOnWriteArrayList<DefaultDispatcher>()
+
+    override fun build(tracker: Tracker): Dispatcher {
+        val dispatcher = super.build(tracker) as DefaultDispatcher
+        dispatchers.add(dispatcher)
+        return dispatcher
+    }
+
+    override fun build(tracker: Tracker, apiUrl: String): Dispatcher {
+        val dispatcher = super.build(tracker, apiUrl) as DefaultDispatcher
+        dispatchers.add(dispatcher)
+        return dispatcher
+    }
+
+    /**
+     * Dispatches the events of all trackers using this factory on the executor.
+     *
+     * @return completes once every dispatcher has finished one dispatch cycle
+     */
+    fun flush(): Future<*> {
+        return executor.submit {
+            for (dispatcher in dispatchers) dispatcher.forceDispatchBlocking()
+        }
+    }
+
+    /**
+     * Stops all dispatchers built by this factory. Their pending events are kept in the disk cache.
+     * The executor is not shut down, it belongs to the app.
+     */
+    fun shutdown() {
+        for (dispatcher in dispatchers) dispatcher.shutdown()
+        dispatchers.clear()
+    }
+}
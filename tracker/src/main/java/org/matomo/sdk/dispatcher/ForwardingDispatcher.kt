@@ -0,0 +1,263 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import android.content.ContentResolver
+import android.net.Uri
+import android.os.Bundle
+import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.TrackMe
+import timber.log.Timber
+import java.util.concurrent.LinkedBlockingDeque
+import kotlin.concurrent.Volatile
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Hands events to the [EventForwardingProvider] in the process that owns the network pipeline, instead of sending them itself.
+ *
+ * Events are collected for [FORWARD_DELAY] and then forwarded together, with the time they were tracked at.
+ * At most [MAX_PENDING] events are kept in memory. Events that could not be forwarded yet, e.g. because the owner has not registered
+ * its tracker, go to the [diskCache] of this process and are retried from there. Without one, they are kept in memory and the oldest
+ * are dropped once the limit is reached. As the timestamps are kept, events spilled to disk may be forwarded after newer ones.
+ */
+class ForwardingDispatcher @JvmOverloads constructor(
+    private val contentResolver: ContentResolver,
+    private val uri: Uri,
+    private val trackerName: String,
+    private val packetFactory: PacketFactory,
+    private val scheduler: DispatchScheduler,
+    private val diskCache: EventDiskCache? = null
+) : Dispatcher {
+    // Queries encoded for forwarding, see EventForwardingProvider.encode
+    private val pending = LinkedBlockingDeque<Event>(MAX_PENDING)
+    private val forwardLock = Any()
+
+    // Sending is counted by the owner process, only the forwarding queue and its disk cache are tracked here.
+    private val stats = DispatcherStats({ pending.size }, { diskCache?.currentSize ?: 0 }, { diskCache?.evictions ?: 0 })
+    private val notifier = DispatchNotifier()
+
+    @Volatile
+    private var timeOut = Dispatcher.DEFAULT_CONNECTION_TIMEOUT
+
+    @Volatile
+    private var dispatchInterval = Dispatcher.DEFAULT_DISPATCH_INTERVAL
+
+    @Volatile
+    private var dispatchGzipped = false
+
+    @Volatile
+    private var dispatchMode = DispatchMode.ALWAYS
+
+    @Volatile
+    private var dispatchPolicy = DispatchPolicy()
+
+    @Volatile
+    private var retryCounter = 0
+
+    @Volatile
+    private var dryRunTarget: MutableList<Packet>? = null
+
+    private val job = object : DispatchScheduler.Job {
+        override fun runCycle(): Long {
+            if (forward()) {
+                retryCounter = 0
+                return -1
+            }
+            retryCounter++
+            return forwardDelay()
+        }
+    }
+
+    init {
+        // Events a previous run of this process could not forward, the cache is only read on the scheduler
+        if (diskCache != null) scheduler.schedule(job, FORWARD_DELAY)
+    }
+
+    // Backs off while the owner process does not accept events
+    private fun forwardDelay(): Long = min(max(1, retryCounter) * FORWARD_DELAY, MAX_RETRY_DELAY)
+
+    /**
+     * Network related settings apply to the owner process, these are only kept to satisfy the interface.
+     */
+    override fun getConnectionTimeOut(): Int = timeOut
+
+    override fun setConnectionTimeOut(timeOut: Int) {
+        this.timeOut = timeOut
+    }
+
+    override fun setDispatchInterval(dispatchInterval: Long) {
+        this.dispatchInterval = dispatchInterval
+    }
+
+    override fun getDispatchInterval(): Long = dispatchInterval
+
+    override fun setDispatchGzipped(dispatchGzipped: Boolean) {
+        this.dispatchGzipped = dispatchGzipped
+    }
+
+    override fun getDispatchGzipped(): Boolean = dispatchGzipped
+
+    override fun setDispatchMode(dispatchMode: DispatchMode) {
+        this.dispatchMode = dispatchMode
+    }
+
+    override fun getDispatchMode(): DispatchMode = dispatchMode
+
+    override fun setDispatchPolicy(dispatchPolicy: DispatchPolicy) {
+        this.dispatchPolicy = dispatchPolicy
+    }
+
+    override fun getDispatchPolicy(): DispatchPolicy = dispatchPolicy
+
+    override fun forceDispatch(): Boolean {
+        scheduler.schedule(job, 0)
+        return true
+    }
+
+    override fun forceDispatchBlocking() {
+        if (forward()) call(EventForwardingProvider.METHOD_DISPATCH, null)
+    }
+
+    /**
+     * Forwards pending events on the calling thread, the owner process takes care of dispatching them.
+     * The timeout does not apply, handing events over is a single local call.
+     */
+    override fun forceDispatchBlocking(timeout: Long): Boolean {
+        return forward() && call(EventForwardingProvider.METHOD_DISPATCH, null)
+    }
+
+    override fun clear() {
+        pending.clear()
+        diskCache?.let { synchronized(forwardLock) { it.uncache() } }
+    }
+
+    override fun submit(trackMe: TrackMe) {
+        val event = Event(System.currentTimeMillis(), EventForwardingProvider.encode(trackMe))
+        while (!pending.offer(event)) spill()
+        stats.onSubmitted()
+        notifier.onEnqueued()
+        // The process is about to die, don't wait for more events.
+        if (dispatchMode == DispatchMode.EXCEPTION) forward()
+        else scheduler.schedule(job, forwardDelay())
+    }
+
+    /**
+     * @return true if nothing is pending anymore
+     */
+    private fun forward(): Boolean {
+        try {
+            return forwardPending()
+        } finally {
+            notifier.flush()
+        }
+    }
+
+    /**
+     * Makes room in memory while the owner process does not accept events. Writing to disk happens on the scheduler, not on the
+     * tracking thread.
+     */
+    private fun spill() {
+        if (diskCache == null) {
+            if (pending.poll() != null) Timber.tag(TAG).w("Forwarding queue is full, dropped the oldest event.")
+            return
+        }
+        val events = ArrayList<Event>()
+        pending.drainTo(events)
+        if (events.isNotEmpty()) scheduler.execute { synchronized(forwardLock) { diskCache.cache(events) } }
+    }
+
+    private fun forwardPending(): Boolean {
+        synchronized(forwardLock) {
+            val events = ArrayList<Event>()
+            // Older than anything in memory
+            if (diskCache != null && !diskCache.isEmpty) events.addAll(diskCache.uncache())
+            pending.drainTo(events)
+            if (events.isEmpty()) return true
+
+            val target = dryRunTarget
+            if (target != null) {
+                val decoded = events.map { Event(it.timeStamp, EventForwardingProvider.decode(it.encodedQuery).toMap(), false) }
+                target.addAll(packetFactory.buildPackets(decoded))
+                return true
+            }
+
+            // In chunks, a binder transaction has a size limit
+            var forwarded = 0
+            while (forwarded < events.size) {
+                val chunk = events.subList(forwarded, min(forwarded + MAX_PENDING, events.size))
+                val extras = Bundle()
+                extras.putStringArrayList(EventForwardingProvider.KEY_EVENTS, chunk.mapTo(ArrayList(chunk.size)) { it.encodedQuery })
+                extras.putLongArray(EventForwardingProvider.KEY_TIMESTAMPS, LongArray(chunk.size) { chunk[it].timeStamp })
+                if (!call(EventForwardingProvider.METHOD_SUBMIT, extras)) break
+                forwarded += chunk.size
+            }
+            if (forwarded > 0) Timber.tag(TAG).d("Forwarded %d events.", forwarded)
+            if (forwarded == events.size) return true
+
+            val remaining = events.subList(forwarded, events.size)
+            if (diskCache != null) {
+                diskCache.cache(ArrayList(remaining))
+            } else {
+                // Keep the original order for the next attempt, as far as there is room
+                for (i in remaining.indices.reversed()) {
+                    if (pending.offerFirst(remaining[i])) continue
+                    Timber.tag(TAG).w("Forwarding queue is full, dropped %d events.", i + 1)
+                    break
+                }
+            }
+            return false
+        }
+    }
+
+    private fun call(method: String, extras: Bundle?): Boolean {
+        return try {
+            val result = contentResolver.call(uri, method, trackerName, extras)
+            result?.getBoolean(EventForwardingProvider.KEY_ACCEPTED) == true
+        } catch (e: Exception) {
+            // e.g. the provider is not declared or the owner process is being killed
+            Timber.tag(TAG).w(e, "Failed to reach the event owner process.")
+            false
+        }
+    }
+
+    override fun setDryRunTarget(dryRunTarget: MutableList<Packet>) {
+        this.dryRunTarget = dryRunTarget
+    }
+
+    override fun getDryRunTarget(): List<Packet> {
+        return dryRunTarget!!
+    }
+
+    override fun getStats(): DispatcherStats = stats
+
+    /**
+     * Only [DispatchListener.onEnqueued] is called here, everything after that happens in the owner process.
+     */
+    override fun addListener(listener: DispatchListener) {
+        notifier.addListener(listener)
+    }
+
+    override fun removeListener(listener: DispatchListener) {
+        notifier.removeListener(listener)
+    }
+
+    companion object {
+        private val TAG = tag(ForwardingDispatcher::class.java)
+
+        /**
+         * Events submitted within this many milliseconds are forwarded together.
+         */
+        const val FORWARD_DELAY = 500L
+
+        /**
+         * Events kept in memory, also the most that are forwarded with one call.
+         */
+        const val MAX_PENDING = 500
+        private const val MAX_RETRY_DELAY = 60 * 1000L
+    }
+}
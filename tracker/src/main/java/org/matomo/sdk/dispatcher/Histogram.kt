@@ -0,0 +1,92 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import androidx.annotation.VisibleForTesting
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free histogram for non-negative values with a fixed memory footprint.
+ *
+ * Like an HDR histogram, each power of two is split into [SUB_BUCKETS] linear buckets, so any recorded value is off by at most 25%.
+ * Values below [SUB_BUCKETS] are exact.
+ */
+class Histogram {
+    private val counts = AtomicLongArray(BUCKETS)
+    private val count = AtomicLong()
+    private val sum = AtomicLong()
+    private val max = AtomicLong()
+
+    fun record(value: Long) {
+        val v = if (value < 0) 0 else value
+        counts.incrementAndGet(bucketOf(v))
+        count.incrementAndGet()
+        sum.addAndGet(v)
+        var current = max.get()
+        while (v > current && !max.compareAndSet(current, v)) current = max.get()
+    }
+
+    /**
+     * Copies the current state. Values recorded concurrently may be partially included.
+     */
+    fun snapshot(): Snapshot {
+        val copy = LongArray(BUCKETS)
+        for (i in 0 until BUCKETS) copy[i] = counts.get(i)
+        return Snapshot(copy, count.get(), sum.get(), max.get())
+    }
+
+    class Snapshot internal constructor(private val counts: LongArray, val count: Long, val sum: Long, val max: Long) {
+
+        val mean: Double
+            get() = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket that holds the percentile, 0 if nothing was recorded
+         */
+        fun getPercentile(percentile: Double): Long {
+            val total = counts.sum()
+            if (total == 0L) return 0
+            val rank = Math.ceil(percentile / 100.0 * total).toLong().coerceIn(1, total)
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= rank) return minOf(upperBoundOf(i), max)
+            }
+            return max
+        }
+
+        override fun toString(): String =
+            "count=$count, mean=${"%.1f".format(mean)}, p50=${getPercentile(50.0)}, p99=${getPercentile(99.0)}, max=$max"
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 2
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+        @VisibleForTesting
+        @JvmStatic
+        fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+            val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = magnitude - SUB_BUCKET_BITS
+            val sub = (value ushr shift).toInt() and (SUB_BUCKETS - 1)
+            return SUB_BUCKETS + shift * SUB_BUCKETS + sub
+        }
+
+        @VisibleForTesting
+        @JvmStatic
+        fun upperBoundOf(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) return bucket.toLong()
+            val shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS
+            val sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS
+            return ((SUB_BUCKETS + sub + 1).toLong() shl shift) - 1
+        }
+    }
+}
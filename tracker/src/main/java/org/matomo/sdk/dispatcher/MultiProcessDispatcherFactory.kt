@@ -0,0 +1,102 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import android.app.Application
+import android.content.Context
+import android.net.Uri
+import android.os.Build
+import android.os.Process
+import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.Tracker
+import timber.log.Timber
+import java.io.File
+
+/**
+ * For apps that track from more than one process. Only the process hosting the [EventForwardingProvider] sends events,
+ * all other processes forward their events to it. This gives one network pipeline and one disk cache per app.
+ *
+ * The provider needs to be declared in the app's manifest, in the process that should own the pipeline, usually the main process:
+ * ```
+ * <provider
+ *     android:name="org.matomo.sdk.dispatcher.EventForwardingProvider"
+ *     android:authorities="${applicationId}.matomo.events"
+ *     android:exported="false" />
+ * ```
+ * and this factory has to be set in every process before the first tracker is created:
+ * ```
+ * Matomo.getInstance(context).dispatcherFactory = MultiProcessDispatcherFactory(context, "$packageName.matomo.events")
+ * ```
+ * Trackers are matched across processes by their name, the destinations of a [org.matomo.sdk.TrackerGroup] by tracker name and API URL.
+ *
+ * @param ownerFactory builds the dispatchers of the owner process
+ */
+class MultiProcessDispatcherFactory @JvmOverloads constructor(
+    context: Context,
+    authority: String,
+    private val ownerFactory: DispatcherFactory = DefaultDispatcherFactory()
+) : DispatcherFactory {
+    private val context: Context = context.applicationContext
+    private val uri: Uri = Uri.parse("content://$authority")
+    private val processName = currentProcessName()
+
+    /**
+     * True in the process that sends the events. Other processes only forward them and leave one-time migrations of shared
+     * settings to this one.
+     */
+    val isOwnerProcess: Boolean
+
+    init {
+        val provider = this.context.packageManager.resolveContentProvider(authority, 0)
+        isOwnerProcess = if (provider == null) {
+            Timber.tag(TAG).e("No provider for '%s' declared, events are sent from every process.", authority)
+            true
+        } else {
+            // The process attribute defaults to the package name
+            (provider.processName ?: this.context.packageName) == processName
+        }
+    }
+
+    override fun build(tracker: Tracker): Dispatcher {
+        if (isOwnerProcess) {
+            val dispatcher = ownerFactory.build(tracker)
+            EventForwardingProvider.register(tracker.name, dispatcher)
+            return dispatcher
+        }
+        Timber.tag(TAG).d("Forwarding events of '%s' to the owner process.", tracker.name)
+        return forwarding(tracker, tracker.name, tracker.apiUrl)
+    }
+
+    override fun build(tracker: Tracker, apiUrl: String): Dispatcher {
+        val name = tracker.name + " " + apiUrl
+        if (isOwnerProcess) {
+            val dispatcher = ownerFactory.build(tracker, apiUrl)
+            EventForwardingProvider.register(name, dispatcher)
+            return dispatcher
+        }
+        return forwarding(tracker, name, apiUrl)
+    }
+
+    private fun forwarding(tracker: Tracker, name: String, apiUrl: String): Dispatcher = ForwardingDispatcher(
+        context.contentResolver, uri, name, PacketFactory(apiUrl), DispatchScheduler.shared,
+        EventDiskCache.forForwarding(tracker, processName, name)
+    )
+
+    private fun currentProcessName(): String {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) return Application.getProcessName()
+        return try {
+            File("/proc/" + Process.myPid() + "/cmdline").readText().trim { it <= ' ' }
+        } catch (e: Exception) {
+            Timber.tag(TAG).e(e, "Failed to read the process name.")
+            context.packageName
+        }
+    }
+
+    companion object {
+        private val TAG = tag(MultiProcessDispatcherFactory::class.java)
+    }
+}
@@ -11,6 +11,9 @@ import androidx.annotation.Nullable;
 
 import org.json.JSONObject;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Data that can be send to the backend API via the Dispatcher
  */
@@ -19,6 +22,8 @@ public class Packet {
     private final JSONObject mPostData;
     private final long mTimeStamp;
     private final int mEventCount;
+    private final String mBatchId;
+    private final List<Event> mEvents;
 
     /**
      * Constructor for GET requests
@@ -35,9 +40,29 @@ public class Packet {
      * @param eventCount number of events in this packet
      */
     public Packet(String targetURL, @Nullable JSONObject JSONObject, int eventCount) {
+        this(targetURL, JSONObject, eventCount, null);
+    }
+
+    /**
+     * @param batchId    identifies the events of this packet, retries of the same events carry the same id
+     */
+    public Packet(String targetURL, @Nullable JSONObject JSONObject, int eventCount, @Nullable String batchId) {
+        this(targetURL, JSONObject, eventCount, batchId, Collections.emptyList());
+    }
+
+    /**
+     * @param events the events this packet was built from
+     */
+    public Packet(String targetURL, @Nullable JSONObject JSONObject, @NonNull List<Event> events, @Nullable String batchId) {
+        this(targetURL, JSONObject, events.size(), batchId, events);
+    }
+
+    private Packet(String targetURL, @Nullable JSONObject JSONObject, int eventCount, @Nullable String batchId, List<Event> events) {
         mTargetURL = targetURL;
         mPostData = JSONObject;
         mEventCount = eventCount;
+        mBatchId = batchId;
+        mEvents = events;
         mTimeStamp = System.currentTimeMillis();
     }
 
@@ -69,12 +94,33 @@ public class Packet {
         return mEventCount;
     }
 
+    /**
+     * Lets the server recognize a packet it has already stored, e.g. if the response was lost to a timeout.
+     *
+     * @return may be null if the packet was not built from events
+     */
+    @Nullable
+    public String getBatchId() {
+        return mBatchId;
+    }
+
+    /**
+     * In the order of their requests, positions match those of {@link SendResult#isInvalid(int)}.
+     *
+     * @return the events this packet was built from, empty if it was not built from events
+     */
+    @NonNull
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
     @NonNull
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Packet(");
         if (mPostData != null) sb.append("type=POST, data=").append(mPostData);
         else sb.append("type=GET, data=").append(mTargetURL);
+        if (mBatchId != null) sb.append(", batch=").append(mBatchId);
         return sb.append(")").toString();
     }
 }
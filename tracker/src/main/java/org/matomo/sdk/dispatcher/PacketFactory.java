@@ -19,7 +19,11 @@ import org.matomo.sdk.Matomo;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 
 import timber.log.Timber;
 
@@ -34,33 +38,77 @@ public class PacketFactory {
         mApiUrl = apiUrl;
     }
 
-    public List<Packet> buildPackets(final List<Event> events) {
+    /**
+     * Each packet carries the events it was built from, events that can't be packed are dropped.
+     * Events that were packed before, i.e. have a batch id, are packed again as before so the server can recognize the retry.
+     * They are expected in the order they were packed in, but not next to each other, e.g. if a batch was split between the priority
+     * and the regular queue. All other events are packed in pages of {@link #PAGE_SIZE} under a new batch id.
+     */
+    public List<Packet> buildPackets(List<Event> events) {
         if (events.isEmpty()) return Collections.emptyList();
-
-        if (events.size() == 1) {
-            Packet p = buildPacketForGet(events.get(0));
-            if (p == null) return Collections.emptyList();
-            else return Collections.singletonList(p);
-        }
+        events = groupBatches(events);
 
         int packets = (int) Math.ceil(events.size() * 1.0 / PAGE_SIZE);
         List<Packet> freshPackets = new ArrayList<>(packets);
-        for (int i = 0; i < events.size(); i += PAGE_SIZE) {
-            List<Event> batch = events.subList(i, Math.min(i + PAGE_SIZE, events.size()));
+        int start = 0;
+        while (start < events.size()) {
+            final String batchId = events.get(start).getBatchId();
+            int end = start + 1;
+            while (end < events.size() && end - start < PAGE_SIZE && Objects.equals(batchId, events.get(end).getBatchId())) end++;
+
+            // Copied, the packet outlives the list it was built from
+            List<Event> batch = new ArrayList<>(events.subList(start, end));
+            String id = batchId;
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                for (Event event : batch) event.setBatchId(id);
+            }
             final Packet packet;
-            if (batch.size() == 1) packet = buildPacketForGet(batch.get(0));
-            else packet = buildPacketForPost(batch);
+            if (batch.size() == 1) packet = buildPacketForGet(batch.get(0), id);
+            else packet = buildPacketForPost(batch, id);
             if (packet != null) freshPackets.add(packet);
+            else Timber.tag(TAG).w("Dropped %d events that could not be packed.", batch.size());
+            start = end;
         }
         return freshPackets;
     }
 
+    /**
+     * Moves the events of each batch next to its first event, the order of the events is kept otherwise.
+     */
+    private static List<Event> groupBatches(List<Event> events) {
+        boolean retry = false;
+        for (Event event : events) {
+            if (event.getBatchId() != null) {
+                retry = true;
+                break;
+            }
+        }
+        if (!retry) return events;
+
+        // Each new event gets a key of its own, so they stay where they are
+        Map<Object, List<Event>> groups = new LinkedHashMap<>();
+        for (Event event : events) {
+            Object key = event.getBatchId() != null ? event.getBatchId() : new Object();
+            List<Event> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(event);
+        }
+        if (groups.size() == events.size()) return events;
+        List<Event> grouped = new ArrayList<>(events.size());
+        for (List<Event> group : groups.values()) grouped.addAll(group);
+        return grouped;
+    }
+
     //{
     //    "requests": ["?idsite=1&url=http://example.org&action_name=Test bulk log Pageview&rec=1",
     //    "?idsite=1&url=http://example.net/test.htm&action_name=Another bul k page view&rec=1"]
     //}
     @Nullable
-    private Packet buildPacketForPost(List<Event> events) {
+    private Packet buildPacketForPost(List<Event> events, String batchId) {
         if (events.isEmpty()) return null;
         try {
             JSONObject params = new JSONObject();
@@ -68,7 +116,7 @@ public class PacketFactory {
             JSONArray jsonArray = new JSONArray();
             for (Event event : events) jsonArray.put(event.getEncodedQuery());
             params.put("requests", jsonArray);
-            return new Packet(mApiUrl, params, events.size());
+            return new Packet(mApiUrl, params, events, batchId);
         } catch (JSONException e) {
             Timber.tag(TAG).w(e, "Cannot create json object:\n%s", TextUtils.join(", ", events));
         }
@@ -77,9 +125,9 @@ public class PacketFactory {
 
     // "http://domain.com/matomo.php?idsite=1&url=http://a.org&action_name=Test bulk log Pageview&rec=1"
     @Nullable
-    private Packet buildPacketForGet(@NonNull Event event) {
+    private Packet buildPacketForGet(@NonNull Event event, String batchId) {
         if (event.getEncodedQuery().isEmpty()) return null;
-        return new Packet(mApiUrl + event);
+        return new Packet(mApiUrl + event, null, Collections.singletonList(event), batchId);
     }
 
 }
@@ -7,6 +7,12 @@ interface PacketSender {
      */
     fun send(packet: Packet): Boolean
 
+    /**
+     * Like [send], but reports the outcome per event, if the server response allows that.
+     * Senders that can't tell which events were stored only report success or failure of the whole packet.
+     */
+    fun sendForResult(packet: Packet): SendResult = if (send(packet)) SendResult.SENT else SendResult.FAILED
+
     /**
      * @param timeout in milliseconds
      */
@@ -0,0 +1,59 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+/**
+ * Outcome of sending a [Packet], see [PacketSender.sendForResult].
+ *
+ * The bulk endpoint answers with `{"status": "...", "tracked": 18, "invalid": 2}`.
+ * It processes all requests of a bulk before answering, invalid ones are skipped and counted.
+ * Which ones were invalid, `"invalid_indices": [3, 7]`, is only listed for requests that carry a `token_auth`.
+ *
+ * @param statusCode HTTP status code, -1 if there was no response
+ * @param isSuccessful whether the server answered with a 2xx status
+ * @param tracked number of events the server stored, -1 if the response did not say
+ * @param invalid number of events the server rejected
+ * @param invalidIndices positions of the rejected events within the packet, if the server listed them
+ * @param payloadBytes size of the request payload before compression
+ * @param transferredBytes size of the request payload as sent
+ */
+class SendResult @JvmOverloads constructor(
+    val statusCode: Int,
+    val isSuccessful: Boolean,
+    val tracked: Int = -1,
+    val invalid: Int = 0,
+    val invalidIndices: IntArray = IntArray(0),
+    val payloadBytes: Long = 0,
+    val transferredBytes: Long = 0
+) {
+
+    /**
+     * A handled packet must not be sent again: its valid events are stored and its invalid ones would be rejected again.
+     * Packets are retried as a whole, under the same batch id, so the server can recognize events it already stored.
+     *
+     * @return whether the server processed all [eventCount] events of the packet
+     */
+    fun isHandled(eventCount: Int): Boolean = isSuccessful || (tracked >= 0 && tracked + invalid >= eventCount)
+
+    /**
+     * Only known if the server listed the [invalidIndices], see [invalid] for the number of rejected events.
+     *
+     * @return whether the event at this position in the packet was rejected by the server
+     */
+    fun isInvalid(index: Int): Boolean = invalidIndices.contains(index)
+
+    override fun toString(): String =
+        "SendResult(code=$statusCode, successful=$isSuccessful, tracked=$tracked, invalid=$invalid, indices=${invalidIndices.contentToString()})"
+
+    companion object {
+        @JvmField
+        val SENT = SendResult(200, true)
+
+        @JvmField
+        val FAILED = SendResult(-1, false)
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.dispatcher
+
+import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.Tracker
+import timber.log.Timber
+
+/**
+ * For apps with several trackers posting to the same server, e.g. one tracker per site.
+ * Trackers with the same API URL share one dispatcher, so their events are queued together and packed into the same bulk requests.
+ * Matomo's bulk API accepts events of different sites in one request, every event carries its own site id.
+ *
+ * The shared dispatcher is built for the first tracker of an API URL, including its offline cache limits.
+ * Settings made through any tracker, e.g. the dispatch interval or mode, apply to all trackers on the API URL, the last one wins.
+ * [DispatchListener]s and [DispatcherStats] cover the events of all of them.
+ * ```
+ * matomo.dispatcherFactory = SharedEndpointDispatcherFactory()
+ * ```
+ *
+ * @param factory builds the shared dispatchers
+ */
+class SharedEndpointDispatcherFactory @JvmOverloads constructor(
+    private val factory: DispatcherFactory = DefaultDispatcherFactory()
+) : DispatcherFactory {
+    private val dispatchers = HashMap<String, Dispatcher>()
+
+    @Synchronized
+    override fun build(tracker: Tracker): Dispatcher {
+        dispatchers[tracker.apiUrl]?.let {
+            Timber.tag(TAG).d("Tracker '%s' shares the dispatcher for %s.", tracker.name, tracker.apiUrl)
+            return it
+        }
+        val dispatcher = factory.build(tracker)
+        dispatchers[tracker.apiUrl] = dispatcher
+        return dispatcher
+    }
+
+    /**
+     * [org.matomo.sdk.TrackerGroup] destinations share the dispatcher of their server as well.
+     */
+    @Synchronized
+    override fun build(tracker: Tracker, apiUrl: String): Dispatcher {
+        return dispatchers.getOrPut(apiUrl) { factory.build(tracker, apiUrl) }
+    }
+
+    companion object {
+        private val TAG = tag(SharedEndpointDispatcherFactory::class.java)
+    }
+}
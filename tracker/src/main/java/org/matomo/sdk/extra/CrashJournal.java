@@ -0,0 +1,287 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk.extra;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.matomo.sdk.Matomo;
+import org.matomo.sdk.QueryParams;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.tools.Checksum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * A preallocated file that holds at most one fatal exception.
+ * <p>
+ * Recording a crash does not go through {@link Tracker#track(TrackMe)} and the disk cache, it encodes the exception into a buffer that
+ * was allocated up front and writes it with a single write. Only getting the exception's stack trace and message allocates, so it is
+ * likely, but not guaranteed, to work when the heap is nearly exhausted, e.g. on an {@link OutOfMemoryError}.
+ * On the next app start the recorded crash is read back and tracked like any other event.
+ * <p>
+ * Layout, UTF-8 with one field per line: version, base parameters as query string, crash timestamp, "class/method:line", message.
+ * Unused space is zeroed.
+ */
+public class CrashJournal {
+    private static final String TAG = Matomo.tag(CrashJournal.class);
+    private static final String DIR_NAME = "matomo_crash";
+    private static final String VERSION = "MCJ1";
+    @VisibleForTesting static final int CAPACITY = 8 * 1024;
+    // The base parameters may not take up the whole journal
+    private static final int MAX_BASE_LENGTH = CAPACITY / 2;
+    private final File mFile;
+    private final byte[] mBuffer = new byte[CAPACITY];
+    private RandomAccessFile mOut;
+    private int mPrefixLength;
+    private boolean mRecorded;
+
+    public CrashJournal(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the journal of this tracker or null if there is no place to store it
+     */
+    @Nullable
+    public static CrashJournal forTracker(@NonNull Tracker tracker) {
+        File baseDir = tracker.getMatomo().getContext().getNoBackupFilesDir();
+        if (baseDir == null) return null;
+        String name;
+        try {
+            name = Checksum.getMD5Checksum(tracker.getName());
+        } catch (Exception e) {
+            Timber.tag(TAG).e(e);
+            name = tracker.getName();
+        }
+        return new CrashJournal(new File(new File(baseDir, DIR_NAME), name));
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Reads the crash recorded by a previous process, if there is one.
+     * Needs to be called before {@link #open(TrackMe)}, which clears the journal. Reads the file, so better not on the main thread.
+     *
+     * @return the fatal exception event, ready to be tracked, or null
+     */
+    @Nullable
+    public TrackMe read() {
+        if (!mFile.exists()) return null;
+
+        byte[] data = new byte[(int) Math.min(mFile.length(), CAPACITY)];
+        int length = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            int read;
+            while (length < data.length && (read = in.read(data, length, data.length - length)) != -1) length += read;
+        } catch (IOException e) {
+            Timber.tag(TAG).e(e);
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) { Timber.tag(TAG).e(e); }
+            }
+        }
+
+        int end = 0;
+        while (end < length && data[end] != 0) end++;
+        String[] lines = new String(data, 0, end, StandardCharsets.UTF_8).split("\n", -1);
+        // A complete record ends with a line break after the last field
+        if (lines.length != 6 || !VERSION.equals(lines[0])) return null;
+
+        try {
+            TrackMe base = decodeQuery(lines[1]);
+            long timestamp = Long.parseLong(lines[2]);
+            String description = lines[4].isEmpty() ? null : lines[4];
+            TrackMe trackMe = TrackHelper.Exception.build(base, lines[3], description, true);
+            trackMe.set(QueryParams.DATETIME_OF_REQUEST, new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ", Locale.US).format(new Date(timestamp)));
+            Timber.tag(TAG).d("Restored crash from %s", mFile.getPath());
+            return trackMe;
+        } catch (Exception e) {
+            Timber.tag(TAG).e(e, "Discarding corrupt crash journal.");
+            return null;
+        }
+    }
+
+    /**
+     * Clears and preallocates the journal, and encodes the parts of the crash event that are known up front.
+     * Writes the whole journal, so better not on the main thread.
+     *
+     * @param baseTrackMe parameters that are added to the exception event
+     * @return false if the journal can't be used
+     */
+    public synchronized boolean open(@Nullable TrackMe baseTrackMe) {
+        close();
+        Arrays.fill(mBuffer, (byte) 0);
+        mRecorded = false;
+        try {
+            File dir = mFile.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) Timber.tag(TAG).e("Failed to make crash journal dir '%s'", dir);
+            mOut = new RandomAccessFile(mFile, "rw");
+            mOut.setLength(CAPACITY);
+            mOut.write(mBuffer);
+        } catch (IOException e) {
+            Timber.tag(TAG).e(e, "Failed to open crash journal %s", mFile.getPath());
+            close();
+            return false;
+        }
+
+        int pos = put(VERSION, 0, CAPACITY);
+        mBuffer[pos++] = '\n';
+        String base = baseTrackMe != null ? encodeQuery(baseTrackMe) : "";
+        if (base.length() > MAX_BASE_LENGTH) {
+            Timber.tag(TAG).w("Base parameters are too large for the crash journal, dropping them.");
+            base = "";
+        }
+        pos = put(base, pos, MAX_BASE_LENGTH);
+        mBuffer[pos++] = '\n';
+        mPrefixLength = pos;
+        return true;
+    }
+
+    /**
+     * Writes the exception to the journal, only the first call after {@link #open(TrackMe)} is recorded.
+     * Meant to be called on the crashing thread. It allocates little, but {@link Throwable#getStackTrace()} copies the stack trace
+     * and {@link Throwable#getMessage()} may build the message, which fails if there is no memory left at all.
+     *
+     * @return true if the exception was written
+     */
+    public synchronized boolean record(@NonNull Throwable throwable) {
+        if (mOut == null || mRecorded) return false;
+        try {
+            int pos = putLong(System.currentTimeMillis(), mPrefixLength);
+            mBuffer[pos++] = '\n';
+            // Leave room for the line breaks of this and the next field
+            pos = putLocation(throwable, pos, CAPACITY - 2);
+            mBuffer[pos++] = '\n';
+            String message = throwable.getMessage();
+            if (message != null) pos = put(message, pos, CAPACITY - 1);
+            mBuffer[pos++] = '\n';
+
+            mOut.seek(0);
+            mOut.write(mBuffer, 0, pos);
+            mRecorded = true;
+            return true;
+        } catch (Throwable e) {
+            // IOException, or we ran out of memory after all
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        if (mOut == null) return;
+        try { mOut.close(); } catch (IOException e) { Timber.tag(TAG).e(e); }
+        mOut = null;
+    }
+
+    // Same format as TrackHelper.Exception
+    private int putLocation(Throwable throwable, int pos, int limit) {
+        StackTraceElement[] trace = throwable.getStackTrace();
+        if (trace.length == 0) return put(throwable.getClass().getName(), pos, limit);
+        pos = put(trace[0].getClassName(), pos, limit);
+        pos = put("/", pos, limit);
+        pos = put(trace[0].getMethodName(), pos, limit);
+        pos = put(":", pos, limit);
+        // Room for any int
+        if (pos + 11 > limit) return pos;
+        return putLong(trace[0].getLineNumber(), pos);
+    }
+
+    /**
+     * Encodes the string as UTF-8 into the buffer, line breaks are replaced by spaces.
+     *
+     * @return position after the last written byte, never beyond limit
+     */
+    private int put(String value, int pos, int limit) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r') c = ' ';
+            if (c < 0x80) {
+                if (pos + 1 > limit) break;
+                mBuffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                if (pos + 2 > limit) break;
+                mBuffer[pos++] = (byte) (0xC0 | (c >> 6));
+                mBuffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (pos + 1 > limit) break;
+                mBuffer[pos++] = '?';
+            } else {
+                if (pos + 3 > limit) break;
+                mBuffer[pos++] = (byte) (0xE0 | (c >> 12));
+                mBuffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                mBuffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private int putLong(long value, int pos) {
+        if (value < 0) {
+            mBuffer[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            mBuffer[pos++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        // Digits were written in reverse
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = tmp;
+        }
+        return pos;
+    }
+
+    private static String encodeQuery(TrackMe trackMe) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> entry : trackMe.toMap().entrySet()) {
+                if (sb.length() > 0) sb.append('&');
+                sb.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            Timber.tag(TAG).e(e);
+        }
+        return sb.toString();
+    }
+
+    private static TrackMe decodeQuery(String query) throws UnsupportedEncodingException {
+        TrackMe trackMe = new TrackMe();
+        if (query.isEmpty()) return trackMe;
+        for (String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            if (split == -1) continue;
+            trackMe.set(URLDecoder.decode(pair.substring(0, split), "UTF-8"), URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+        }
+        return trackMe;
+    }
+}
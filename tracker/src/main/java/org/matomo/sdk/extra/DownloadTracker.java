@@ -16,6 +16,7 @@ import org.matomo.sdk.Tracker;
 import org.matomo.sdk.tools.Checksum;
 
 import java.io.File;
+import java.util.ArrayList;
 
 import timber.log.Timber;
 
@@ -146,7 +147,13 @@ public class DownloadTracker {
         String firedKey = "downloaded:" + mPkgInfo.packageName + ":" + getVersion();
         synchronized (mTrackOnceLock) {
             if (!mPreferences.getBoolean(firedKey, false)) {
-                mPreferences.edit().putBoolean(firedKey, true).apply();
+                SharedPreferences.Editor editor = mPreferences.edit();
+                // Only the current version is checked, flags of older versions would pile up with every update
+                String versionPrefix = "downloaded:" + mPkgInfo.packageName + ":";
+                for (String key : new ArrayList<>(mPreferences.getAll().keySet())) {
+                    if (key.startsWith(versionPrefix)) editor.remove(key);
+                }
+                editor.putBoolean(firedKey, true).apply();
                 trackNewAppDownload(baseTrackme, extra);
             }
         }
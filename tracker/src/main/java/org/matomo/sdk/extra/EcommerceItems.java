@@ -10,25 +10,64 @@ package org.matomo.sdk.extra;
 import org.json.JSONArray;
 import org.matomo.sdk.tools.CurrencyFormatter;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Each item is serialized once when it is added or changed, {@link #toJson()} only joins the cached parts.
+ * This keeps cart updates of large carts cheap, e.g. when only one quantity changed.
+ */
 public class EcommerceItems {
-    private final Map<String, JSONArray> mItems = new HashMap<>();
+    private final Map<String, Entry> mItems = new LinkedHashMap<>();
+    // null if an item changed since it was built
+    private String mJson;
 
     /**
      * Adds a product into the ecommerce order. Must be called for each product in the order.
      * If the same sku is used twice, the first item is overwritten.
      */
     public void addItem(Item item) {
-        mItems.put(item.mSku, item.toJson());
+        // Copied, changes to the item after adding it must not bypass the cache
+        Item copy = item.copy();
+        Entry existing = mItems.get(copy.mSku);
+        if (existing != null && existing.item.hasSameValues(copy)) return;
+        mItems.put(copy.mSku, new Entry(copy, item.toJson().toString()));
+        mJson = null;
+    }
+
+    /**
+     * Changes the quantity of a product that was added before, e.g. for a cart update.
+     *
+     * @return false if there is no product with this sku
+     */
+    public boolean setQuantity(String sku, int quantity) {
+        Entry existing = mItems.get(sku);
+        if (existing == null) return false;
+        if (existing.item.mHasQuantity && existing.item.mQuantity == quantity) return true;
+        Item changed = existing.item.copy().quantity(quantity);
+        mItems.put(sku, new Entry(changed, changed.toJson().toString()));
+        mJson = null;
+        return true;
+    }
+
+    private static class Entry {
+        final Item item;
+        final String json;
+
+        Entry(Item item, String json) {
+            this.item = item;
+            this.json = json;
+        }
     }
 
     public static class Item {
         private final String mSku;
         private String mCategory;
-        private Integer mPrice;
-        private Integer mQuantity;
+        private int mPrice;
+        private boolean mHasPrice;
+        private int mQuantity;
+        private boolean mHasQuantity;
         private String mName;
 
         /**
@@ -61,6 +100,7 @@ public class EcommerceItems {
          */
         public Item price(int price) {
             mPrice = price;
+            mHasPrice = true;
             return this;
         }
 
@@ -69,6 +109,7 @@ public class EcommerceItems {
          */
         public Item quantity(int quantity) {
             mQuantity = quantity;
+            mHasQuantity = true;
             return this;
         }
 
@@ -81,11 +122,11 @@ public class EcommerceItems {
         }
 
         public Integer getPrice() {
-            return mPrice;
+            return mHasPrice ? mPrice : null;
         }
 
         public Integer getQuantity() {
-            return mQuantity;
+            return mHasQuantity ? mQuantity : null;
         }
 
         public String getName() {
@@ -97,10 +138,27 @@ public class EcommerceItems {
             item.put(mSku);
             if (mName != null) item.put(mName);
             if (mCategory != null) item.put(mCategory);
-            if (mPrice != null) item.put(CurrencyFormatter.priceString(mPrice));
-            if (mQuantity != null) item.put(String.valueOf(mQuantity));
+            if (mHasPrice) item.put(CurrencyFormatter.priceString(mPrice));
+            if (mHasQuantity) item.put(String.valueOf(mQuantity));
             return item;
         }
+
+        Item copy() {
+            Item copy = new Item(mSku).name(mName).category(mCategory);
+            copy.mPrice = mPrice;
+            copy.mHasPrice = mHasPrice;
+            copy.mQuantity = mQuantity;
+            copy.mHasQuantity = mHasQuantity;
+            return copy;
+        }
+
+        boolean hasSameValues(Item other) {
+            return mSku.equals(other.mSku)
+                    && Objects.equals(mName, other.mName)
+                    && Objects.equals(mCategory, other.mCategory)
+                    && mHasPrice == other.mHasPrice && mPrice == other.mPrice
+                    && mHasQuantity == other.mHasQuantity && mQuantity == other.mQuantity;
+        }
     }
 
     /**
@@ -109,26 +167,36 @@ public class EcommerceItems {
      * @param sku unique identifier for the product
      */
     public void remove(String sku) {
-        mItems.remove(sku);
+        if (mItems.remove(sku) != null) mJson = null;
     }
 
     public void remove(Item item) {
-        mItems.remove(item.mSku);
+        remove(item.mSku);
     }
 
     /**
      * Clears all items from the ecommerce order
      */
     public void clear() {
+        if (mItems.isEmpty()) return;
         mItems.clear();
+        mJson = null;
     }
 
+    /**
+     * @return the items as JSON array, built from the cached items and reused until an item changes
+     */
     public String toJson() {
-        JSONArray jsonItems = new JSONArray();
-
-        for (JSONArray item : mItems.values()) {
-            jsonItems.put(item);
+        if (mJson == null) {
+            int length = 2;
+            for (Entry entry : mItems.values()) length += entry.json.length() + 1;
+            StringBuilder sb = new StringBuilder(length).append('[');
+            for (Entry entry : mItems.values()) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(entry.json);
+            }
+            mJson = sb.append(']').toString();
         }
-        return jsonItems.toString();
+        return mJson;
     }
 }
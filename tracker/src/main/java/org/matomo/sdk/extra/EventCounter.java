@@ -0,0 +1,198 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk.extra;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.matomo.sdk.Matomo;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.dispatcher.DispatchScheduler;
+
+import java.util.Objects;
+
+import timber.log.Timber;
+
+/**
+ * Aggregates high-frequency events, e.g. "item scrolled past" or "button tapped", on the device.
+ * Instead of one event per occurrence, one event per category, action and name is tracked per window, its value is the total.
+ * <pre>
+ * EventCounter counter = new EventCounter(tracker);
+ * counter.count("List", "Scrolled past", "item");
+ * // or
+ * TrackHelper.track().event("List", "Scrolled past").name("item").count(counter);
+ * </pre>
+ * The window starts with the first occurrence after a flush.
+ * Call {@link #flush()} before dispatching manually, e.g. when the app goes to the background.
+ * <p>
+ * Event values are floats, totals above {@link #MAX_EXACT_TOTAL} are rounded when they are tracked.
+ */
+public class EventCounter {
+    private static final String TAG = Matomo.tag(EventCounter.class);
+    public static final long DEFAULT_WINDOW = 60 * 1000;
+    /**
+     * 2^24, the largest total that is tracked without rounding.
+     */
+    public static final double MAX_EXACT_TOTAL = 1 << 24;
+    private final Tracker mTracker;
+    private final long mWindow;
+    @Nullable private final DispatchScheduler mScheduler;
+    private Totals mTotals = new Totals();
+    private final DispatchScheduler.Job mJob = () -> {
+        flush();
+        // The next window starts with the next occurrence
+        return -1;
+    };
+
+    public EventCounter(Tracker tracker) {
+        this(tracker, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window in milliseconds, how long occurrences are aggregated before they are tracked
+     */
+    public EventCounter(Tracker tracker, long window) {
+        this(tracker, window, DispatchScheduler.getShared());
+    }
+
+    @VisibleForTesting
+    EventCounter(Tracker tracker, long window, @Nullable DispatchScheduler scheduler) {
+        mTracker = tracker;
+        mWindow = window;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Counts one occurrence.
+     */
+    public void count(@NonNull String category, @NonNull String action, @Nullable String name) {
+        add(category, action, name, 1);
+    }
+
+    /**
+     * Adds the value to the total of this category, action and name.
+     */
+    public void add(@NonNull String category, @NonNull String action, @Nullable String name, double value) {
+        boolean first;
+        synchronized (this) {
+            first = mTotals.isEmpty();
+            mTotals.add(category, action, name, value);
+        }
+        if (first && mScheduler != null) mScheduler.schedule(mJob, mWindow);
+    }
+
+    /**
+     * Tracks the totals of the current window right away.
+     */
+    public void flush() {
+        final Totals totals;
+        synchronized (this) {
+            if (mTotals.isEmpty()) return;
+            totals = mTotals;
+            mTotals = new Totals();
+        }
+        for (int i = 0; i < totals.keys.length; i++) {
+            if (totals.categories[i] == null) continue;
+            TrackHelper.track()
+                    .event(totals.categories[i], totals.actions[i])
+                    .name(totals.names[i])
+                    .value(toEventValue(totals.values[i]))
+                    .with(mTracker);
+        }
+        Timber.tag(TAG).d("Tracked the totals of %d events.", totals.size);
+    }
+
+    @VisibleForTesting
+    synchronized int getPendingCount() {
+        return mTotals.size;
+    }
+
+    private static float toEventValue(double total) {
+        if (Math.abs(total) > MAX_EXACT_TOTAL) Timber.tag(TAG).w("Total %f exceeds the exact range of an event value.", total);
+        // Clamped, so it doesn't turn into Infinity
+        return (float) Math.max(-Float.MAX_VALUE, Math.min(Float.MAX_VALUE, total));
+    }
+
+    /**
+     * Open addressing on a 64-bit hash of category, action and name, so counting doesn't allocate.
+     * The strings are kept to resolve hash collisions and to build the events.
+     */
+    private static class Totals {
+        private static final int INITIAL_CAPACITY = 16;
+        long[] keys = new long[INITIAL_CAPACITY];
+        double[] values = new double[INITIAL_CAPACITY];
+        String[] categories = new String[INITIAL_CAPACITY];
+        String[] actions = new String[INITIAL_CAPACITY];
+        String[] names = new String[INITIAL_CAPACITY];
+        int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(String category, String action, @Nullable String name, double value) {
+            final long key = hash(category, action, name);
+            final int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (categories[slot] != null) {
+                if (keys[slot] == key && categories[slot].equals(category) && actions[slot].equals(action) && Objects.equals(names[slot], name)) {
+                    values[slot] += value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            categories[slot] = category;
+            actions[slot] = action;
+            names[slot] = name;
+            // At most half full, which keeps probe sequences short
+            if (++size * 2 > keys.length) grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            double[] oldValues = values;
+            String[] oldCategories = categories;
+            String[] oldActions = actions;
+            String[] oldNames = names;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            values = new double[capacity];
+            categories = new String[capacity];
+            actions = new String[capacity];
+            names = new String[capacity];
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCategories[i] == null) continue;
+                int slot = mix(oldKeys[i]) & mask;
+                while (categories[slot] != null) slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                categories[slot] = oldCategories[i];
+                actions[slot] = oldActions[i];
+                names[slot] = oldNames[i];
+            }
+        }
+
+        private static long hash(String category, String action, @Nullable String name) {
+            long hash = category.hashCode();
+            hash = hash * 0x9E3779B97F4A7C15L + action.hashCode();
+            hash = hash * 0x9E3779B97F4A7C15L + (name != null ? name.hashCode() : 0);
+            return hash;
+        }
+
+        private static int mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xFF51AFD7ED558CCDL;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk.extra;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.matomo.sdk.Matomo;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.dispatcher.DispatchScheduler;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Tracks content impressions of scrolling containers, e.g. a RecyclerView or ListView, as their items become visible.
+ * <p>
+ * An item counts as seen once the given fraction of it is on screen, and is tracked once until {@link #reset()}.
+ * Impressions are collected per window and tracked together via {@link Tracker#trackAll(List)}, so they are sent in the same bulk request.
+ * <p>
+ * Containers are only referenced weakly, still {@link #detach(ViewGroup)} them once their screen is gone,
+ * otherwise their listeners stay registered as long as the container is alive.
+ * <pre>
+ * ImpressionTracker impressions = new ImpressionTracker(tracker, child -&gt; (ImpressionTracker.Content) child.getTag(R.id.content));
+ * impressions.attach(recyclerView);
+ * </pre>
+ */
+public class ImpressionTracker {
+    private static final String TAG = Matomo.tag(ImpressionTracker.class);
+    public static final long DEFAULT_WINDOW = 5 * 1000;
+    public static final float DEFAULT_VISIBLE_FRACTION = 0.5f;
+    // Fits into one bulk request, more are tracked right away
+    @VisibleForTesting static final int MAX_PENDING = 20;
+    @VisibleForTesting static final int SEEN_CAPACITY = 512;
+    private final Tracker mTracker;
+    private final ContentMapper mMapper;
+    private final long mWindow;
+    @Nullable private final DispatchScheduler mScheduler;
+    private float mVisibleFraction = DEFAULT_VISIBLE_FRACTION;
+    // Seen items in a ring that is swept by a clock hand once full: an item seen again since the last sweep is kept for another round.
+    // Items that stay on screen are seen again on every check and so are never evicted. Preallocated, seeing an item allocates nothing.
+    private final Content[] mSeen = new Content[SEEN_CAPACITY];
+    private final boolean[] mSeenAgain = new boolean[SEEN_CAPACITY];
+    // Open-addressed index into the ring, slot + 1 or 0 if free. At most half full, so probe sequences stay short.
+    private final int[] mSeenIndex = new int[SEEN_CAPACITY * 2];
+    private int mSeenCount = 0;
+    private int mHand = 0;
+    private List<Content> mPending = new ArrayList<>();
+    private final Rect mVisibleRect = new Rect();
+    private final Map<ViewGroup, Listener> mAttached = new WeakHashMap<>();
+    private final DispatchScheduler.Job mJob = () -> {
+        flush();
+        return -1;
+    };
+
+    public interface ContentMapper {
+        /**
+         * Called for every sufficiently visible child on every scroll, so better return cached instances.
+         *
+         * @return the content shown by this child of the container, null if it isn't content
+         */
+        @Nullable
+        Content getContent(@NonNull View child);
+    }
+
+    public ImpressionTracker(Tracker tracker, ContentMapper mapper) {
+        this(tracker, mapper, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window in milliseconds, how long impressions are collected before they are tracked
+     */
+    public ImpressionTracker(Tracker tracker, ContentMapper mapper, long window) {
+        this(tracker, mapper, window, DispatchScheduler.getShared());
+    }
+
+    @VisibleForTesting
+    ImpressionTracker(Tracker tracker, ContentMapper mapper, long window, @Nullable DispatchScheduler scheduler) {
+        mTracker = tracker;
+        mMapper = mapper;
+        mWindow = window;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @param fraction how much of an item has to be on screen to count as seen, defaults to {@link #DEFAULT_VISIBLE_FRACTION}
+     */
+    @MainThread
+    public ImpressionTracker setVisibleFraction(float fraction) {
+        mVisibleFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Starts watching the container's children whenever it scrolls or is laid out.
+     */
+    @MainThread
+    public void attach(ViewGroup container) {
+        if (mAttached.containsKey(container)) return;
+        Listener listener = new Listener(container);
+        mAttached.put(container, listener);
+        container.getViewTreeObserver().addOnScrollChangedListener(listener);
+        container.getViewTreeObserver().addOnGlobalLayoutListener(listener);
+    }
+
+    @MainThread
+    public void detach(ViewGroup container) {
+        Listener listener = mAttached.remove(container);
+        if (listener == null) return;
+        container.getViewTreeObserver().removeOnScrollChangedListener(listener);
+        container.getViewTreeObserver().removeOnGlobalLayoutListener(listener);
+    }
+
+    /**
+     * Forgets which items were seen, e.g. when the user navigates to another screen.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mSeen, null);
+        Arrays.fill(mSeenAgain, false);
+        Arrays.fill(mSeenIndex, 0);
+        mSeenCount = 0;
+        mHand = 0;
+    }
+
+    /**
+     * Tracks the impressions of the current window right away.
+     */
+    public void flush() {
+        final List<Content> pending;
+        synchronized (this) {
+            if (mPending.isEmpty()) return;
+            pending = mPending;
+            mPending = new ArrayList<>();
+        }
+        List<TrackMe> trackMes = new ArrayList<>(pending.size());
+        for (Content content : pending) {
+            trackMes.add(TrackHelper.track().impression(content.mName).piece(content.mPiece).target(content.mTarget).build());
+        }
+        mTracker.trackAll(trackMes);
+        Timber.tag(TAG).d("Tracked %d impressions.", pending.size());
+    }
+
+    @VisibleForTesting
+    @MainThread
+    void checkVisibility(ViewGroup container) {
+        for (int i = 0; i < container.getChildCount(); i++) {
+            View child = container.getChildAt(i);
+            if (!isVisibleEnough(child)) continue;
+            Content content = mMapper.getContent(child);
+            if (content != null) onVisible(content);
+        }
+    }
+
+    private boolean isVisibleEnough(View child) {
+        long area = (long) child.getWidth() * child.getHeight();
+        if (area == 0 || !child.isShown() || !child.getGlobalVisibleRect(mVisibleRect)) return false;
+        return (long) mVisibleRect.width() * mVisibleRect.height() >= area * mVisibleFraction;
+    }
+
+    @VisibleForTesting
+    void onVisible(Content content) {
+        int pending;
+        synchronized (this) {
+            if (!markSeen(content)) return;
+            mPending.add(content);
+            pending = mPending.size();
+        }
+        if (mScheduler == null) return;
+        if (pending == 1) mScheduler.schedule(mJob, mWindow);
+        else if (pending >= MAX_PENDING) mScheduler.schedule(mJob, 0);
+    }
+
+    /**
+     * Must be called while holding the instance lock.
+     *
+     * @return false if the item was seen before, it is then kept for another round of the clock hand
+     */
+    private boolean markSeen(Content content) {
+        final int mask = mSeenIndex.length - 1;
+        int i = home(content, mask);
+        for (int slot; (slot = mSeenIndex[i]) != 0; i = (i + 1) & mask) {
+            if (mSeen[slot - 1].equals(content)) {
+                mSeenAgain[slot - 1] = true;
+                return false;
+            }
+        }
+        final int slot;
+        if (mSeenCount < SEEN_CAPACITY) {
+            slot = mSeenCount++;
+        } else {
+            while (mSeenAgain[mHand]) {
+                mSeenAgain[mHand] = false;
+                mHand = (mHand + 1) % SEEN_CAPACITY;
+            }
+            slot = mHand;
+            mHand = (mHand + 1) % SEEN_CAPACITY;
+            unindex(slot);
+            // The removal may have shifted entries into the free position found above
+            i = home(content, mask);
+            while (mSeenIndex[i] != 0) i = (i + 1) & mask;
+        }
+        mSeen[slot] = content;
+        mSeenAgain[slot] = false;
+        mSeenIndex[i] = slot + 1;
+        return true;
+    }
+
+    /**
+     * Removes a slot's item from the index. Later entries of its probe sequence are shifted back, so lookups don't stop at the gap.
+     */
+    private void unindex(int slot) {
+        final int mask = mSeenIndex.length - 1;
+        int gap = home(mSeen[slot], mask);
+        while (mSeenIndex[gap] != slot + 1) gap = (gap + 1) & mask;
+        for (int i = (gap + 1) & mask; mSeenIndex[i] != 0; i = (i + 1) & mask) {
+            // An entry may move into the gap unless the gap comes before its home position
+            int home = home(mSeen[mSeenIndex[i] - 1], mask);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                mSeenIndex[gap] = mSeenIndex[i];
+                gap = i;
+            }
+        }
+        mSeenIndex[gap] = 0;
+    }
+
+    private static int home(Content content, int mask) {
+        int hash = content.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * The content shown by an item, see {@link TrackHelper#impression(String)}.
+     */
+    public static final class Content {
+        private final String mName;
+        @Nullable private final String mPiece;
+        @Nullable private final String mTarget;
+
+        public Content(@NonNull String name, @Nullable String piece, @Nullable String target) {
+            mName = name;
+            mPiece = piece;
+            mTarget = target;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Nullable
+        public String getPiece() {
+            return mPiece;
+        }
+
+        @Nullable
+        public String getTarget() {
+            return mTarget;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Content)) return false;
+            Content content = (Content) o;
+            return mName.equals(content.mName) && Objects.equals(mPiece, content.mPiece) && Objects.equals(mTarget, content.mTarget);
+        }
+
+        @Override
+        public int hashCode() {
+            // Same as Objects.hash(), without allocating the varargs array on every lookup
+            int result = 31 + mName.hashCode();
+            result = 31 * result + Objects.hashCode(mPiece);
+            return 31 * result + Objects.hashCode(mTarget);
+        }
+    }
+
+    private class Listener implements ViewTreeObserver.OnScrollChangedListener, ViewTreeObserver.OnGlobalLayoutListener {
+        // The container's tree observer references this listener, a strong reference would keep the container alive
+        private final WeakReference<ViewGroup> mContainer;
+
+        Listener(ViewGroup container) {
+            mContainer = new WeakReference<>(container);
+        }
+
+        @Override
+        public void onScrollChanged() {
+            ViewGroup container = mContainer.get();
+            if (container != null) checkVisibility(container);
+        }
+
+        @Override
+        public void onGlobalLayout() {
+            ViewGroup container = mContainer.get();
+            if (container != null) checkVisibility(container);
+        }
+    }
+}
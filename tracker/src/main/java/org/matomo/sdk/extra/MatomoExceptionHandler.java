@@ -9,35 +9,88 @@ package org.matomo.sdk.extra;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.matomo.sdk.Matomo;
 import org.matomo.sdk.TrackMe;
 import org.matomo.sdk.Tracker;
 import org.matomo.sdk.dispatcher.DispatchMode;
+import org.matomo.sdk.dispatcher.DispatchScheduler;
+
+import java.util.concurrent.Executor;
 
 import timber.log.Timber;
 
 /**
  * An exception handler that wraps the existing exception handler and dispatches event to a {@link org.matomo.sdk.Tracker}.
  * <p>
+ * The exception is written to a {@link CrashJournal} and tracked when the handler is installed again on the next app start.
+ * Only if there is no journal, the exception is tracked right away.
+ * The journal is read and prepared in the background, an exception that happens before that is tracked right away too.
+ * While the tracker is still initializing, see {@link org.matomo.sdk.TrackerBuilder#setAsyncInit(boolean)}, the crash doesn't wait for it
+ * and nothing is dispatched, the exception is tracked from the journal on the next app start.
+ * <p>
  * Also see documentation for {@link TrackHelper#uncaughtExceptions()}
  */
 public class MatomoExceptionHandler implements Thread.UncaughtExceptionHandler {
     private static final String TAG = Matomo.tag(MatomoExceptionHandler.class);
+    public static final long DEFAULT_DISPATCH_TIMEOUT = 1000;
     private final Tracker mTracker;
     private final TrackMe mTrackMe;
     private final Thread.UncaughtExceptionHandler mDefaultExceptionHandler;
+    private volatile long mDispatchTimeout = DEFAULT_DISPATCH_TIMEOUT;
+    // Set once the journal is open
+    @Nullable private volatile CrashJournal mJournal;
 
     public MatomoExceptionHandler(@NonNull Tracker tracker, @Nullable TrackMe trackMe) {
+        this(tracker, trackMe, null, DispatchScheduler.getShared());
+        // Even finding the journal touches the disk
+        DispatchScheduler.getShared().execute(() -> openJournal(CrashJournal.forTracker(tracker)));
+    }
+
+    /**
+     * @param journal where fatal exceptions are recorded, a crash from the previous run is tracked right away
+     */
+    public MatomoExceptionHandler(@NonNull Tracker tracker, @Nullable TrackMe trackMe, @Nullable CrashJournal journal) {
+        this(tracker, trackMe, journal, DispatchScheduler.getShared());
+    }
+
+    /**
+     * @param executor the journal is read and prepared on it
+     */
+    @VisibleForTesting
+    MatomoExceptionHandler(@NonNull Tracker tracker, @Nullable TrackMe trackMe, @Nullable CrashJournal journal, @NonNull Executor executor) {
         mTracker = tracker;
         mTrackMe = trackMe;
         mDefaultExceptionHandler = Thread.getDefaultUncaughtExceptionHandler();
+        if (journal != null) executor.execute(() -> openJournal(journal));
+    }
+
+    private void openJournal(@Nullable CrashJournal journal) {
+        if (journal == null) return;
+        TrackMe previousCrash = journal.read();
+        if (previousCrash != null) mTracker.track(previousCrash);
+        if (journal.open(mTrackMe)) mJournal = journal;
     }
 
     public Tracker getTracker() {
         return mTracker;
     }
 
+    /**
+     * How long the crashing thread may be held up to dispatch the exception, before it is passed on to the wrapped handler.
+     * Events that were not sent by then stay in the offline cache.
+     *
+     * @param timeout in milliseconds, defaults to {@link #DEFAULT_DISPATCH_TIMEOUT}
+     */
+    public void setDispatchTimeout(long timeout) {
+        mDispatchTimeout = timeout;
+    }
+
+    public long getDispatchTimeout() {
+        return mDispatchTimeout;
+    }
+
     /**
      * This will give you the previous exception handler that is now wrapped.
      */
@@ -48,17 +101,25 @@ public class MatomoExceptionHandler implements Thread.UncaughtExceptionHandler {
     @Override
     public void uncaughtException(@NonNull Thread thread, @NonNull Throwable ex) {
         try {
-            String excInfo = ex.getMessage();
+            // Cheap and allocates little, so the crash is likely kept even if we run out of memory further down
+            final CrashJournal journal = mJournal;
+            final boolean journaled = journal != null && journal.record(ex);
 
             Tracker tracker = getTracker();
+            // Its calls could wait for the initialization for longer than the dispatch timeout
+            final boolean initialized = tracker.isInitialized();
 
             // Force the tracker into offline mode to ensure events are written to disk
-            tracker.setDispatchMode(DispatchMode.EXCEPTION);
+            if (initialized) tracker.setDispatchMode(DispatchMode.EXCEPTION);
 
-            TrackHelper.track(mTrackMe).exception(ex).description(excInfo).fatal(true).with(tracker);
+            if (!journaled) {
+                String excInfo = ex.getMessage();
+                TrackHelper.track(mTrackMe).exception(ex).description(excInfo).fatal(true).with(tracker);
+            }
 
-            // Immediately dispatch as the app might be dying after rethrowing the exception and block until the dispatch is completed
-            tracker.dispatchBlocking();
+            // Immediately dispatch as the app might be dying after rethrowing the exception,
+            // but don't hold up the crash for longer than the time budget allows.
+            if (initialized) tracker.dispatchBlocking(mDispatchTimeout);
         } catch (Exception e) {
             Timber.tag(TAG).e(e, "Couldn't track uncaught exception");
         } finally {
@@ -261,6 +261,14 @@ public class TrackHelper {
             if (mValue != null) trackMe.set(QueryParams.EVENT_VALUE, mValue);
             return trackMe;
         }
+
+        /**
+         * Adds this event to the counter's totals instead of tracking it right away, see {@link EventCounter}.
+         * Only category, action, name and value are kept, the value defaults to 1.
+         */
+        public void count(EventCounter counter) {
+            counter.add(mCategory, mAction, mName, mValue != null ? mValue : 1);
+        }
     }
 
     /**
@@ -745,13 +753,20 @@ public class TrackHelper {
                 Timber.tag(TAG).w(e, "Couldn't get stack info");
                 className = mThrowable.getClass().getName();
             }
-            String actionName = "exception/" + (mIsFatal ? "fatal/" : "") + (className + "/") + mDescription;
-            return new TrackMe(getBaseTrackMe())
+            return build(getBaseTrackMe(), className, mDescription, mIsFatal);
+        }
+
+        /**
+         * @param className where the exception was thrown, "class/method:line"
+         */
+        static TrackMe build(TrackMe baseTrackMe, String className, String description, boolean isFatal) {
+            String actionName = "exception/" + (isFatal ? "fatal/" : "") + (className + "/") + description;
+            return new TrackMe(baseTrackMe)
                     .set(QueryParams.ACTION_NAME, actionName)
                     .set(QueryParams.EVENT_CATEGORY, "Exception")
                     .set(QueryParams.EVENT_ACTION, className)
-                    .set(QueryParams.EVENT_NAME, mDescription)
-                    .set(QueryParams.EVENT_VALUE, mIsFatal ? 1 : 0);
+                    .set(QueryParams.EVENT_NAME, description)
+                    .set(QueryParams.EVENT_VALUE, isFatal ? 1 : 0);
         }
     }
 
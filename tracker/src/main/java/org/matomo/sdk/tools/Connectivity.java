@@ -5,6 +5,8 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
+import androidx.annotation.Nullable;
+
 import static org.matomo.sdk.tools.Connectivity.Type.MOBILE;
 import static org.matomo.sdk.tools.Connectivity.Type.NONE;
 import static org.matomo.sdk.tools.Connectivity.Type.WIFI;
@@ -16,6 +18,10 @@ public class Connectivity {
         mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
     }
 
+    protected ConnectivityManager getConnectivityManager() {
+        return mConnectivityManager;
+    }
+
     public boolean isConnected() {
         NetworkInfo network = mConnectivityManager.getActiveNetworkInfo();
         return network != null && network.isConnected();
@@ -32,4 +38,37 @@ public class Connectivity {
             return WIFI;
         } else return MOBILE;
     }
+
+    /**
+     * @return true if the active network may incur costs for the user, e.g. cellular data.
+     */
+    public boolean isMetered() {
+        return mConnectivityManager.isActiveNetworkMetered();
+    }
+
+    /**
+     * @return true if the system verified that the active network actually provides internet access.
+     * This implementation can't tell and assumes that any connected network is validated.
+     */
+    public boolean isValidated() {
+        return isConnected();
+    }
+
+    /**
+     * Implementations that are notified by the system can use this to report state changes.
+     * This polling implementation never invokes the listener.
+     *
+     * @param listener may be null to remove the current listener
+     */
+    public void setListener(@Nullable Listener listener) {
+        // Nothing to report, state is only known when polling
+    }
+
+    public interface Listener {
+        /**
+         * Called whenever the connectivity state changes, e.g. when the device comes back online.
+         * May be called on an arbitrary thread.
+         */
+        void onConnectivityChanged(Connectivity connectivity);
+    }
 }
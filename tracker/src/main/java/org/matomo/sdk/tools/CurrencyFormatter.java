@@ -7,14 +7,31 @@
 
 package org.matomo.sdk.tools;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.math.BigDecimal;
-
 public class CurrencyFormatter {
     @Nullable
     public static String priceString(@Nullable Integer cents) {
         if (cents == null) return null;
-        return new BigDecimal(cents).movePointLeft(2).toPlainString();
+        return priceString(cents.intValue());
+    }
+
+    /**
+     * Integer arithmetic instead of a BigDecimal per price, e.g. 1999 becomes "19.99".
+     */
+    @NonNull
+    public static String priceString(int cents) {
+        // long, so Integer.MIN_VALUE can be negated
+        long value = cents;
+        StringBuilder sb = new StringBuilder(14);
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        long fraction = value % 100;
+        sb.append(value / 100).append('.');
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction).toString();
     }
 }
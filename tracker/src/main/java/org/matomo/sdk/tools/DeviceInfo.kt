@@ -0,0 +1,152 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.tools
+
+import org.matomo.sdk.Matomo.Companion.tag
+import org.matomo.sdk.dispatcher.DispatchScheduler
+import timber.log.Timber
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Process-wide cache of the device values that every event carries, shared by all trackers.
+ *
+ * Querying the display involves Binder calls, so [prefetch] computes the values on a background thread ahead of the first event.
+ * Trackers don't wait for it, events that come earlier are held back until [whenReady] calls back.
+ * Resolution and language change with the configuration, e.g. on rotation or a locale switch, and are recomputed after [invalidate].
+ * The user agent is fixed for the lifetime of the process.
+ */
+class DeviceInfo @JvmOverloads constructor(
+    private val deviceHelper: DeviceHelper,
+    private val executor: Executor = DispatchScheduler.shared
+) {
+    private class Values(val resolution: String, val language: String)
+
+    @Volatile
+    private var values: Values? = null
+    private val generationCounter = AtomicInteger()
+    private val prefetching = AtomicBoolean()
+    private val readyCallbacks = ConcurrentLinkedQueue<Runnable>()
+
+    private val userAgentLazy = lazy { deviceHelper.userAgent }
+    val userAgent: String by userAgentLazy
+
+    /**
+     * Screen resolution as `widthxheight`, or `unknown` if the display could not be queried.
+     */
+    val resolution: String
+        get() = current().resolution
+
+    val language: String
+        get() = current().language
+
+    /**
+     * Increases with every [invalidate], so users of the values can tell when to read them again.
+     */
+    val generation: Int
+        get() = generationCounter.get()
+
+    /**
+     * @return true if the values are cached and reading them won't block
+     */
+    val isReady: Boolean
+        get() = values != null && userAgentLazy.isInitialized()
+
+    /**
+     * The cached values, null instead of blocking if they are not.
+     */
+    val cachedResolution: String?
+        get() = values?.resolution
+
+    val cachedLanguage: String?
+        get() = values?.language
+
+    val cachedUserAgent: String?
+        get() = if (userAgentLazy.isInitialized()) userAgent else null
+
+    /**
+     * Computes the values on the calling thread, unless they are cached.
+     */
+    fun load() {
+        userAgent
+        current()
+    }
+
+    /**
+     * Computes the values in the background, unless they are cached or already being computed.
+     */
+    fun prefetch() {
+        if (isReady || !prefetching.compareAndSet(false, true)) return
+        executor.execute {
+            val startGeneration = generationCounter.get()
+            try {
+                load()
+            } catch (e: Exception) {
+                Timber.tag(TAG).e(e, "Failed to prefetch device info.")
+            } finally {
+                prefetching.set(false)
+            }
+            if (isReady) {
+                notifyReady()
+            } else if (startGeneration != generationCounter.get()) {
+                // Invalidated while computing, the values were not cached
+                prefetch()
+            }
+        }
+    }
+
+    /**
+     * Runs the callback on the executor once the values are cached, prefetching them if necessary.
+     */
+    fun whenReady(callback: Runnable) {
+        readyCallbacks.add(callback)
+        if (isReady) notifyReady() else prefetch()
+    }
+
+    private fun notifyReady() {
+        if (readyCallbacks.isEmpty()) return
+        executor.execute {
+            while (isReady) {
+                val callback = readyCallbacks.poll() ?: break
+                try {
+                    callback.run()
+                } catch (e: Exception) {
+                    Timber.tag(TAG).e(e, "Device info callback failed.")
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the configuration dependent values, call this when the configuration changed.
+     */
+    fun invalidate() {
+        generationCounter.incrementAndGet()
+        values = null
+        prefetch()
+    }
+
+    private fun current(): Values {
+        values?.let { return it }
+        synchronized(this) {
+            values?.let { return it }
+            val startGeneration = generationCounter.get()
+            val res = deviceHelper.resolution
+            val computed = Values(if (res != null) "${res[0]}x${res[1]}" else UNKNOWN_VALUE, deviceHelper.userLanguage)
+            // An invalidation while computing means the values may already be stale, use them once but don't cache them
+            if (startGeneration == generationCounter.get()) values = computed
+            return computed
+        }
+    }
+
+    companion object {
+        private val TAG = tag(DeviceInfo::class.java)
+        private const val UNKNOWN_VALUE = "unknown"
+    }
+}
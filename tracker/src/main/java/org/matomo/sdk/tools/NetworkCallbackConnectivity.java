@@ -0,0 +1,214 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.tools;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.matomo.sdk.Matomo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Keeps track of the network state via {@link ConnectivityManager.NetworkCallback} instead of querying the system on every call.
+ * Reads are served from cached values, so they are cheap enough to be called for every packet.
+ * <p>
+ * All instances share one callback per process, apps may only register about 100 of them.
+ * If the callback can't be registered, this falls back to the polling behavior of {@link Connectivity}.
+ */
+public class NetworkCallbackConnectivity extends Connectivity {
+    private static final String TAG = Matomo.tag(NetworkCallbackConnectivity.class);
+    private static final Object sMonitorLock = new Object();
+    private static Monitor sMonitor;
+    private final Monitor mMonitor;
+    private volatile Listener mListener;
+
+    @VisibleForTesting
+    final ConnectivityManager.NetworkCallback mCallback;
+
+    public NetworkCallbackConnectivity(Context context) {
+        super(context);
+        mMonitor = getMonitor(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+        mCallback = mMonitor.mCallback;
+        mMonitor.addClient(this);
+    }
+
+    private static Monitor getMonitor(Context appContext) {
+        synchronized (sMonitorLock) {
+            ConnectivityManager manager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            // The application's manager doesn't change within a process, only tests start new applications
+            if (sMonitor == null || sMonitor.mManager != manager) sMonitor = new Monitor(appContext);
+            return sMonitor;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mMonitor.mRegistered ? mMonitor.mConnected : super.isConnected();
+    }
+
+    @Override
+    public Type getType() {
+        return mMonitor.mRegistered ? mMonitor.mType : super.getType();
+    }
+
+    @Override
+    public boolean isMetered() {
+        return mMonitor.mRegistered ? mMonitor.mMetered : super.isMetered();
+    }
+
+    @Override
+    public boolean isValidated() {
+        return mMonitor.mRegistered ? mMonitor.mValidated : super.isValidated();
+    }
+
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    private void onChanged() {
+        Listener listener = mListener;
+        if (listener != null) listener.onConnectivityChanged(this);
+    }
+
+    /**
+     * The process-wide callback and the state it reported.
+     */
+    private static class Monitor {
+        final ConnectivityManager mManager;
+        // Weakly held, a dispatcher that is gone must not be kept alive by the callback
+        private final Set<NetworkCallbackConnectivity> mClients = Collections.newSetFromMap(new WeakHashMap<>());
+        // Capabilities can be null if they were not yet reported for a network
+        private final Map<Network, NetworkCapabilities> mNetworks = new HashMap<>();
+        final boolean mRegistered;
+        volatile boolean mConnected;
+        volatile boolean mMetered;
+        volatile boolean mValidated;
+        volatile Type mType;
+
+        Monitor(Context appContext) {
+            Connectivity polling = new Connectivity(appContext);
+            mManager = polling.getConnectivityManager();
+            // Seed with the current state, callbacks will only report changes from here on.
+            mConnected = polling.isConnected();
+            mType = polling.getType();
+            mMetered = polling.isMetered();
+            mValidated = mConnected;
+            mRegistered = register();
+        }
+
+        void addClient(NetworkCallbackConnectivity client) {
+            synchronized (mClients) {
+                mClients.add(client);
+            }
+        }
+
+        private boolean register() {
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    mManager.registerDefaultNetworkCallback(mCallback);
+                } else {
+                    NetworkRequest request = new NetworkRequest.Builder()
+                            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                            .build();
+                    mManager.registerNetworkCallback(request, mCallback);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                // e.g. SecurityException or too many registered callbacks within this app
+                Timber.tag(TAG).w(e, "Failed to register network callback, falling back to polling.");
+                return false;
+            }
+        }
+
+        final ConnectivityManager.NetworkCallback mCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                NetworkCapabilities capabilities = null;
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                    // Only since API26 is onCapabilitiesChanged guaranteed to follow onAvailable
+                    capabilities = mManager.getNetworkCapabilities(network);
+                }
+                synchronized (mNetworks) {
+                    if (capabilities != null || !mNetworks.containsKey(network)) mNetworks.put(network, capabilities);
+                }
+                updateState();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+                synchronized (mNetworks) {
+                    mNetworks.put(network, capabilities);
+                }
+                updateState();
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                synchronized (mNetworks) {
+                    mNetworks.remove(network);
+                }
+                updateState();
+            }
+        };
+
+        private void updateState() {
+            boolean connected;
+            boolean wifi = false;
+            boolean metered = true;
+            boolean validated = false;
+            synchronized (mNetworks) {
+                connected = !mNetworks.isEmpty();
+                for (NetworkCapabilities capabilities : mNetworks.values()) {
+                    if (capabilities == null) {
+                        // Nothing known yet, don't block dispatching because of that
+                        validated = true;
+                        continue;
+                    }
+                    if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) wifi = true;
+                    if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) metered = false;
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+                        validated = true;
+                    }
+                }
+            }
+            metered = connected && metered;
+            validated = connected && validated;
+            final Type type = !connected ? Type.NONE : (wifi ? Type.WIFI : Type.MOBILE);
+            final boolean changed = connected != mConnected || type != mType || metered != mMetered || validated != mValidated;
+            mConnected = connected;
+            mType = type;
+            mMetered = metered;
+            mValidated = validated;
+            Timber.tag(TAG).v("Network changed (connected=%b, type=%s, metered=%b, validated=%b)", mConnected, mType, mMetered, mValidated);
+            if (!changed) return;
+
+            final List<NetworkCallbackConnectivity> clients;
+            synchronized (mClients) {
+                clients = new ArrayList<>(mClients);
+            }
+            for (NetworkCallbackConnectivity client : clients) client.onChanged();
+        }
+    }
+}
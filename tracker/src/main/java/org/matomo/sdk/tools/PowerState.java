@@ -0,0 +1,120 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.tools;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import androidx.annotation.Nullable;
+
+import org.matomo.sdk.Matomo;
+
+import timber.log.Timber;
+
+/**
+ * Helper class to gain information about the charging and battery saver state of the device.
+ * Values are cached and kept up to date via broadcasts, which are registered by {@link #observe()} or once a value is first requested.
+ */
+public class PowerState {
+    private static final String TAG = Matomo.tag(PowerState.class);
+    private final Context mContext;
+    private volatile boolean mRegistered = false;
+    private volatile boolean mCharging = false;
+    private volatile boolean mPowerSaveMode = false;
+    private volatile Listener mListener;
+
+    public PowerState(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return true if the device is connected to a power source
+     */
+    public boolean isCharging() {
+        ensureRegistered();
+        return mCharging;
+    }
+
+    /**
+     * @return true if the user enabled battery saver
+     */
+    public boolean isPowerSaveMode() {
+        ensureRegistered();
+        return mPowerSaveMode;
+    }
+
+    /**
+     * @param listener may be null to remove the current listener
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Registers for the power broadcasts right away, so the {@link Listener} is called even if no value was requested yet.
+     */
+    public void observe() {
+        ensureRegistered();
+    }
+
+    private void ensureRegistered() {
+        if (mRegistered) return;
+        synchronized (this) {
+            if (mRegistered) return;
+            try {
+                // Sticky broadcast, returns the current state without registering anything
+                Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                mCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                mPowerSaveMode = readPowerSaveMode();
+
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_POWER_CONNECTED);
+                filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+                filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+                mContext.registerReceiver(mReceiver, filter);
+            } catch (RuntimeException e) {
+                Timber.tag(TAG).w(e, "Failed to observe power state.");
+            }
+            mRegistered = true;
+        }
+    }
+
+    private boolean readPowerSaveMode() {
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                mCharging = true;
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                mCharging = false;
+            } else if (PowerManager.ACTION_POWER_SAVE_MODE_CHANGED.equals(action)) {
+                mPowerSaveMode = readPowerSaveMode();
+            } else {
+                return;
+            }
+            Timber.tag(TAG).v("Power state changed (charging=%b, powerSaveMode=%b)", mCharging, mPowerSaveMode);
+            Listener listener = mListener;
+            if (listener != null) listener.onPowerStateChanged(PowerState.this);
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Called when the device is plugged in or unplugged or battery saver is toggled.
+         */
+        void onPowerStateChanged(PowerState powerState);
+    }
+}
@@ -0,0 +1,611 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.matomo.sdk.tools
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener
+import android.os.Build
+import androidx.annotation.VisibleForTesting
+import org.matomo.sdk.Matomo.Companion.tag
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.WeakHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * [SharedPreferences] for the SDK's own state, backed by a memory-mapped append-only log instead of an XML file.
+ *
+ * All values are kept in memory, so reads don't touch the disk. A write appends only the changed values to the mapped file,
+ * which is a memory copy, instead of rewriting the whole file. [SharedPreferences.Editor.apply] updates the values right away and
+ * appends them on the [executor], [SharedPreferences.Editor.commit] appends them on the calling thread and forces them to the disk.
+ * Before the log is full it is compacted on the [executor] into a new file that holds just the current values.
+ * The executor is a writer thread of the store's own, so writes don't wait behind dispatching. Once appended, values survive the
+ * process being killed; [flushAll] appends what is still pending, the SDK calls it when the app goes to the background.
+ *
+ * Processes of the same app can share a store: appends and compaction are done under a file lock, after reading what other
+ * processes appended since. Reads pick up their changes too, but listeners are only called for changes made in this process,
+ * on the thread that made them. Use [open] to get the store for a name.
+ */
+class StateStore private constructor(
+    private val file: File,
+    legacy: (() -> Map<String, *>)?,
+    private val executor: Executor
+) : SharedPreferences {
+    private val values = HashMap<String, Any>()
+    private val listeners = WeakHashMap<OnSharedPreferenceChangeListener, Any>()
+    private var buffer: MappedByteBuffer? = null
+
+    // End of the last complete record
+    private var position = 0
+
+    // Applied, but not appended to the log yet. Null values are removals, a clear comes before all of them.
+    private val pending = LinkedHashMap<String, Any?>()
+    private var pendingClear = false
+    private var flushScheduled = false
+    private var compactionScheduled = false
+
+    // The log itself is replaced by compaction, so the lock is taken on a file of its own
+    private val lockFile = File(file.path + ".lock")
+    private var lockChannel: FileChannel? = null
+
+    // File locks are held per process, threads and further instances of this process wait here
+    private val processLock: Any = synchronized(processLocks) { processLocks.getOrPut(file.absolutePath) { Any() } }
+
+    init {
+        try {
+            // Decided under the lock, so only one process imports and the others load its result
+            locked<Unit> {
+                if (file.exists()) {
+                    load()
+                } else {
+                    if (legacy != null) import(legacy())
+                    compact()
+                }
+            }
+        } catch (e: IOException) {
+            // Still usable, just not persisted
+            Timber.tag(TAG).e(e, "Failed to open %s", file)
+        }
+    }
+
+    /**
+     * Runs the block while holding the lock that excludes other processes. Must be called while holding the instance lock.
+     */
+    @Throws(IOException::class)
+    private inline fun <T> locked(block: () -> T): T {
+        synchronized(processLock) {
+            val channel = lockChannel ?: run {
+                lockFile.parentFile?.mkdirs()
+                RandomAccessFile(lockFile, "rw").channel.also { lockChannel = it }
+            }
+            val lock = channel.lock()
+            try {
+                return block()
+            } finally {
+                lock.release()
+            }
+        }
+    }
+
+    private fun import(imported: Map<String, *>) {
+        for ((key, value) in imported) if (value != null && isSupported(value)) values[key] = copy(value)
+        Timber.tag(TAG).d("Imported %d values into %s", imported.size, file)
+    }
+
+    private fun map(capacity: Long) {
+        RandomAccessFile(file, "rw").use { raf ->
+            buffer = raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun load() {
+        map(file.length())
+        val buffer = buffer!!
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            Timber.tag(TAG).w("Unknown format in %s, starting over.", file)
+            values.clear()
+            compact()
+            return
+        }
+        position = HEADER_SIZE
+        readRecords(buffer)
+    }
+
+    /**
+     * Applies the records from [position] on.
+     *
+     * @return false if the log was replaced by a compaction in another process
+     */
+    private fun readRecords(buffer: MappedByteBuffer): Boolean {
+        buffer.position(position)
+        try {
+            while (buffer.hasRemaining()) {
+                val type = buffer.get()
+                if (type == END) break
+                if (type == TYPE_REPLACED) return false
+                val key = readString(buffer, buffer.getShort().toInt() and 0xFFFF)
+                when (type) {
+                    TYPE_STRING -> values[key] = readString(buffer, buffer.getInt())
+                    TYPE_INT -> values[key] = buffer.getInt()
+                    TYPE_LONG -> values[key] = buffer.getLong()
+                    TYPE_FLOAT -> values[key] = buffer.getFloat()
+                    TYPE_BOOLEAN -> values[key] = buffer.get() != 0.toByte()
+                    TYPE_STRING_SET -> values[key] = HashSet<String>().apply {
+                        repeat(buffer.getInt()) { add(readString(buffer, buffer.getInt())) }
+                    }
+                    TYPE_REMOVE -> values.remove(key)
+                    TYPE_CLEAR -> values.clear()
+                    else -> throw IllegalStateException("Unknown record type $type")
+                }
+                position = buffer.position()
+            }
+        } catch (e: RuntimeException) {
+            // A write that was cut short, everything before it is intact and it will be overwritten
+            Timber.tag(TAG).w(e, "Truncated log in %s at %d", file, position)
+        }
+        return true
+    }
+
+    private fun hasNewRecords(buffer: MappedByteBuffer): Boolean = position < buffer.capacity() && buffer.get(position) != END
+
+    /**
+     * Reads what other processes appended since. Must be called while holding the instance and the file lock.
+     */
+    @Throws(IOException::class)
+    private fun catchUp() {
+        val buffer = buffer ?: return
+        if (!hasNewRecords(buffer)) return
+        if (!readRecords(buffer)) {
+            // The new file holds the complete state
+            this.buffer = null
+            release(buffer)
+            values.clear()
+            load()
+        }
+        // Not appended yet, so they win over what was read
+        if (pendingClear) values.clear()
+        for ((key, value) in pending) {
+            if (value == null) values.remove(key) else values[key] = value
+        }
+    }
+
+    /**
+     * Picks up changes of other processes, a single memory read if there are none. Must be called while holding the instance lock.
+     */
+    private fun refresh() {
+        val buffer = buffer ?: return
+        if (!hasNewRecords(buffer)) return
+        try {
+            locked { catchUp() }
+        } catch (e: IOException) {
+            Timber.tag(TAG).e(e, "Failed to read %s", file)
+        }
+    }
+
+    /**
+     * Rewrites the current values into a fresh file, via a temporary file so a crash leaves either the old or the new log.
+     * The new log is at most half full. Must be called while holding the file lock.
+     */
+    @Throws(IOException::class)
+    private fun compact() {
+        val records = values.map { (key, value) -> encode(key, value) }
+        val used = HEADER_SIZE + records.sumOf { it.size }
+        var capacity = INITIAL_CAPACITY
+        while (capacity < 2 * (used + 1)) capacity *= 2
+
+        val tmp = File(file.path + ".tmp")
+        file.parentFile?.mkdirs()
+        RandomAccessFile(tmp, "rw").use { raf ->
+            raf.setLength(capacity.toLong())
+            val out = raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity.toLong())
+            out.putInt(MAGIC).putInt(VERSION)
+            for (record in records) out.put(record)
+            out.force()
+            release(out)
+        }
+        if (!tmp.renameTo(file)) throw IOException("Failed to replace $file")
+        val old = buffer
+        buffer = null
+        if (old != null) {
+            // Processes that still map the old log reload on their next access. There is always room for the type byte.
+            old.put(position, TYPE_REPLACED)
+            release(old)
+        }
+        map(capacity.toLong())
+        position = used
+    }
+
+    /**
+     * Must be called while holding the instance and the file lock.
+     *
+     * @return false if the log was compacted instead, which already includes the record
+     */
+    @Throws(IOException::class)
+    private fun append(record: ByteArray): Boolean {
+        val buffer = buffer
+        if (buffer == null || position + record.size + 1 > buffer.capacity()) {
+            // The new value is already in the map, so compaction includes it
+            compact()
+            return false
+        }
+        // The type byte goes last, a log that ends mid-record reads as ending before it
+        buffer.position(position + 1)
+        buffer.put(record, 1, record.size - 1)
+        buffer.put(position + record.size, END)
+        buffer.put(position, record[0])
+        position += record.size
+        return true
+    }
+
+    /**
+     * Appends the pending changes. Must be called while holding the instance lock.
+     *
+     * @param force also sync the log to the disk
+     * @return false if the changes could not be persisted
+     */
+    private fun flushPending(force: Boolean): Boolean {
+        try {
+            locked<Unit> {
+                catchUp()
+                val records = ArrayList<ByteArray>(pending.size + 1)
+                if (pendingClear) records.add(encodeMarker(TYPE_CLEAR, ""))
+                for ((key, value) in pending) records.add(if (value == null) encodeMarker(TYPE_REMOVE, key) else encode(key, value))
+                pendingClear = false
+                pending.clear()
+                for (record in records) if (!append(record)) break
+                if (force) buffer?.force()
+            }
+        } catch (e: Exception) {
+            // IOException from the disk, or a RuntimeException from syncing the mapped file
+            Timber.tag(TAG).e(e, "Failed to write %s", file)
+            return false
+        }
+        scheduleCompaction()
+        return buffer != null
+    }
+
+    // Compacts ahead of time, so writes on the calling thread don't have to. Must be called while holding the instance lock.
+    private fun scheduleCompaction() {
+        val buffer = buffer ?: return
+        if (compactionScheduled || position < buffer.capacity() / 4 * 3) return
+        compactionScheduled = true
+        executor.execute {
+            synchronized(this) {
+                compactionScheduled = false
+                try {
+                    locked<Unit> {
+                        catchUp()
+                        val current = this.buffer
+                        if (current != null && position >= current.capacity() / 4 * 3) compact()
+                    }
+                } catch (e: IOException) {
+                    Timber.tag(TAG).e(e, "Failed to compact %s", file)
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the applied changes that were not written yet on the calling thread.
+     */
+    @Synchronized
+    fun flush() {
+        if (pendingClear || pending.isNotEmpty()) flushPending(false)
+    }
+
+    @VisibleForTesting
+    val logSize: Int
+        @Synchronized get() = position
+
+    @Synchronized
+    override fun getAll(): Map<String, *> {
+        refresh()
+        return HashMap<String, Any>(values)
+    }
+
+    @Synchronized
+    override fun getString(key: String, defValue: String?): String? {
+        refresh()
+        return if (values.containsKey(key)) values[key] as String else defValue
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    @Synchronized
+    override fun getStringSet(key: String, defValues: Set<String>?): Set<String>? {
+        refresh()
+        return if (values.containsKey(key)) HashSet(values[key] as Set<String>) else defValues
+    }
+
+    @Synchronized
+    override fun getInt(key: String, defValue: Int): Int {
+        refresh()
+        return if (values.containsKey(key)) values[key] as Int else defValue
+    }
+
+    @Synchronized
+    override fun getLong(key: String, defValue: Long): Long {
+        refresh()
+        return if (values.containsKey(key)) values[key] as Long else defValue
+    }
+
+    @Synchronized
+    override fun getFloat(key: String, defValue: Float): Float {
+        refresh()
+        return if (values.containsKey(key)) values[key] as Float else defValue
+    }
+
+    @Synchronized
+    override fun getBoolean(key: String, defValue: Boolean): Boolean {
+        refresh()
+        return if (values.containsKey(key)) values[key] as Boolean else defValue
+    }
+
+    @Synchronized
+    override fun contains(key: String): Boolean {
+        refresh()
+        return values.containsKey(key)
+    }
+
+    override fun edit(): SharedPreferences.Editor = Editor()
+
+    override fun registerOnSharedPreferenceChangeListener(listener: OnSharedPreferenceChangeListener) {
+        synchronized(listeners) { listeners[listener] = PRESENT }
+    }
+
+    override fun unregisterOnSharedPreferenceChangeListener(listener: OnSharedPreferenceChangeListener) {
+        synchronized(listeners) { listeners.remove(listener) }
+    }
+
+    private fun write(changes: Map<String, Any?>, clear: Boolean, commit: Boolean): Boolean {
+        val changed = ArrayList<String>()
+        val persisted: Boolean
+        synchronized(this) {
+            refresh()
+            if (clear && values.isNotEmpty()) {
+                changed.addAll(values.keys)
+                values.clear()
+                pending.clear()
+                pendingClear = true
+            }
+            for ((key, value) in changes) {
+                if (value == null) {
+                    if (values.remove(key) == null) continue
+                } else {
+                    if (values[key] == value) continue
+                    values[key] = value
+                }
+                pending[key] = value
+                if (!changed.contains(key)) changed.add(key)
+            }
+            if (commit) {
+                persisted = flushPending(true)
+            } else {
+                persisted = buffer != null
+                if ((pendingClear || pending.isNotEmpty()) && !flushScheduled) {
+                    flushScheduled = true
+                    executor.execute {
+                        synchronized(this) {
+                            flushScheduled = false
+                            flushPending(false)
+                        }
+                    }
+                }
+            }
+        }
+        if (changed.isNotEmpty()) {
+            val toNotify = synchronized(listeners) { ArrayList(listeners.keys) }
+            for (listener in toNotify) for (key in changed) listener.onSharedPreferenceChanged(this, key)
+        }
+        return persisted
+    }
+
+    private inner class Editor : SharedPreferences.Editor {
+        private val changes = LinkedHashMap<String, Any?>()
+        private var clear = false
+
+        private fun put(key: String, value: Any?): SharedPreferences.Editor {
+            synchronized(this) { changes[key] = value }
+            return this
+        }
+
+        override fun putString(key: String, value: String?) = put(key, value)
+
+        override fun putStringSet(key: String, values: Set<String>?) = put(key, values?.let { HashSet(it) })
+
+        override fun putInt(key: String, value: Int) = put(key, value)
+
+        override fun putLong(key: String, value: Long) = put(key, value)
+
+        override fun putFloat(key: String, value: Float) = put(key, value)
+
+        override fun putBoolean(key: String, value: Boolean) = put(key, value)
+
+        override fun remove(key: String) = put(key, null)
+
+        override fun clear(): SharedPreferences.Editor {
+            synchronized(this) { clear = true }
+            return this
+        }
+
+        override fun commit(): Boolean = synchronized(this) { write(changes, clear, true) }
+
+        override fun apply() {
+            synchronized(this) { write(changes, clear, false) }
+        }
+    }
+
+    companion object {
+        private val TAG = tag(StateStore::class.java)
+        private const val DIR_NAME = "matomo"
+        private const val SUFFIX = ".state"
+        private const val MAGIC = 0x4D544D53 // "MTMS"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 8
+        private const val INITIAL_CAPACITY = 4 * 1024
+        private const val END: Byte = 0
+        private const val TYPE_STRING: Byte = 1
+        private const val TYPE_INT: Byte = 2
+        private const val TYPE_LONG: Byte = 3
+        private const val TYPE_FLOAT: Byte = 4
+        private const val TYPE_BOOLEAN: Byte = 5
+        private const val TYPE_STRING_SET: Byte = 6
+        private const val TYPE_REMOVE: Byte = 7
+        private const val TYPE_CLEAR: Byte = 8
+
+        // Written into a log that was replaced by compaction, never appears in the current one
+        private const val TYPE_REPLACED: Byte = 9
+        private val PRESENT = Any()
+        private val stores = HashMap<String, StateStore>()
+        private val processLocks = HashMap<String, Any>()
+
+        // One thread for all stores, so a write is never queued behind network requests
+        private val writer: ExecutorService by lazy {
+            ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, LinkedBlockingQueue()) { runnable ->
+                Thread(runnable, "Matomo-state")
+            }.apply { allowCoreThreadTimeOut(true) }
+        }
+
+        /**
+         * One instance per name and process, like [Context.getSharedPreferences].
+         * On first use, the values of an existing preferences file with the same name are imported and the file is deleted.
+         */
+        @JvmStatic
+        fun open(context: Context, name: String): StateStore = open(context, name, writer)
+
+        /**
+         * @param executor writes of [SharedPreferences.Editor.apply] and compaction run on it
+         */
+        @VisibleForTesting
+        internal fun open(context: Context, name: String, executor: Executor): StateStore = synchronized(stores) {
+            val file = File(File(context.filesDir, DIR_NAME), name + SUFFIX)
+            stores.getOrPut(file.absolutePath) { create(context, name, file, executor) }
+        }
+
+        /**
+         * [flush]es all open stores.
+         */
+        @JvmStatic
+        fun flushAll() {
+            val open = synchronized(stores) { ArrayList(stores.values) }
+            for (store in open) store.flush()
+        }
+
+        /**
+         * Forgets all instances, so the next [open] reads the file again.
+         */
+        @VisibleForTesting
+        internal fun releaseAll() {
+            synchronized(stores) { stores.clear() }
+        }
+
+        private fun create(context: Context, name: String, file: File, executor: Executor): StateStore {
+            val legacyFile = File(File(context.filesDir.parentFile, "shared_prefs"), "$name.xml")
+            if (!legacyFile.exists()) return StateStore(file, null, executor)
+
+            // Only read if the store does not exist yet, otherwise the import completed and only the deletion was interrupted
+            val store = StateStore(file, { context.getSharedPreferences(name, Context.MODE_PRIVATE).all }, executor)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                context.deleteSharedPreferences(name)
+            } else {
+                context.getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().commit()
+                legacyFile.delete()
+            }
+            return store
+        }
+
+        /**
+         * Unmaps a buffer right away instead of whenever it is garbage collected, so replaced logs don't pile up in the address space.
+         * There is no public API for it, if the runtime offers no way it is left to the garbage collector.
+         * The buffer must not be accessed afterwards.
+         */
+        private fun release(buffer: MappedByteBuffer) {
+            try {
+                // Android
+                Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer::class.java).invoke(null, buffer)
+                return
+            } catch (e: Exception) {
+                // Not on Android, e.g. in unit tests
+            }
+            try {
+                val unsafeClass = Class.forName("sun.misc.Unsafe")
+                val unsafe = unsafeClass.getDeclaredField("theUnsafe").apply { isAccessible = true }.get(null)
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java).invoke(unsafe, buffer)
+            } catch (e: Exception) {
+                Timber.tag(TAG).v("Can't unmap buffers, leaving it to the garbage collector.")
+            }
+        }
+
+        private fun isSupported(value: Any): Boolean =
+            value is String || value is Int || value is Long || value is Float || value is Boolean || value is Set<*>
+
+        private fun copy(value: Any): Any = if (value is Set<*>) HashSet(value) else value
+
+        private fun readString(buffer: ByteBuffer, length: Int): String {
+            if (length < 0 || length > buffer.remaining()) throw BufferUnderflowException()
+            val bytes = ByteArray(length)
+            buffer.get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun encodeMarker(type: Byte, key: String): ByteArray {
+            val keyBytes = key.toByteArray(Charsets.UTF_8)
+            return ByteBuffer.allocate(3 + keyBytes.size).put(type).putShort(keyBytes.size.toShort()).put(keyBytes).array()
+        }
+
+        private fun encode(key: String, value: Any): ByteArray {
+            val keyBytes = key.toByteArray(Charsets.UTF_8)
+            require(keyBytes.size <= 0xFFFF) { "Key too long: $key" }
+            val type: Byte
+            val payload: ByteBuffer
+            when (value) {
+                is String -> {
+                    val bytes = value.toByteArray(Charsets.UTF_8)
+                    type = TYPE_STRING
+                    payload = ByteBuffer.allocate(4 + bytes.size).putInt(bytes.size).put(bytes)
+                }
+                is Int -> {
+                    type = TYPE_INT
+                    payload = ByteBuffer.allocate(4).putInt(value)
+                }
+                is Long -> {
+                    type = TYPE_LONG
+                    payload = ByteBuffer.allocate(8).putLong(value)
+                }
+                is Float -> {
+                    type = TYPE_FLOAT
+                    payload = ByteBuffer.allocate(4).putFloat(value)
+                }
+                is Boolean -> {
+                    type = TYPE_BOOLEAN
+                    payload = ByteBuffer.allocate(1).put(if (value) 1.toByte() else 0.toByte())
+                }
+                is Set<*> -> {
+                    val items = value.map { it.toString().toByteArray(Charsets.UTF_8) }
+                    type = TYPE_STRING_SET
+                    payload = ByteBuffer.allocate(4 + items.sumOf { 4 + it.size }).putInt(items.size)
+                    for (item in items) payload.putInt(item.size).put(item)
+                }
+                else -> throw IllegalArgumentException("Unsupported value type ${value.javaClass}")
+            }
+            return ByteBuffer.allocate(3 + keyBytes.size + payload.capacity())
+                .put(type).putShort(keyBytes.size.toShort()).put(keyBytes).put(payload.array())
+                .array()
+        }
+    }
+}
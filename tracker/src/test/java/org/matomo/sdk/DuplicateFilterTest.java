@@ -0,0 +1,76 @@
+package org.matomo.sdk;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    private static TrackMe screen(String path) {
+        return new TrackMe().set(QueryParams.URL_PATH, path).set(QueryParams.ACTION_NAME, "title");
+    }
+
+    @Test
+    public void testWindow() {
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        assertFalse(filter.isDuplicate(screen("/a"), 0));
+        assertTrue(filter.isDuplicate(screen("/a"), 500));
+        assertFalse(filter.isDuplicate(screen("/b"), 600));
+        // Measured from the last event let through, duplicates don't extend the window
+        assertTrue(filter.isDuplicate(screen("/a"), 999));
+        assertFalse(filter.isDuplicate(screen("/a"), 1000));
+        assertTrue(filter.isDuplicate(screen("/a"), 1500));
+    }
+
+    @Test
+    public void testVolatileParamsIgnored() {
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        assertFalse(filter.isDuplicate(screen("/a").set(QueryParams.RANDOM_NUMBER, 1).set(QueryParams.DATETIME_OF_REQUEST, "2024-01-01 10:00:00+0000"), 0));
+        assertTrue(filter.isDuplicate(screen("/a").set(QueryParams.RANDOM_NUMBER, 2).set(QueryParams.DATETIME_OF_REQUEST, "2024-01-01 10:00:01+0000"), 10));
+        // Any other difference counts
+        assertFalse(filter.isDuplicate(screen("/a").set(QueryParams.EVENT_VALUE, 1), 20));
+    }
+
+    @Test
+    public void testCapacity() {
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        for (int i = 0; i <= DuplicateFilter.CAPACITY; i++) assertFalse(filter.isDuplicate(screen("/" + i), i));
+        // The least recently seen one was evicted
+        assertFalse(filter.isDuplicate(screen("/0"), 100));
+        assertTrue(filter.isDuplicate(screen("/" + DuplicateFilter.CAPACITY), 100));
+    }
+
+    @Test
+    public void testFingerprintCollision() {
+        // "Aa" and "BB" have the same String.hashCode()
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(DuplicateFilter.fingerprint(screen("Aa").toMap()), DuplicateFilter.fingerprint(screen("BB").toMap()));
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        assertFalse(filter.isDuplicate(screen("Aa"), 0));
+        assertFalse(filter.isDuplicate(screen("BB"), 10));
+        assertTrue(filter.isDuplicate(screen("BB"), 20));
+    }
+
+    @Test
+    public void testFingerprint() {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("a", "1");
+        params.put("b", "2");
+        Map<String, String> reversed = new LinkedHashMap<>();
+        reversed.put("b", "2");
+        reversed.put("a", "1");
+        assertEquals(DuplicateFilter.fingerprint(new HashMap<>(params)), DuplicateFilter.fingerprint(reversed));
+
+        Map<String, String> swapped = new HashMap<>();
+        swapped.put("a", "2");
+        swapped.put("b", "1");
+        assertNotEquals(DuplicateFilter.fingerprint(params), DuplicateFilter.fingerprint(swapped));
+    }
+}
@@ -16,11 +16,15 @@ import java.util.Map;
 
 import testhelpers.BaseTest;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -40,6 +44,7 @@ public class LegacySettingsPorterTest extends BaseTest {
     public void setup() {
         when(mPrefs.edit()).thenReturn(mPrefsEditor);
         when(mPrefsEditor.remove(anyString())).thenReturn(mPrefsEditor);
+        when(mPrefsEditor.putInt(anyString(), anyInt())).thenReturn(mPrefsEditor);
 
         when(mTrackerPrefs.edit()).thenReturn(mTrackerPrefsEditor);
         when(mTrackerPrefsEditor.putBoolean(anyString(), anyBoolean())).thenReturn(mTrackerPrefsEditor);
@@ -57,7 +62,7 @@ public class LegacySettingsPorterTest extends BaseTest {
         mPorter.port(mTracker);
 
         verify(mTrackerPrefs, never()).edit();
-        verify(mPrefs, never()).edit();
+        verify(mPrefsEditor, never()).remove(anyString());
     }
 
     @Test
@@ -71,13 +76,24 @@ public class LegacySettingsPorterTest extends BaseTest {
         verify(mPrefsEditor).remove(LegacySettingsPorter.LEGACY_PREF_OPT_OUT);
     }
 
+    @Test
+    public void testIsLegacyOptOut() {
+        when(mPrefs.getBoolean(LegacySettingsPorter.LEGACY_PREF_OPT_OUT, false)).thenReturn(true);
+        assertTrue(mPorter.isLegacyOptOut());
+
+        // Already ported
+        when(mPrefs.getInt(eq(LegacySettingsPorter.PREF_KEY_SETTINGS_VERSION), anyInt())).thenReturn(LegacySettingsPorter.SETTINGS_VERSION);
+        assertFalse(mPorter.isLegacyOptOut());
+        verify(mPrefsEditor, never()).remove(anyString());
+    }
+
     @Test
     public void testPort_userId_empty() {
         when(mPrefs.contains(LegacySettingsPorter.LEGACY_PREF_USER_ID)).thenReturn(false);
         mPorter.port(mTracker);
 
         verify(mTrackerPrefs, never()).edit();
-        verify(mPrefs, never()).edit();
+        verify(mPrefsEditor, never()).remove(anyString());
     }
 
     @Test
@@ -98,7 +114,7 @@ public class LegacySettingsPorterTest extends BaseTest {
         mPorter.port(mTracker);
 
         verify(mTrackerPrefs, never()).edit();
-        verify(mPrefs, never()).edit();
+        verify(mPrefsEditor, never()).remove(anyString());
     }
 
     @Test
@@ -119,7 +135,7 @@ public class LegacySettingsPorterTest extends BaseTest {
         mPorter.port(mTracker);
 
         verify(mTrackerPrefs, never()).edit();
-        verify(mPrefs, never()).edit();
+        verify(mPrefsEditor, never()).remove(anyString());
     }
 
     @Test
@@ -140,7 +156,7 @@ public class LegacySettingsPorterTest extends BaseTest {
         mPorter.port(mTracker);
 
         verify(mTrackerPrefs, never()).edit();
-        verify(mPrefs, never()).edit();
+        verify(mPrefsEditor, never()).remove(anyString());
     }
 
     @Test
@@ -155,6 +171,41 @@ public class LegacySettingsPorterTest extends BaseTest {
         verify(mPrefsEditor).remove(LegacySettingsPorter.LEGACY_PREF_PREV_VISIT);
     }
 
+    @Test
+    public void testPort_versionRecorded() {
+        mPorter.port(mTracker);
+        verify(mPrefsEditor).putInt(LegacySettingsPorter.PREF_KEY_SETTINGS_VERSION, LegacySettingsPorter.SETTINGS_VERSION);
+        verify(mPrefsEditor).apply();
+    }
+
+    @Test
+    public void testPort_once() {
+        when(mPrefs.getInt(LegacySettingsPorter.PREF_KEY_SETTINGS_VERSION, 0)).thenReturn(LegacySettingsPorter.SETTINGS_VERSION);
+        mPorter.port(mTracker);
+
+        verify(mPrefs, never()).getAll();
+        verify(mPrefs, never()).edit();
+        verify(mTrackerPrefs, never()).edit();
+    }
+
+    @Test
+    public void testPort_batched() {
+        when(mPrefs.getBoolean(LegacySettingsPorter.LEGACY_PREF_OPT_OUT, false)).thenReturn(true);
+        when(mPrefs.contains(LegacySettingsPorter.LEGACY_PREF_FIRST_VISIT)).thenReturn(true);
+        when(mPrefs.getLong(LegacySettingsPorter.LEGACY_PREF_FIRST_VISIT, -1L)).thenReturn(1338L);
+        when(mPrefs.contains(LegacySettingsPorter.LEGACY_PREF_PREV_VISIT)).thenReturn(true);
+        when(mPrefs.getLong(LegacySettingsPorter.LEGACY_PREF_PREV_VISIT, -1)).thenReturn(1111L);
+        mPorter.port(mTracker);
+
+        verify(mTrackerPrefs, times(1)).edit();
+        verify(mTrackerPrefsEditor, times(1)).apply();
+        verify(mPrefs, times(1)).edit();
+        verify(mPrefsEditor, times(1)).apply();
+        verify(mTrackerPrefsEditor).putBoolean(Tracker.PREF_KEY_TRACKER_OPTOUT, true);
+        verify(mTrackerPrefsEditor).putLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, 1338L);
+        verify(mTrackerPrefsEditor).putLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, 1111L);
+    }
+
     @Test
     public void testDownloadMapping_empty() {
         final Map<String, ?> map = new HashMap<>();
@@ -0,0 +1,67 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk;
+
+import org.junit.Test;
+
+import testhelpers.DefaultTestCase;
+import testhelpers.LoadHarness;
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoadTest extends DefaultTestCase {
+
+    private LoadHarness.Report run(LoadHarness.Config config) {
+        LoadHarness.Report report = new LoadHarness(getMatomo()).run(config);
+        Timber.i("%s", report);
+        assertEquals(report.toString(), 0, report.getEventsLost());
+        return report;
+    }
+
+    @Test
+    public void testSteadyState() {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.setServerLatency(5);
+        LoadHarness.Report report = run(config);
+        assertEquals(report.toString(), 0, report.getEventsDuplicated());
+    }
+
+    @Test
+    public void testServerErrors() {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.setErrorRate(0.2);
+        LoadHarness.Report report = run(config);
+        assertEquals(report.toString(), 0, report.getEventsDuplicated());
+    }
+
+    @Test
+    public void testFlappingConnectivity() {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.setFlapInterval(150);
+        LoadHarness.Report report = run(config);
+        assertEquals(report.toString(), 0, report.getEventsDuplicated());
+    }
+
+    @Test
+    public void testStalledResponses_deduplicated() {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.setStallRate(0.1);
+        LoadHarness.Report report = run(config);
+        assertEquals(report.toString(), 0, report.getEventsDuplicated());
+    }
+
+    @Test
+    public void testStalledResponses_withoutDedupe() {
+        // Without server side dedupe, retries after a timeout are at-least-once, nothing may get lost.
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.setStallRate(0.1);
+        config.setDedupeBatches(false);
+        run(config);
+    }
+}
@@ -78,6 +78,7 @@ public class MatomoTest extends BaseTest {
     public void testLowMemoryDispatch() {
         MatomoTestApplication app = ApplicationProvider.getApplicationContext();
         final PacketSender packetSender = mock(PacketSender.class);
+        when(packetSender.sendForResult(any())).thenCallRealMethod();
         app.getMatomo().setDispatcherFactory(new DefaultDispatcherFactory() {
             @NonNull
             @Override
@@ -0,0 +1,225 @@
+package org.matomo.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matomo.sdk.dispatcher.DispatchMode;
+import org.matomo.sdk.dispatcher.Dispatcher;
+import org.matomo.sdk.dispatcher.DispatcherFactory;
+import org.matomo.sdk.dispatcher.Event;
+import org.matomo.sdk.tools.DeviceHelper;
+import org.matomo.sdk.tools.DeviceInfo;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import testhelpers.TestPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TrackerGroupTest {
+    private static final String API_URL = "http://example.com/matomo.php";
+    private static final String OTHER_API_URL = "http://rollup.example.com/matomo.php";
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<String>> mQueries = ArgumentCaptor.forClass(List.class);
+    @Mock Matomo mMatomo;
+    @Mock Context mContext;
+    @Mock Dispatcher mDispatcher;
+    @Mock Dispatcher mOtherDispatcher;
+    @Mock DispatcherFactory mDispatcherFactory;
+    @Mock DeviceHelper mDeviceHelper;
+    SharedPreferences mPreferences = new TestPreferences();
+    Tracker mTracker;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        when(mMatomo.getContext()).thenReturn(mContext);
+        when(mContext.getPackageName()).thenReturn("org.example");
+        when(mMatomo.getTrackerPreferences(any(Tracker.class))).thenAnswer(invocation -> new TestPreferences());
+        when(mMatomo.getPreferences()).thenReturn(mPreferences);
+        when(mMatomo.getDispatcherFactory()).thenReturn(mDispatcherFactory);
+        when(mDispatcherFactory.build(any(Tracker.class))).thenReturn(mDispatcher);
+        when(mDispatcherFactory.build(any(Tracker.class), eq(OTHER_API_URL))).thenReturn(mOtherDispatcher);
+        when(mDeviceHelper.getResolution()).thenReturn(new int[]{480, 800});
+        when(mDeviceHelper.getUserAgent()).thenReturn("aUserAgent");
+        when(mDeviceHelper.getUserLanguage()).thenReturn("en");
+        when(mMatomo.getDeviceInfo()).thenReturn(new DeviceInfo(mDeviceHelper, Runnable::run));
+
+        mTracker = new TrackerBuilder(API_URL, 1, "Default Tracker").build(mMatomo);
+    }
+
+    @Test
+    public void testWithoutDestinations() {
+        new TrackerGroup(mTracker);
+        mTracker.track(new TrackMe().set(QueryParams.URL_PATH, "/main"));
+
+        verify(mDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        assertEquals(1, mQueries.getValue().size());
+        Map<String, String> sent = decode(mQueries.getValue().get(0));
+        assertEquals(mTracker.getLastEventX().toMap(), sent);
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+    }
+
+    @Test
+    public void testSameServer() {
+        new TrackerGroup(mTracker)
+                .addDestination(new TrackerGroup.Destination(2))
+                .addDestination(new TrackerGroup.Destination(3, API_URL));
+        mTracker.track(new TrackMe().set(QueryParams.URL_PATH, "/main"));
+
+        // One submission, the copies are packed into the same bulk request
+        verify(mDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        List<String> queries = mQueries.getValue();
+        assertEquals(3, queries.size());
+        Map<String, String> tracked = mTracker.getLastEventX().toMap();
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> sent = decode(queries.get(i));
+            assertEquals(String.valueOf(i + 1), sent.remove(QueryParams.SITE_ID.toString()));
+            Map<String, String> expected = new HashMap<>(tracked);
+            expected.remove(QueryParams.SITE_ID.toString());
+            assertEquals(expected, sent);
+        }
+    }
+
+    @Test
+    public void testOverrides() {
+        mTracker.setUserId("user");
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2)
+                .set(QueryParams.USER_ID, null)
+                .set(QueryParams.CAMPAIGN_NAME, "rollup"));
+        mTracker.track(new TrackMe().set(QueryParams.CAMPAIGN_NAME, "campaign"));
+
+        verify(mDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        Map<String, String> own = decode(mQueries.getValue().get(0));
+        assertEquals("1", own.get(QueryParams.SITE_ID.toString()));
+        assertEquals("user", own.get(QueryParams.USER_ID.toString()));
+        assertEquals("campaign", own.get(QueryParams.CAMPAIGN_NAME.toString()));
+
+        Map<String, String> rollup = decode(mQueries.getValue().get(1));
+        assertEquals("2", rollup.get(QueryParams.SITE_ID.toString()));
+        assertNull(rollup.get(QueryParams.USER_ID.toString()));
+        assertEquals("rollup", rollup.get(QueryParams.CAMPAIGN_NAME.toString()));
+        assertEquals(own.get(QueryParams.VISITOR_ID.toString()), rollup.get(QueryParams.VISITOR_ID.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverride_siteId() {
+        new TrackerGroup.Destination(2).set(QueryParams.SITE_ID, "3");
+    }
+
+    @Test
+    public void testOtherServer() {
+        TrackerGroup group = new TrackerGroup(mTracker)
+                .addDestination(new TrackerGroup.Destination(2, OTHER_API_URL))
+                .addDestination(new TrackerGroup.Destination(3, OTHER_API_URL));
+        mTracker.track(new TrackMe());
+
+        verify(mDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        assertEquals(1, mQueries.getValue().size());
+        verify(mOtherDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        List<String> queries = mQueries.getValue();
+        assertEquals(2, queries.size());
+        assertEquals("2", decode(queries.get(0)).get(QueryParams.SITE_ID.toString()));
+        assertEquals("3", decode(queries.get(1)).get(QueryParams.SITE_ID.toString()));
+
+        group.dispatch();
+        verify(mDispatcher).forceDispatch();
+        verify(mOtherDispatcher).forceDispatch();
+
+        // One bare dispatcher for the other server, no further tracker
+        verify(mDispatcherFactory).build(mTracker, OTHER_API_URL);
+        verify(mDispatcherFactory, times(1)).build(any(Tracker.class));
+    }
+
+    @Test
+    public void testOtherServer_settings() {
+        mTracker.setDispatchInterval(42);
+        mTracker.setDispatchMode(DispatchMode.WIFI_ONLY);
+        when(mDispatcher.getDispatchInterval()).thenReturn(42L);
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2, OTHER_API_URL));
+        verify(mOtherDispatcher).setDispatchInterval(42);
+        verify(mOtherDispatcher).setDispatchMode(DispatchMode.WIFI_ONLY);
+    }
+
+    @Test
+    public void testOtherServer_settingsFollow() {
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2, OTHER_API_URL));
+        when(mDispatcher.getDispatchInterval()).thenReturn(42L);
+        mTracker.setDispatchInterval(42);
+        verify(mOtherDispatcher).setDispatchInterval(42);
+
+        // E.g. by the exception handler
+        mTracker.setDispatchMode(DispatchMode.EXCEPTION);
+        verify(mOtherDispatcher).setDispatchMode(DispatchMode.EXCEPTION);
+    }
+
+    @Test
+    public void testOtherServer_dispatchBlocking() {
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2, OTHER_API_URL));
+        when(mDispatcher.forceDispatchBlocking(anyLong())).thenReturn(true);
+        when(mOtherDispatcher.forceDispatchBlocking(anyLong())).thenReturn(false);
+
+        assertFalse(mTracker.dispatchBlocking(1000));
+        verify(mDispatcher).forceDispatchBlocking(anyLong());
+        verify(mOtherDispatcher).forceDispatchBlocking(anyLong());
+    }
+
+    @Test
+    public void testSameServer_noExtraDispatcher() {
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2));
+        verify(mDispatcherFactory, never()).build(any(Tracker.class), anyString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSecondGroup() {
+        new TrackerGroup(mTracker);
+        new TrackerGroup(mTracker);
+    }
+
+    @Test
+    public void testOptOut() {
+        new TrackerGroup(mTracker).addDestination(new TrackerGroup.Destination(2, OTHER_API_URL));
+        mTracker.setOptOut(true);
+        mTracker.track(new TrackMe());
+        verify(mDispatcher, never()).submit(any(TrackMe.class), anyList());
+        verify(mOtherDispatcher, never()).submit(any(TrackMe.class), anyList());
+    }
+
+    @Test
+    public void testEncodedOnce() {
+        new TrackerGroup(mTracker)
+                .addDestination(new TrackerGroup.Destination(2))
+                .addDestination(new TrackerGroup.Destination(3));
+        mTracker.track(new TrackMe().set(QueryParams.URL_PATH, "/main"));
+
+        verify(mDispatcher).submit(any(TrackMe.class), mQueries.capture());
+        List<String> queries = mQueries.getValue();
+        // Only the site id differs
+        String common = queries.get(0).substring(queries.get(0).indexOf('&'));
+        for (String query : queries) assertTrue(query.endsWith(common));
+        assertFalse(common.contains(QueryParams.SITE_ID.toString() + "="));
+    }
+
+    private static Map<String, String> decode(String query) {
+        return Event.decodeQuery(query).toMap();
+    }
+}
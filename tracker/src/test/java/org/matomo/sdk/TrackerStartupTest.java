@@ -0,0 +1,100 @@
+/*
+ * Android SDK for Matomo
+ *
+ * @link https://github.com/matomo-org/matomo-android-sdk
+ * @license https://github.com/matomo-org/matomo-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.matomo.sdk;
+
+import org.junit.Test;
+import org.matomo.sdk.tools.DeviceHelper;
+import org.matomo.sdk.tools.DeviceInfo;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import testhelpers.DefaultTestCase;
+import testhelpers.TestHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * What building a tracker does on the calling thread. Timings from a device are in the benchmark module.
+ */
+public class TrackerStartupTest extends DefaultTestCase {
+
+    @Test
+    public void testStagedInit_noDeviceProbing() {
+        Matomo matomo = spy(getMatomo());
+        DeviceInfo deviceInfo = spy(getMatomo().getDeviceInfo());
+        doReturn(deviceInfo).when(matomo).getDeviceInfo();
+
+        new TrackerBuilder("http://example.com/startup", 1, "startup-staged").setStagedInit(true).build(matomo);
+        verify(deviceInfo, never()).prefetch();
+
+        new TrackerBuilder("http://example.com/startup", 1, "startup-eager").setStagedInit(false).build(matomo);
+        verify(deviceInfo).prefetch();
+    }
+
+    @Test
+    public void testAsyncInit_noPrefsOnCallingThread() {
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Answer<Object> recordThread = invocation -> {
+            threads.add(Thread.currentThread());
+            return invocation.callRealMethod();
+        };
+        Matomo matomo = spy(getMatomo());
+        doAnswer(recordThread).when(matomo).getPreferences();
+        doAnswer(recordThread).when(matomo).getTrackerPreferences(any(Tracker.class));
+        doAnswer(recordThread).when(matomo).getDispatcherFactory();
+
+        Tracker tracker = new TrackerBuilder("http://example.com/startup", 1, "startup-async").setStagedInit(true).setAsyncInit(true).build(matomo);
+        for (int i = 0; i < 100 && !tracker.isInitialized(); i++) TestHelper.sleep(10);
+        assertTrue(tracker.isInitialized());
+
+        // Settings and the dispatcher were set up, but not on this thread, nor on one that runs dispatch cycles
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) assertEquals("Matomo-init", thread.getName());
+    }
+
+    @Test
+    public void testStagedInit_deviceDefaults() {
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        DeviceHelper deviceHelper = mock(DeviceHelper.class);
+        when(deviceHelper.getResolution()).thenAnswer(invocation -> {
+            threads.add(Thread.currentThread());
+            return new int[]{480, 800};
+        });
+        when(deviceHelper.getUserAgent()).thenReturn("aUserAgent");
+        when(deviceHelper.getUserLanguage()).thenReturn("en");
+        Matomo matomo = spy(getMatomo());
+        doReturn(new DeviceInfo(deviceHelper)).when(matomo).getDeviceInfo();
+
+        Tracker tracker = new TrackerBuilder("http://example.com/startup", 1, "startup-defaults").setStagedInit(true).build(matomo);
+        tracker.setDispatchInterval(-1);
+        verify(deviceHelper, never()).getResolution();
+
+        // Queried once the first event is tracked, but not on the tracking thread
+        TrackMe trackMe = new TrackMe();
+        tracker.track(trackMe);
+        for (int i = 0; i < 100 && !trackMe.has(QueryParams.USER_AGENT); i++) TestHelper.sleep(10);
+        assertEquals("480x800", trackMe.get(QueryParams.SCREEN_RESOLUTION));
+        assertEquals("aUserAgent", trackMe.get(QueryParams.USER_AGENT));
+        assertEquals("en", trackMe.get(QueryParams.LANGUAGE));
+        assertFalse(threads.isEmpty());
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+}
@@ -7,19 +7,24 @@ import org.junit.Before;
 import org.junit.Test;
 import org.matomo.sdk.dispatcher.DispatchMode;
 import org.matomo.sdk.dispatcher.Dispatcher;
+import org.matomo.sdk.dispatcher.DispatcherStats;
 import org.matomo.sdk.dispatcher.DispatcherFactory;
 import org.matomo.sdk.extra.TrackHelper;
 import org.matomo.sdk.tools.DeviceHelper;
+import org.matomo.sdk.tools.DeviceInfo;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 
 import testhelpers.TestHelper;
@@ -42,7 +47,10 @@ import static org.matomo.sdk.QueryParams.SESSION_START;
 import static org.matomo.sdk.QueryParams.TOTAL_NUMBER_OF_VISITS;
 import static org.matomo.sdk.QueryParams.VISITOR_ID;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -73,10 +81,10 @@ public class TrackerTest {
         when(mMatomo.getPreferences()).thenReturn(mPreferences);
         when(mMatomo.getDispatcherFactory()).thenReturn(mDispatcherFactory);
         when(mDispatcherFactory.build(any(Tracker.class))).thenReturn(mDispatcher);
-        when(mMatomo.getDeviceHelper()).thenReturn(mDeviceHelper);
         when(mDeviceHelper.getResolution()).thenReturn(new int[]{480, 800});
         when(mDeviceHelper.getUserAgent()).thenReturn("aUserAgent");
         when(mDeviceHelper.getUserLanguage()).thenReturn("en");
+        when(mMatomo.getDeviceInfo()).thenReturn(new DeviceInfo(mDeviceHelper, Runnable::run));
 
         String mApiUrl = "http://example.com";
         when(mTrackerBuilder.getApiUrl()).thenReturn(mApiUrl);
@@ -85,6 +93,7 @@ public class TrackerTest {
         String mTrackerName = "Default Tracker";
         when(mTrackerBuilder.getTrackerName()).thenReturn(mTrackerName);
         when(mTrackerBuilder.getApplicationBaseUrl()).thenReturn("http://this.is.our.package/");
+        when(mTrackerBuilder.getInitTimeout()).thenReturn(TrackerBuilder.DEFAULT_INIT_TIMEOUT);
 
         mTrackerPreferences.edit().clear();
         mPreferences.edit().clear();
@@ -144,6 +153,14 @@ public class TrackerTest {
         verify(mDispatcher).getConnectionTimeOut();
     }
 
+    @Test
+    public void testGetDispatcherStats() {
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        DispatcherStats stats = new DispatcherStats();
+        when(mDispatcher.getStats()).thenReturn(stats);
+        assertEquals(stats, tracker.getDispatcherStats());
+    }
+
     @Test
     public void testGetOfflineCacheAge_defaultValue() {
         Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
@@ -431,6 +448,213 @@ public class TrackerTest {
         assertEquals("480x800", mCaptor.getValue().get(QueryParams.SCREEN_RESOLUTION));
     }
 
+    @Test
+    public void testStagedInit() {
+        when(mTrackerBuilder.isStagedInit()).thenReturn(true);
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        verify(mDeviceHelper, never()).getResolution();
+
+        tracker.track(new TrackMe());
+        verify(mDispatcher).submit(mCaptor.capture());
+        assertEquals("480x800", mCaptor.getValue().get(QueryParams.SCREEN_RESOLUTION));
+        assertEquals("aUserAgent", mCaptor.getValue().get(QueryParams.USER_AGENT));
+        assertEquals("en", mCaptor.getValue().get(QueryParams.LANGUAGE));
+
+        tracker.track(new TrackMe());
+        verify(mDeviceHelper, times(1)).getResolution();
+    }
+
+    @Test
+    public void testPrefetchDeviceInfo() {
+        new Tracker(mMatomo, mTrackerBuilder);
+        verify(mDeviceHelper).getResolution();
+        verify(mDeviceHelper).getUserAgent();
+    }
+
+    @Test
+    public void testDeviceInfo_defaultTrackMeWins() {
+        when(mTrackerBuilder.isStagedInit()).thenReturn(true);
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        tracker.getDefaultTrackMe().set(QueryParams.SCREEN_RESOLUTION, "1x1");
+
+        tracker.track(new TrackMe());
+        verify(mDispatcher).submit(mCaptor.capture());
+        assertEquals("1x1", mCaptor.getValue().get(QueryParams.SCREEN_RESOLUTION));
+    }
+
+    @Test
+    public void testDeviceInfo_notReady() {
+        List<Runnable> tasks = new ArrayList<>();
+        when(mMatomo.getDeviceInfo()).thenReturn(new DeviceInfo(mDeviceHelper, tasks::add));
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        assertNull(tracker.getDefaultTrackMe().get(QueryParams.SCREEN_RESOLUTION));
+
+        // Held back instead of querying the device on this thread
+        tracker.track(new TrackMe().set(QueryParams.EVENT_ACTION, "first"));
+        tracker.setUserId("user");
+        tracker.track(new TrackMe().set(QueryParams.EVENT_ACTION, "second"));
+        verify(mDeviceHelper, never()).getResolution();
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        verify(mDispatcher, times(2)).submit(mCaptor.capture());
+        assertEquals("first", mCaptor.getAllValues().get(0).get(QueryParams.EVENT_ACTION));
+        assertEquals("480x800", mCaptor.getAllValues().get(0).get(QueryParams.SCREEN_RESOLUTION));
+        assertNull(mCaptor.getAllValues().get(0).get(QueryParams.USER_ID));
+        assertEquals("user", mCaptor.getAllValues().get(1).get(QueryParams.USER_ID));
+        assertEquals("480x800", tracker.getDefaultTrackMe().get(QueryParams.SCREEN_RESOLUTION));
+    }
+
+    @Test
+    public void testDeviceInfo_notReady_dispatchBlocking() {
+        when(mMatomo.getDeviceInfo()).thenReturn(new DeviceInfo(mDeviceHelper, runnable -> {}));
+        when(mDispatcher.forceDispatchBlocking(anyLong())).thenReturn(true);
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        tracker.track(new TrackMe());
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+
+        // Blocks anyway, so the device is queried right away
+        assertTrue(tracker.dispatchBlocking(1000));
+        verify(mDispatcher).submit(mCaptor.capture());
+        assertEquals("aUserAgent", mCaptor.getValue().get(QueryParams.USER_AGENT));
+    }
+
+    @Test
+    public void testDeviceInfo_configurationChange() {
+        DeviceInfo deviceInfo = mMatomo.getDeviceInfo();
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        tracker.track(new TrackMe());
+        verify(mDispatcher).submit(mCaptor.capture());
+        assertEquals("480x800", mCaptor.getValue().get(QueryParams.SCREEN_RESOLUTION));
+
+        when(mDeviceHelper.getResolution()).thenReturn(new int[]{800, 480});
+        deviceInfo.invalidate();
+        tracker.track(new TrackMe());
+        verify(mDispatcher, times(2)).submit(mCaptor.capture());
+        assertEquals("800x480", mCaptor.getValue().get(QueryParams.SCREEN_RESOLUTION));
+    }
+
+    @Test
+    public void testAsyncInit() throws Exception {
+        when(mTrackerBuilder.isAsyncInit()).thenReturn(true);
+        CountDownLatch buildStarted = new CountDownLatch(1);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        when(mDispatcherFactory.build(any(Tracker.class))).thenAnswer(invocation -> {
+            buildStarted.countDown();
+            releaseBuild.await();
+            return mDispatcher;
+        });
+
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        assertTrue(buildStarted.await(5, TimeUnit.SECONDS));
+        assertFalse(tracker.isInitialized());
+
+        // Accepted without blocking while the dispatcher is being set up
+        for (int i = 0; i < 3; i++) tracker.track(new TrackMe().set(QueryParams.EVENT_ACTION, "pre" + i));
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+
+        releaseBuild.countDown();
+        tracker.dispatch();
+        assertTrue(tracker.isInitialized());
+        tracker.track(new TrackMe().set(QueryParams.EVENT_ACTION, "post"));
+
+        verify(mDispatcher, times(4)).submit(mCaptor.capture());
+        List<TrackMe> submitted = mCaptor.getAllValues();
+        for (int i = 0; i < 3; i++) assertEquals("pre" + i, submitted.get(i).get(QueryParams.EVENT_ACTION));
+        assertEquals("post", submitted.get(3).get(QueryParams.EVENT_ACTION));
+        // Initialized values were injected into the replayed events
+        assertEquals(tracker.getVisitorId(), submitted.get(0).get(QueryParams.VISITOR_ID));
+        assertEquals("1", submitted.get(0).get(QueryParams.SESSION_START));
+        assertNotNull(submitted.get(0).get(QueryParams.DATETIME_OF_REQUEST));
+        assertNull(submitted.get(3).get(QueryParams.SESSION_START));
+    }
+
+    @Test
+    public void testAsyncInit_optOut() throws Exception {
+        mTrackerPreferences.edit().putBoolean(Tracker.PREF_KEY_TRACKER_OPTOUT, true).apply();
+        when(mTrackerBuilder.isAsyncInit()).thenReturn(true);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        when(mDispatcherFactory.build(any(Tracker.class))).thenAnswer(invocation -> {
+            releaseBuild.await();
+            return mDispatcher;
+        });
+
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        tracker.track(new TrackMe());
+        releaseBuild.countDown();
+        // Waits for the initialization
+        assertTrue(tracker.isOptOut());
+        tracker.track(new TrackMe());
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+    }
+
+    @Test
+    public void testAsyncInit_timeout() throws Exception {
+        when(mTrackerBuilder.isAsyncInit()).thenReturn(true);
+        when(mTrackerBuilder.getInitTimeout()).thenReturn(0L);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        when(mDispatcherFactory.build(any(Tracker.class))).thenAnswer(invocation -> {
+            releaseBuild.await();
+            return mDispatcher;
+        });
+
+        // None of these wait for the initialization
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        tracker.track(new TrackMe().set(QueryParams.EVENT_ACTION, "pre"));
+        tracker.setUserId("user");
+        tracker.setDispatchInterval(1234);
+        tracker.getDispatchPolicy().setMeteredBacklogAge(60 * 1000);
+        tracker.dispatch();
+        assertEquals(Dispatcher.DEFAULT_DISPATCH_INTERVAL, tracker.getDispatchInterval());
+        assertFalse(tracker.isOptOut());
+        assertFalse(tracker.dispatchBlocking(0));
+        assertFalse(tracker.isInitialized());
+        verify(mDispatcher, never()).forceDispatch();
+
+        releaseBuild.countDown();
+        for (int i = 0; i < 100 && !tracker.isInitialized(); i++) TestHelper.sleep(10);
+        assertTrue(tracker.isInitialized());
+
+        // Replayed in order
+        InOrder inOrder = inOrder(mDispatcher);
+        inOrder.verify(mDispatcher).submit(mCaptor.capture());
+        inOrder.verify(mDispatcher).setDispatchInterval(1234);
+        // Changes made to the policy before are kept
+        inOrder.verify(mDispatcher).setDispatchPolicy(argThat(policy -> policy.getMeteredBacklogAge() == 60 * 1000));
+        inOrder.verify(mDispatcher).forceDispatch();
+        assertEquals("pre", mCaptor.getValue().get(QueryParams.EVENT_ACTION));
+        assertNull(mCaptor.getValue().get(QueryParams.USER_ID));
+        assertEquals("user", tracker.getUserId());
+    }
+
+    @Test
+    public void testDuplicateWindow() {
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        assertEquals(0, tracker.getDuplicateWindow());
+        TrackHelper.track().screen("/a").with(tracker);
+        TrackHelper.track().screen("/a").with(tracker);
+        verify(mDispatcher, times(2)).submit(any(TrackMe.class));
+
+        tracker.setDuplicateWindow(60 * 1000);
+        assertEquals(60 * 1000, tracker.getDuplicateWindow());
+        TrackHelper.track().screen("/a").with(tracker);
+        TrackHelper.track().screen("/a").with(tracker);
+        TrackHelper.track().event("category", "action").with(tracker);
+        TrackHelper.track().event("category", "action").with(tracker);
+        TrackHelper.track().screen("/b").with(tracker);
+        verify(mDispatcher, times(5)).submit(any(TrackMe.class));
+
+        tracker.setDuplicateWindow(0);
+        TrackHelper.track().screen("/b").with(tracker);
+        verify(mDispatcher, times(6)).submit(any(TrackMe.class));
+    }
+
+    @Test
+    public void testSyncInit() {
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        assertTrue(tracker.isInitialized());
+    }
+
     @Test
     public void testSetNewSession() {
         Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
@@ -833,6 +1057,30 @@ public class TrackerTest {
         verify(mDispatcher).submit(post);
     }
 
+    @Test
+    public void testTrackAll() {
+        Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
+        TrackMe dropped = new TrackMe().set("drop", "me");
+        tracker.addTrackingCallback(trackMe -> trackMe == dropped ? null : trackMe);
+
+        tracker.trackAll(Arrays.asList(new TrackMe().set("a", "1"), dropped, new TrackMe().set("a", "2")));
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<TrackMe>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mDispatcher).submitAll(captor.capture());
+        verify(mDispatcher, never()).submit(any(TrackMe.class));
+        List<TrackMe> submitted = captor.getValue();
+        assertEquals(2, submitted.size());
+        assertEquals("1", submitted.get(0).get("a"));
+        assertEquals("2", submitted.get(1).get("a"));
+        // Processed like single events
+        assertEquals(String.valueOf(tracker.getSiteId()), submitted.get(1).get(QueryParams.SITE_ID));
+
+        reset(mDispatcher);
+        tracker.setOptOut(true);
+        tracker.trackAll(Arrays.asList(new TrackMe(), new TrackMe()));
+        verify(mDispatcher, never()).submitAll(any());
+    }
+
     @Test
     public void testTrackingCallbacks() {
         Tracker tracker = new Tracker(mMatomo, mTrackerBuilder);
@@ -12,17 +12,21 @@ import org.junit.Test;
 import org.matomo.sdk.QueryParams;
 import org.matomo.sdk.TrackMe;
 import org.matomo.sdk.tools.Connectivity;
+import org.matomo.sdk.tools.PowerState;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -40,9 +44,14 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -84,6 +93,7 @@ public class DefaultDispatcherTest extends BaseTest {
             mEventCacheData.clear();
             return null;
         }).when(mEventCache).clear();
+        when(mPacketSender.sendForResult(any())).thenCallRealMethod();
         mDispatcher = new DefaultDispatcher(mEventCache, mConnectivity, new PacketFactory(mApiUrl), mPacketSender);
     }
 
@@ -119,6 +129,19 @@ public class DefaultDispatcherTest extends BaseTest {
         assertThat(dryRunData.size(), is(0));
     }
 
+    @Test
+    public void testSubmitAll() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.setDispatchInterval(-1);
+        mDispatcher.submitAll(Arrays.asList(getTestEvent(), getTestEvent(), getTestEvent()));
+        assertThat(mEventCacheData.size(), is(3));
+
+        mDispatcher.forceDispatch();
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+        assertEquals(3, dryRunData.get(0).getEventCount());
+    }
+
     @Test
     public void testGetDispatchMode() {
         assertEquals(DispatchMode.ALWAYS, mDispatcher.getDispatchMode());
@@ -147,6 +170,88 @@ public class DefaultDispatcherTest extends BaseTest {
         verify(mEventCache).drainTo(ArgumentMatchers.anyList());
     }
 
+    @Test
+    public void testDispatchMode_unmeteredOnly() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        when(mConnectivity.isMetered()).thenReturn(true);
+
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_ONLY);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatch();
+
+        verify(mEventCache, timeout(1000)).updateState(false);
+        verify(mEventCache, never()).drainTo(ArgumentMatchers.anyList());
+
+        when(mConnectivity.isMetered()).thenReturn(false);
+        mDispatcher.forceDispatch();
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+    }
+
+    @Test
+    public void testDispatchMode_unmeteredOnly_backlogAge() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        when(mConnectivity.isMetered()).thenReturn(true);
+        when(mEventCache.getOldestTimestamp()).thenReturn(System.currentTimeMillis() - 60 * 60 * 1000);
+
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_ONLY);
+        mDispatcher.setDispatchPolicy(new DispatchPolicy().setMeteredBacklogAge(30 * 60 * 1000));
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatch();
+
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+    }
+
+    @Test
+    public void testDispatchMode_unmeteredOnly_priority() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        when(mConnectivity.isMetered()).thenReturn(true);
+        when(mEventCache.hasPriorityEvents()).then((Answer<Boolean>) invocation -> {
+            for (Event event : mEventCacheData) if (event.isPriority()) return true;
+            return false;
+        });
+        doAnswer(invocation -> {
+            List<Event> drainTarget = invocation.getArgument(0);
+            for (Event event : new ArrayList<>(mEventCacheData)) {
+                if (event.isPriority() && mEventCacheData.remove(event)) drainTarget.add(event);
+            }
+            return null;
+        }).when(mEventCache).drainPriorityTo(ArgumentMatchers.anyList());
+
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_ONLY);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.submit(getTestEvent().set(QueryParams.ORDER_ID, "order-1"));
+        mDispatcher.forceDispatch();
+
+        // Only the order is sent over the metered network
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+        assertEquals(1, dryRunData.get(0).getEventCount());
+        assertTrue(dryRunData.get(0).getEvents().get(0).isPriority());
+        TestHelper.sleep(100);
+        assertEquals(1, dryRunData.size());
+        assertEquals(1, mEventCacheData.size());
+        assertFalse(mEventCacheData.peek().isPriority());
+    }
+
+    @Test
+    public void testDispatchMode_unmeteredOnly_priorityDisabled() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        when(mConnectivity.isMetered()).thenReturn(true);
+        when(mEventCache.hasPriorityEvents()).thenReturn(true);
+
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_ONLY);
+        mDispatcher.setDispatchPolicy(new DispatchPolicy().setMeteredForPriority(false));
+        mDispatcher.submit(getTestEvent().set(QueryParams.ORDER_ID, "order-1"));
+        mDispatcher.forceDispatch();
+
+        verify(mEventCache, timeout(1000)).updateState(false);
+        verify(mEventCache, never()).drainPriorityTo(ArgumentMatchers.anyList());
+        assertEquals(0, dryRunData.size());
+    }
+
     @Test
     public void testConnectivityChange() {
         List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
@@ -169,6 +274,94 @@ public class DefaultDispatcherTest extends BaseTest {
         verify(mEventCache).drainTo(ArgumentMatchers.anyList());
     }
 
+    @Test
+    public void testConnectivityListener_wakesDispatcher() {
+        ArgumentCaptor<Connectivity.Listener> listener = ArgumentCaptor.forClass(Connectivity.Listener.class);
+        verify(mConnectivity).setListener(listener.capture());
+
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        when(mConnectivity.isConnected()).thenReturn(false);
+
+        mDispatcher.submit(getTestEvent());
+        TestHelper.sleep(100);
+        assertThat(dryRunData.size(), is(0));
+
+        // Without the listener this would only be dispatched after the default interval
+        when(mConnectivity.isConnected()).thenReturn(true);
+        listener.getValue().onConnectivityChanged(mConnectivity);
+
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+    }
+
+    @Test
+    public void testSharedScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            DispatchScheduler scheduler = new DispatchScheduler(executor);
+            mDispatcher = new DefaultDispatcher(mEventCache, mConnectivity, new PacketFactory(mApiUrl), mPacketSender, null, scheduler);
+            List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+            mDispatcher.setDryRunTarget(dryRunData);
+
+            mDispatcher.submit(getTestEvent());
+            mDispatcher.forceDispatch();
+            await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+            // No thread of its own, the cycle ran on the scheduler
+            assertTrue(executor.getCompletedTaskCount() > 0);
+
+            mDispatcher.submit(getTestEvent());
+            mDispatcher.forceDispatchBlocking();
+            assertThat(dryRunData.size(), is(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPriorityEvent() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.submit(getTestEvent());
+        TestHelper.sleep(100);
+        assertThat(dryRunData.size(), is(0));
+
+        // Doesn't wait for the dispatch interval
+        mDispatcher.submit(getTestEvent().set(QueryParams.ORDER_ID, "order-1"));
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(2));
+        // The order gets its own packet, ahead of the backlog
+        assertEquals(1, dryRunData.get(0).getEventCount());
+        assertTrue(dryRunData.get(0).getTargetURL().contains("ec_id=order-1"));
+        assertEquals(2, dryRunData.get(1).getEventCount());
+    }
+
+    @Test
+    public void testPriorityEvent_fatalException() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.submit(getTestEvent().set(QueryParams.ACTION_NAME, "exception/Test/test:1/description"));
+        TestHelper.sleep(100);
+        assertThat(dryRunData.size(), is(0));
+
+        mDispatcher.submit(getTestEvent().set(QueryParams.ACTION_NAME, "exception/fatal/Test/test:1/description"));
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(2));
+    }
+
+    @Test
+    public void testShutdown() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.shutdown();
+        // Pending events are kept for the next app start
+        verify(mEventCache).updateState(false);
+
+        assertFalse(mDispatcher.forceDispatch());
+        mDispatcher.submit(getTestEvent());
+        TestHelper.sleep(100);
+        assertThat(dryRunData.size(), is(0));
+    }
+
     @Test
     public void testGetDispatchGzipped() {
         assertFalse(mDispatcher.getDispatchGzipped());
@@ -361,6 +554,238 @@ public class DefaultDispatcherTest extends BaseTest {
         assertEquals(mEventCacheData.size() + sentEventCount, threadCount * queryCount);
     }
 
+    @Test
+    public void testBlockingDispatchTimeout() {
+        mDispatcher.setDispatchInterval(-1);
+        when(mPacketSender.send(any())).thenAnswer((Answer<Boolean>) invocation -> {
+            Thread.sleep(1000);
+            return true;
+        });
+        for (int i = 0; i < PacketFactory.PAGE_SIZE * 2; i++) mDispatcher.submit(getTestEvent());
+
+        long start = System.currentTimeMillis();
+        assertFalse(mDispatcher.forceDispatchBlocking(200));
+        assertTrue(System.currentTimeMillis() - start < 900);
+        // The unsent remainder was written to disk
+        verify(mEventCache).updateState(false);
+    }
+
+    @Test
+    public void testBlockingDispatchTimeout_finished() {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.setDispatchInterval(-1);
+        mDispatcher.submit(getTestEvent());
+
+        assertTrue(mDispatcher.forceDispatchBlocking(1000));
+        assertThat(dryRunData.size(), is(1));
+        verify(mEventCache, never()).updateState(false);
+    }
+
+    @Test
+    public void testBlockingDispatchTimeout_exceptionMode() {
+        mDispatcher.setDispatchInterval(-1);
+        mDispatcher.setDispatchMode(DispatchMode.EXCEPTION);
+        mDispatcher.submit(getTestEvent());
+
+        // Doesn't wait for a dispatch cycle that can't send anything
+        assertFalse(mDispatcher.forceDispatchBlocking(1000));
+        verify(mEventCache).updateState(false);
+        verify(mEventCache, never()).drainTo(ArgumentMatchers.anyList());
+    }
+
+    @Test
+    public void testBlockingDispatchTimeout_scheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            mDispatcher = new DefaultDispatcher(mEventCache, mConnectivity, new PacketFactory(mApiUrl), mPacketSender, null, new DispatchScheduler(executor));
+            mDispatcher.setDispatchInterval(-1);
+            final AtomicInteger sendTime = new AtomicInteger(1000);
+            when(mPacketSender.send(any())).thenAnswer((Answer<Boolean>) invocation -> {
+                Thread.sleep(sendTime.get());
+                return true;
+            });
+            mDispatcher.submit(getTestEvent());
+            assertFalse(mDispatcher.forceDispatchBlocking(200));
+
+            sendTime.set(0);
+            mDispatcher.submit(getTestEvent());
+            assertTrue(mDispatcher.forceDispatchBlocking(3000));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPowerStateObserved() {
+        PowerState powerState = mock(PowerState.class);
+        mDispatcher = new DefaultDispatcher(mEventCache, mConnectivity, new PacketFactory(mApiUrl), mPacketSender, powerState);
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_ONLY);
+        verify(powerState, never()).observe();
+
+        // Plugging in has to wake the dispatcher even if it was never asked whether the device is charging
+        mDispatcher.setDispatchMode(DispatchMode.UNMETERED_OR_CHARGING);
+        verify(powerState).observe();
+    }
+
+    @Test
+    public void testIncompleteResponse() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<>());
+        when(mPacketSender.sendForResult(any())).thenAnswer(invocation -> {
+            sent.add(invocation.getArgument(0));
+            // The first event was stored, the second is invalid, then the server gave up
+            if (sent.size() == 1) return new SendResult(500, false, 1, 1, new int[]{1});
+            return SendResult.SENT;
+        });
+        mDispatcher.setDispatchInterval(200);
+        for (int i = 0; i < 4; i++) mDispatcher.submit(new TrackMe().set(QueryParams.URL_PATH, "/" + i));
+
+        await().atMost(2, TimeUnit.SECONDS).until(sent::size, is(2));
+        // Retried as a whole under the same batch id, so the server can drop the event it already stored
+        assertEquals(4, sent.get(1).getEventCount());
+        assertEquals(sent.get(0).getBatchId(), sent.get(1).getBatchId());
+        assertEquals(sent.get(0).getPostData().toString(), sent.get(1).getPostData().toString());
+        await().atMost(1, TimeUnit.SECONDS).until(mEventCacheData::isEmpty);
+    }
+
+    @Test
+    public void testInvalidWithoutIndices() {
+        AtomicInteger attempts = new AtomicInteger();
+        when(mPacketSender.sendForResult(any())).thenAnswer(invocation -> {
+            attempts.incrementAndGet();
+            return new SendResult(200, true, 2, 1);
+        });
+        mDispatcher.setDispatchInterval(100);
+        for (int i = 0; i < 3; i++) mDispatcher.submit(getTestEvent());
+
+        await().atMost(2, TimeUnit.SECONDS).until(attempts::get, is(1));
+        // Neither the stored events nor the invalid one are sent again
+        TestHelper.sleep(300);
+        assertEquals(1, attempts.get());
+        assertTrue(mEventCacheData.isEmpty());
+        assertEquals(2, mDispatcher.getStats().snapshot().getEventsSent());
+        assertEquals(1, mDispatcher.getStats().snapshot().getEventsRejected());
+    }
+
+    @Test
+    public void testUnpackableEventsSkipped() {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<>());
+        when(mPacketSender.sendForResult(any())).thenAnswer(invocation -> {
+            Packet packet = invocation.getArgument(0);
+            sent.add(packet);
+            // Rejects the first event of the packet after the one that could not be built
+            return new SendResult(200, true, packet.getEventCount() - 1, 1, new int[]{0});
+        });
+        mDispatcher.setDispatchInterval(-1);
+        // A batch of its own whose query is empty, the factory can't build a packet for it
+        Event empty = new Event("");
+        empty.setBatchId("empty");
+        mEventCacheData.add(empty);
+        for (int i = 0; i < 3; i++) mDispatcher.submit(new TrackMe().set(QueryParams.URL_PATH, "/" + i));
+        mDispatcher.forceDispatchBlocking();
+
+        assertEquals(1, sent.size());
+        List<Event> events = sent.get(0).getEvents();
+        assertEquals(3, events.size());
+        assertTrue(events.get(0).getEncodedQuery().contains("%2F0"));
+        assertTrue(mEventCacheData.isEmpty());
+    }
+
+    @Test
+    public void testSubmitEncoded() throws Exception {
+        List<Packet> dryRunData = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunData);
+        mDispatcher.setDispatchInterval(-1);
+
+        TrackMe trackMe = new TrackMe().set(QueryParams.URL_PATH, "/main");
+        mDispatcher.submit(trackMe, Arrays.asList("?idsite=1&url=%2Fmain", "?idsite=2&url=%2Fmain"));
+        assertEquals(2, mEventCacheData.size());
+        assertEquals(2, mDispatcher.getStats().snapshot().getEventsSubmitted());
+
+        mDispatcher.forceDispatch();
+        await().atMost(1, TimeUnit.SECONDS).until(dryRunData::size, is(1));
+        JSONArray requests = dryRunData.get(0).getPostData().getJSONArray("requests");
+        assertEquals("?idsite=1&url=%2Fmain", requests.getString(0));
+        assertEquals("?idsite=2&url=%2Fmain", requests.getString(1));
+    }
+
+    @Test
+    public void testInvalidEventsDropped() {
+        AtomicInteger attempts = new AtomicInteger();
+        when(mPacketSender.sendForResult(any())).thenAnswer(invocation -> {
+            attempts.incrementAndGet();
+            return new SendResult(400, false, 2, 1, new int[]{0});
+        });
+        mDispatcher.setDispatchInterval(100);
+        for (int i = 0; i < 3; i++) mDispatcher.submit(getTestEvent());
+
+        await().atMost(2, TimeUnit.SECONDS).until(attempts::get, is(1));
+        // Everything else was stored, nothing to retry
+        TestHelper.sleep(300);
+        assertEquals(1, attempts.get());
+        assertTrue(mEventCacheData.isEmpty());
+    }
+
+    @Test
+    public void testStats() {
+        when(mPacketSender.sendForResult(any())).thenReturn(new SendResult(400, false, 2, 1, new int[]{1}, 100, 40));
+        mDispatcher.setDispatchInterval(-1);
+        for (int i = 0; i < 3; i++) mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatchBlocking();
+
+        DispatcherStats.Snapshot snapshot = mDispatcher.getStats().snapshot();
+        assertEquals(3, snapshot.getEventsSubmitted());
+        assertEquals(2, snapshot.getEventsSent());
+        assertEquals(1, snapshot.getEventsRejected());
+        assertEquals(1, snapshot.getPacketsSent());
+        assertEquals(0, snapshot.getPacketsFailed());
+        assertEquals(100, snapshot.getBytesUncompressed());
+        assertEquals(40, snapshot.getBytesSent());
+        assertEquals(1, snapshot.getPacketSize().getCount());
+        assertEquals(3, snapshot.getPacketSize().getMax());
+        assertEquals(2, snapshot.getEnqueueToSend().getCount());
+        assertEquals(1, snapshot.getSendDuration().getCount());
+
+        when(mPacketSender.sendForResult(any())).thenReturn(SendResult.FAILED);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatchBlocking();
+        snapshot = mDispatcher.getStats().snapshot();
+        assertEquals(4, snapshot.getEventsSubmitted());
+        assertEquals(2, snapshot.getEventsSent());
+        assertEquals(1, snapshot.getPacketsFailed());
+    }
+
+    @Test
+    public void testListener() {
+        DispatchListener listener = mock(DispatchListener.class);
+        mDispatcher.addListener(listener);
+        when(mPacketSender.sendForResult(any())).thenReturn(SendResult.SENT);
+        mDispatcher.setDispatchInterval(-1);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatchBlocking();
+
+        verify(listener, timeout(1000)).onEnqueued(2);
+        ArgumentCaptor<Packet> packet = ArgumentCaptor.forClass(Packet.class);
+        verify(listener, timeout(1000)).onPacketBuilt(packet.capture());
+        assertEquals(2, packet.getValue().getEventCount());
+        verify(listener, timeout(1000)).onSendStarted(packet.getValue());
+        verify(listener, timeout(1000)).onSendFinished(eq(packet.getValue()), eq(SendResult.SENT), anyLong());
+        verify(listener, never()).onRequeued(anyInt());
+
+        when(mPacketSender.sendForResult(any())).thenReturn(SendResult.FAILED);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatchBlocking();
+        verify(listener, timeout(1000)).onRequeued(1);
+
+        mDispatcher.removeListener(listener);
+        mDispatcher.submit(getTestEvent());
+        mDispatcher.forceDispatchBlocking();
+        TestHelper.sleep(100);
+        // Only the earlier failed event
+        verify(listener, times(1)).onEnqueued(1);
+    }
+
     @Test
     public void testDispatchRetryWithBackoff() {
         AtomicInteger cnt = new AtomicInteger(0);
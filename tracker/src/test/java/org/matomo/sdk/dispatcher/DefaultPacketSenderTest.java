@@ -7,11 +7,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
 import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import testhelpers.BaseTest;
+import testhelpers.DedupingServer;
 import testhelpers.TestHelper;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -111,4 +119,143 @@ public class DefaultPacketSenderTest extends BaseTest {
         });
         assertThat(mDefaultPacketSender.send(packet), is(true));
     }
+
+    @Test
+    public void testBatchIdHeader() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString(), null, 1, "batch1");
+
+        mMockWebServer.enqueue(new MockResponse());
+        assertThat(mDefaultPacketSender.send(packet), is(true));
+        assertThat(mMockWebServer.takeRequest().getHeader(DefaultPacketSender.BATCH_ID_HEADER), is("batch1"));
+
+        mDefaultPacketSender.setBatchIdHeader(null);
+        mMockWebServer.enqueue(new MockResponse());
+        assertThat(mDefaultPacketSender.send(packet), is(true));
+        assertThat(mMockWebServer.takeRequest().getHeader(DefaultPacketSender.BATCH_ID_HEADER), is(nullValue()));
+    }
+
+    @Test
+    public void testBatchIdParameter() throws Exception {
+        mMockWebServer.start();
+        mDefaultPacketSender.setBatchIdParameter("batch_id");
+
+        mMockWebServer.enqueue(new MockResponse());
+        mDefaultPacketSender.send(new Packet(mMockWebServer.url("/matomo.php").toString(), new JSONObject(), 2, "batch1"));
+        assertThat(mMockWebServer.takeRequest().getRequestUrl().queryParameter("batch_id"), is("batch1"));
+
+        mMockWebServer.enqueue(new MockResponse());
+        mDefaultPacketSender.send(new Packet(mMockWebServer.url("/matomo.php").toString() + "?idsite=1", null, 1, "batch2"));
+        RecordedRequest request = mMockWebServer.takeRequest();
+        assertThat(request.getRequestUrl().queryParameter("idsite"), is("1"));
+        assertThat(request.getRequestUrl().queryParameter("batch_id"), is("batch2"));
+    }
+
+    @Test
+    public void testRetryAfterTimeout_deduplicated() throws Exception {
+        DedupingServer server = new DedupingServer();
+        mMockWebServer.setDispatcher(server);
+        mMockWebServer.start();
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) events.add(new Event("?eve" + i));
+        PacketFactory factory = new PacketFactory(mMockWebServer.url("/matomo.php").toString());
+
+        // Stored by the server, but the response is too late
+        mDefaultPacketSender.setTimeout(50);
+        server.setStallFor(200);
+        server.setStallCount(1);
+        assertThat(mDefaultPacketSender.send(factory.buildPackets(events).get(0)), is(false));
+
+        // The dispatcher requeues and packs the events again
+        assertThat(mDefaultPacketSender.send(factory.buildPackets(events).get(0)), is(true));
+        assertThat(server.getIngestedEvents(), is(5));
+        assertThat(server.getDuplicatePackets(), is(1));
+    }
+
+    @Test
+    public void testBulkResponse() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString(), new JSONObject(), 3, "batch");
+
+        mMockWebServer.enqueue(new MockResponse().setBody("{\"status\":\"success\",\"tracked\":3,\"invalid\":0}"));
+        SendResult result = mDefaultPacketSender.sendForResult(packet);
+        assertThat(result.isSuccessful(), is(true));
+        assertThat(result.getStatusCode(), is(200));
+        assertThat(result.getTracked(), is(3));
+        assertThat(result.isHandled(3), is(true));
+    }
+
+    @Test
+    public void testBulkResponse_invalidWithoutIndices() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString(), new JSONObject(), 20, "batch");
+
+        // Without token_auth the server only counts the invalid requests
+        mMockWebServer.enqueue(new MockResponse().setBody("{\"status\":\"success\",\"tracked\":18,\"invalid\":2}"));
+        SendResult result = mDefaultPacketSender.sendForResult(packet);
+        assertThat(result.isSuccessful(), is(true));
+        assertThat(result.getTracked(), is(18));
+        assertThat(result.getInvalid(), is(2));
+        assertThat(result.getInvalidIndices().length, is(0));
+        assertThat(result.isHandled(20), is(true));
+    }
+
+    @Test
+    public void testBulkResponse_invalid() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString(), new JSONObject(), 3, "batch");
+
+        mMockWebServer.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"status\":\"error\",\"tracked\":1,\"invalid\":1,\"invalid_indices\":[1]}"));
+        SendResult result = mDefaultPacketSender.sendForResult(packet);
+        assertThat(result.isSuccessful(), is(false));
+        assertThat(result.getStatusCode(), is(400));
+        assertThat(result.getInvalid(), is(1));
+        assertThat(result.isInvalid(1), is(true));
+        // The server stopped after the second event
+        assertThat(result.isHandled(3), is(false));
+
+        mMockWebServer.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"status\":\"error\",\"tracked\":1,\"invalid\":1,\"invalid_indices\":[1]}"));
+        assertThat(mDefaultPacketSender.send(packet), is(false));
+    }
+
+    @Test
+    public void testBulkResponse_noSummary() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString(), new JSONObject(), 2, "batch");
+
+        mMockWebServer.enqueue(new MockResponse().setBody("not json"));
+        SendResult result = mDefaultPacketSender.sendForResult(packet);
+        assertThat(result.isSuccessful(), is(true));
+        assertThat(result.getTracked(), is(-1));
+
+        mMockWebServer.enqueue(new MockResponse().setResponseCode(500).setBody("Internal error"));
+        assertThat(mDefaultPacketSender.sendForResult(packet).isHandled(2), is(false));
+    }
+
+    @Test
+    public void testGetResponseIgnored() throws Exception {
+        mMockWebServer.start();
+        Packet packet = new Packet(mMockWebServer.url("/").toString() + "?idsite=1", null, 1, "batch");
+
+        mMockWebServer.enqueue(new MockResponse().setBody("{\"tracked\":0}"));
+        SendResult result = mDefaultPacketSender.sendForResult(packet);
+        assertThat(result.isSuccessful(), is(true));
+        assertThat(result.getTracked(), is(-1));
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws Exception {
+        byte[] data = "{\"requests\":[\"?idsite=1&rec=1\"]}".getBytes(StandardCharsets.UTF_8);
+        byte[] gzipped = DefaultPacketSender.gzip(data);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            assertThat(out.toByteArray(), is(data));
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kotlin.Unit;
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class DispatchNotifierTest extends BaseTest {
+    final List<Runnable> mTasks = new ArrayList<>();
+    final DispatchNotifier mNotifier = new DispatchNotifier(mTasks::add);
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) task.run();
+    }
+
+    @Test
+    public void testInactiveWithoutListeners() {
+        assertFalse(mNotifier.isActive());
+        mNotifier.onEnqueued();
+        mNotifier.post(listener -> {
+            listener.onRequeued(1);
+            return Unit.INSTANCE;
+        });
+        mNotifier.flush();
+        assertTrue(mTasks.isEmpty());
+    }
+
+    @Test
+    public void testBatch() {
+        DispatchListener listener = mock(DispatchListener.class);
+        mNotifier.addListener(listener);
+        for (int i = 0; i < 3; i++) mNotifier.onEnqueued();
+        mNotifier.post(l -> {
+            l.onSpilledToDisk(3);
+            return Unit.INSTANCE;
+        });
+        mNotifier.post(l -> {
+            l.onEvicted(1);
+            return Unit.INSTANCE;
+        });
+        // Nothing is delivered before the flush, and only one delivery is scheduled per batch
+        verify(listener, never()).onEnqueued(anyInt());
+        mNotifier.flush();
+        mNotifier.flush();
+        assertEquals(1, mTasks.size());
+        runTasks();
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).onEnqueued(3);
+        inOrder.verify(listener).onSpilledToDisk(3);
+        inOrder.verify(listener).onEvicted(1);
+
+        // Empty batches are not delivered
+        mNotifier.flush();
+        assertTrue(mTasks.isEmpty());
+    }
+
+    @Test
+    public void testFailingListener() {
+        DispatchListener failing = mock(DispatchListener.class);
+        doThrow(new RuntimeException()).when(failing).onEnqueued(anyInt());
+        DispatchListener listener = mock(DispatchListener.class);
+        mNotifier.addListener(failing);
+        mNotifier.addListener(listener);
+        mNotifier.onEnqueued();
+        mNotifier.flush();
+        runTasks();
+        verify(listener).onEnqueued(1);
+    }
+
+    @Test
+    public void testRemoveListener() {
+        DispatchListener listener = mock(DispatchListener.class);
+        mNotifier.addListener(listener);
+        mNotifier.removeListener(listener);
+        assertFalse(mNotifier.isActive());
+    }
+}
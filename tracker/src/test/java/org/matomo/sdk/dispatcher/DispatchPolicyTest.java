@@ -0,0 +1,60 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matomo.sdk.tools.PowerState;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DispatchPolicyTest extends BaseTest {
+    @Mock PowerState mPowerState;
+
+    @Test
+    public void testDefaults() {
+        DispatchPolicy policy = new DispatchPolicy();
+        assertEquals(-1, policy.getMeteredBacklogAge());
+        assertEquals(1f, policy.getPowerSaveIntervalFactor(), 0f);
+        assertFalse(policy.allowsMetered(0));
+        assertTrue(policy.isMeteredForPriority());
+        assertEquals(1000, policy.getDispatchInterval(1000, mPowerState));
+        verify(mPowerState, never()).isPowerSaveMode();
+    }
+
+    @Test
+    public void testAllowsMetered() {
+        DispatchPolicy policy = new DispatchPolicy().setMeteredBacklogAge(60 * 1000);
+        assertFalse(policy.allowsMetered(-1));
+        assertFalse(policy.allowsMetered(System.currentTimeMillis()));
+        assertTrue(policy.allowsMetered(System.currentTimeMillis() - 61 * 1000));
+    }
+
+    @Test
+    public void testPowerSaveInterval() {
+        DispatchPolicy policy = new DispatchPolicy().setPowerSaveIntervalFactor(4);
+        when(mPowerState.isPowerSaveMode()).thenReturn(false);
+        assertEquals(1000, policy.getDispatchInterval(1000, mPowerState));
+
+        when(mPowerState.isPowerSaveMode()).thenReturn(true);
+        assertEquals(4000, policy.getDispatchInterval(1000, mPowerState));
+        assertEquals(1000, policy.getDispatchInterval(1000, null));
+        // Manual and immediate dispatching are not stretched
+        assertEquals(-1, policy.getDispatchInterval(-1, mPowerState));
+        assertEquals(0, policy.getDispatchInterval(0, mPowerState));
+    }
+
+    @Test
+    public void testPowerSaveInterval_lowerBound() {
+        DispatchPolicy policy = new DispatchPolicy().setPowerSaveIntervalFactor(0.5f);
+        assertEquals(1f, policy.getPowerSaveIntervalFactor(), 0f);
+    }
+}
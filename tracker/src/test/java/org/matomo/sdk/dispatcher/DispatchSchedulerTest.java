@@ -0,0 +1,188 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import testhelpers.BaseTest;
+import testhelpers.TestHelper;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchSchedulerTest extends BaseTest {
+    ScheduledThreadPoolExecutor mExecutor;
+    DispatchScheduler mScheduler;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        mExecutor = new ScheduledThreadPoolExecutor(2);
+        mScheduler = new DispatchScheduler(mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    static class CountingJob implements DispatchScheduler.Job {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        volatile boolean overlapped = false;
+        volatile long nextDelay = -1;
+        volatile long cycleTime = 0;
+
+        @Override
+        public long runCycle() {
+            if (concurrent.incrementAndGet() > 1) overlapped = true;
+            if (cycleTime > 0) TestHelper.sleep(cycleTime);
+            concurrent.decrementAndGet();
+            runs.incrementAndGet();
+            return nextDelay;
+        }
+    }
+
+    @Test
+    public void testExecute() {
+        AtomicInteger runs = new AtomicInteger();
+        mScheduler.execute(() -> {
+            throw new IllegalStateException();
+        });
+        mScheduler.execute(runs::incrementAndGet);
+        await().atMost(1, TimeUnit.SECONDS).until(runs::get, is(1));
+        // A failing task doesn't take the shared threads down
+        assertEquals(0, mExecutor.getQueue().size());
+    }
+
+    @Test
+    public void testExecute_notBlockedByCycles() {
+        ExecutorService tasks = Executors.newSingleThreadExecutor();
+        try {
+            DispatchScheduler scheduler = new DispatchScheduler(mExecutor, tasks);
+            // Both cycle threads are busy, e.g. with slow servers
+            CountingJob job1 = new CountingJob();
+            CountingJob job2 = new CountingJob();
+            job1.cycleTime = job2.cycleTime = 2000;
+            scheduler.schedule(job1, 0);
+            scheduler.schedule(job2, 0);
+            await().atMost(1, TimeUnit.SECONDS).until(() -> job1.concurrent.get() + job2.concurrent.get(), is(2));
+
+            AtomicInteger runs = new AtomicInteger();
+            scheduler.execute(runs::incrementAndGet);
+            await().atMost(500, TimeUnit.MILLISECONDS).until(runs::get, is(1));
+        } finally {
+            tasks.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorShutDown() {
+        // e.g. the app shut its executor down while dispatchers still use it
+        mExecutor.shutdown();
+        CountingJob job = new CountingJob();
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.runs::get, is(1));
+
+        AtomicInteger runs = new AtomicInteger();
+        mScheduler.execute(runs::incrementAndGet);
+        await().atMost(1, TimeUnit.SECONDS).until(runs::get, is(1));
+    }
+
+    @Test
+    public void testSchedule_runsOnce() {
+        CountingJob job = new CountingJob();
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.runs::get, is(1));
+        TestHelper.sleep(100);
+        assertEquals(1, job.runs.get());
+    }
+
+    @Test
+    public void testSchedule_earlierWins() {
+        CountingJob job = new CountingJob();
+        mScheduler.schedule(job, 60 * 1000);
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.runs::get, is(1));
+    }
+
+    @Test
+    public void testSchedule_reschedulesWithReturnedDelay() {
+        CountingJob job = new CountingJob();
+        job.nextDelay = 10;
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> job.runs.get() >= 3);
+        job.nextDelay = -1;
+    }
+
+    @Test
+    public void testCoalescing() {
+        CountingJob first = new CountingJob();
+        CountingJob second = new CountingJob();
+        mScheduler.schedule(first, 0);
+        // Due well within the coalescing window, so it runs together with the first one instead of waking up again
+        mScheduler.schedule(second, DispatchScheduler.COALESCE_WINDOW / 2);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> first.runs.get() == 1 && second.runs.get() == 1);
+    }
+
+    @Test
+    public void testCancel() {
+        CountingJob job = new CountingJob();
+        mScheduler.schedule(job, 100);
+        mScheduler.cancel(job);
+        TestHelper.sleep(300);
+        assertEquals(0, job.runs.get());
+        assertTrue(mExecutor.getQueue().isEmpty());
+    }
+
+    @Test
+    public void testCancel_whileRunning() {
+        CountingJob job = new CountingJob();
+        job.cycleTime = 100;
+        job.nextDelay = 0;
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.concurrent::get, is(1));
+        mScheduler.cancel(job);
+        TestHelper.sleep(300);
+        assertEquals(1, job.runs.get());
+    }
+
+    @Test
+    public void testNoConcurrentCycles() {
+        CountingJob job = new CountingJob();
+        job.cycleTime = 50;
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.concurrent::get, is(1));
+        // Requested while running, picked up once the running cycle is done
+        mScheduler.schedule(job, 0);
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(job.runs::get, is(2));
+        TestHelper.sleep(100);
+        assertEquals(2, job.runs.get());
+        assertFalse(job.overlapped);
+    }
+
+    @Test
+    public void testFailingCycle() {
+        AtomicInteger runs = new AtomicInteger();
+        DispatchScheduler.Job job = () -> {
+            runs.incrementAndGet();
+            throw new RuntimeException("Test");
+        };
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(runs::get, is(1));
+
+        mScheduler.schedule(job, 0);
+        await().atMost(1, TimeUnit.SECONDS).until(runs::get, is(2));
+    }
+}
@@ -0,0 +1,62 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.Test;
+import org.matomo.sdk.TrackMe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherTest extends BaseTest {
+
+    @Test
+    public void testDefaults() {
+        // Written against the interface before policies, timeouts, stats and listeners were added
+        MinimalDispatcher dispatcher = new MinimalDispatcher();
+        dispatcher.setDispatchPolicy(new DispatchPolicy().setMeteredBacklogAge(1000));
+        assertEquals(new DispatchPolicy().getMeteredBacklogAge(), dispatcher.getDispatchPolicy().getMeteredBacklogAge());
+
+        assertTrue(dispatcher.forceDispatchBlocking(100));
+        assertEquals(1, dispatcher.blockingDispatches);
+
+        dispatcher.addListener(new DispatchListener() {});
+        assertEquals(0, dispatcher.getStats().snapshot().getEventsSubmitted());
+    }
+
+    private static class MinimalDispatcher implements Dispatcher {
+        int blockingDispatches = 0;
+        private final List<TrackMe> mQueue = new ArrayList<>();
+
+        @Override public int getConnectionTimeOut() { return DEFAULT_CONNECTION_TIMEOUT; }
+
+        @Override public void setConnectionTimeOut(int timeOut) { }
+
+        @Override public void setDispatchInterval(long dispatchInterval) { }
+
+        @Override public long getDispatchInterval() { return DEFAULT_DISPATCH_INTERVAL; }
+
+        @Override public void setDispatchGzipped(boolean dispatchGzipped) { }
+
+        @Override public boolean getDispatchGzipped() { return false; }
+
+        @Override public void setDispatchMode(DispatchMode dispatchMode) { }
+
+        @Override public DispatchMode getDispatchMode() { return DispatchMode.ALWAYS; }
+
+        @Override public boolean forceDispatch() { return true; }
+
+        @Override public void forceDispatchBlocking() { blockingDispatches++; }
+
+        @Override public void clear() { mQueue.clear(); }
+
+        @Override public void submit(TrackMe trackMe) { mQueue.add(trackMe); }
+
+        @Override public void setDryRunTarget(List<Packet> dryRunTarget) { }
+
+        @Override public List<Packet> getDryRunTarget() { return null; }
+    }
+}
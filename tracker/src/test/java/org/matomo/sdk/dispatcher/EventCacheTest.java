@@ -56,6 +56,51 @@ public class EventCacheTest extends BaseTest {
         assertTrue(mEventCache.isEmpty());
     }
 
+    @Test
+    public void testDrain_priorityFirst() {
+        mEventCache.add(new Event("regular"));
+        mEventCache.add(new Event(System.currentTimeMillis(), "priority", true));
+        assertTrue(mEventCache.hasPriorityEvents());
+        List<Event> events = new ArrayList<>();
+        mEventCache.drainTo(events);
+        assertEquals("priority", events.get(0).getEncodedQuery());
+        assertEquals("regular", events.get(1).getEncodedQuery());
+        assertFalse(mEventCache.hasPriorityEvents());
+        assertTrue(mEventCache.isEmpty());
+
+        mEventCache.requeue(events);
+        assertTrue(mEventCache.hasPriorityEvents());
+        events.clear();
+        mEventCache.drainTo(events);
+        assertEquals("priority", events.get(0).getEncodedQuery());
+    }
+
+    @Test
+    public void testRequeue_order() {
+        mEventCache.add(new Event("new"));
+        mEventCache.requeue(Arrays.asList(new Event("first"), new Event("second")));
+        List<Event> events = new ArrayList<>();
+        mEventCache.drainTo(events);
+        assertEquals("first", events.get(0).getEncodedQuery());
+        assertEquals("second", events.get(1).getEncodedQuery());
+        assertEquals("new", events.get(2).getEncodedQuery());
+    }
+
+    @Test
+    public void testDrainPriority() {
+        when(mEventDiskCache.uncachePriority()).thenReturn(Collections.singletonList(new Event(1, "cached priority", true)));
+        mEventCache.add(new Event("regular"));
+        mEventCache.add(new Event(System.currentTimeMillis(), "priority", true));
+        List<Event> events = new ArrayList<>();
+        mEventCache.drainPriorityTo(events);
+        assertEquals(2, events.size());
+        assertEquals("cached priority", events.get(0).getEncodedQuery());
+        assertEquals("priority", events.get(1).getEncodedQuery());
+        // The rest stays queued
+        assertEquals(1, mEventCache.size());
+        verify(mEventDiskCache, never()).uncache();
+    }
+
     @Test
     public void testDrain_empty() {
         List<Event> events = new ArrayList<>();
@@ -118,6 +163,18 @@ public class EventCacheTest extends BaseTest {
         verify(mEventDiskCache, times(2)).cache(ArgumentMatchers.anyList());
     }
 
+    @Test
+    public void testGetOldestTimestamp() {
+        when(mEventDiskCache.getOldestTimestamp()).thenReturn(-1L);
+        assertEquals(-1, mEventCache.getOldestTimestamp());
+
+        mEventCache.add(new Event(200, "test"));
+        assertEquals(200, mEventCache.getOldestTimestamp());
+
+        when(mEventDiskCache.getOldestTimestamp()).thenReturn(100L);
+        assertEquals(100, mEventCache.getOldestTimestamp());
+    }
+
     @Test
     public void testUpdateState_offline_ordering() {
         assertTrue(mEventCache.isEmpty());
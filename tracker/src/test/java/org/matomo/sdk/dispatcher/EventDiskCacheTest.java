@@ -12,6 +12,7 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -23,6 +24,7 @@ import testhelpers.BaseTest;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 
@@ -83,6 +85,20 @@ public class EventDiskCacheTest extends BaseTest {
         assertEquals(1, hostFolder.listFiles().length);
     }
 
+    @Test
+    public void testCachePath_otherServer() {
+        when(mTracker.getName()).thenReturn("Default Tracker");
+        EventDiskCache routeCache = new EventDiskCache(mTracker, "http://testhost/other/matomo.php");
+        routeCache.cache(Collections.singletonList(new Event(1000, "test")));
+        // Same host, but kept apart from the tracker's own events
+        assertFalse(mHostFolder.exists());
+        File[] folders = mCacheFolder.listFiles();
+        assertEquals(1, folders.length);
+        assertTrue(folders[0].getName().startsWith("testhost_"));
+        assertEquals(1, routeCache.uncache().size());
+        folders[0].delete();
+    }
+
     @Test
     public void testCacheFileName() {
         mDiskCache.cache(Arrays.asList(new Event(1234567890, "test"), new Event(987654321, "test2")));
@@ -209,6 +225,17 @@ public class EventDiskCacheTest extends BaseTest {
         assertTrue(mDiskCache.isEmpty());
     }
 
+    @Test
+    public void testLazyLoad() {
+        EventDiskCache lazyCache = new EventDiskCache(mTracker);
+        // Written after the lazy cache was created, still found because the directory is listed on first use
+        mDiskCache.cache(Arrays.asList(new Event(1, "test1"), new Event(2, "test2")));
+        assertEquals(0, lazyCache.getCurrentSize());
+        assertFalse(lazyCache.isEmpty());
+        assertEquals(new File(mHostFolder, "events_2").length(), lazyCache.getCurrentSize());
+        assertEquals(2, lazyCache.uncache().size());
+    }
+
     @Test
     public void testMaxSize_limited() {
         when(mTracker.getOfflineCacheSize()).thenReturn(1024L);
@@ -234,6 +261,112 @@ public class EventDiskCacheTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testMaxSize_priorityEvictedLast() {
+        when(mTracker.getOfflineCacheSize()).thenReturn(1024L);
+        mDiskCache = new EventDiskCache(mTracker);
+        for (int j = 0; j < 5; j++) {
+            List<Event> events = new ArrayList<>();
+            for (int k = 0; k < 10; k++) {
+                // The oldest set is the only priority one
+                events.add(new Event(System.nanoTime(), "set:" + j + " " + UUID.randomUUID().toString(), j == 0));
+            }
+            // About ~512Byte
+            mDiskCache.cache(events);
+        }
+
+        assertEquals(3, mHostFolder.listFiles().length);
+        final List<Event> events = mDiskCache.uncache();
+        assertEquals(30, events.size());
+        for (Event e : events.subList(0, 10)) {
+            assertTrue(e.isPriority());
+            assertTrue(e.getEncodedQuery().startsWith("set:0"));
+        }
+        for (Event e : events.subList(10, 30)) {
+            assertFalse(e.isPriority());
+        }
+    }
+
+    @Test
+    public void testPriorityContainer() {
+        mDiskCache.cache(Arrays.asList(new Event(1, "test1", true), new Event(2, "test2"), new Event(3, "test3", true)));
+        assertTrue(new File(mHostFolder, "priority_3").exists());
+        assertTrue(new File(mHostFolder, "events_2").exists());
+
+        // Containers are restored by age, regardless of their type
+        mDiskCache = new EventDiskCache(mTracker);
+        final List<Event> events = mDiskCache.uncache();
+        assertEquals(3, events.size());
+        assertEquals("test2", events.get(0).getEncodedQuery());
+        assertFalse(events.get(0).isPriority());
+        assertEquals("test1", events.get(1).getEncodedQuery());
+        assertTrue(events.get(1).isPriority());
+        assertTrue(events.get(2).isPriority());
+    }
+
+    @Test
+    public void testUncachePriority() {
+        assertFalse(mDiskCache.hasPriorityEvents());
+        mDiskCache.cache(Arrays.asList(new Event(1, "test1", true), new Event(2, "test2")));
+        assertTrue(mDiskCache.hasPriorityEvents());
+
+        final List<Event> priority = mDiskCache.uncachePriority();
+        assertEquals(1, priority.size());
+        assertEquals("test1", priority.get(0).getEncodedQuery());
+        assertFalse(mDiskCache.hasPriorityEvents());
+        assertFalse(mDiskCache.isEmpty());
+        assertEquals("test2", mDiskCache.uncache().get(0).getEncodedQuery());
+    }
+
+    @Test
+    public void testBatchId() {
+        mDiskCache.cache(Arrays.asList(new Event(1, "test1", false, "batch"), new Event(2, "test2")));
+        final List<Event> events = mDiskCache.uncache();
+        assertEquals(2, events.size());
+        assertEquals("batch", events.get(0).getBatchId());
+        assertEquals("test1", events.get(0).getEncodedQuery());
+        assertNull(events.get(1).getBatchId());
+        assertEquals("test2", events.get(1).getEncodedQuery());
+    }
+
+    @Test
+    public void testLegacyContainer() throws Exception {
+        assertTrue(mHostFolder.mkdirs());
+        try (FileWriter out = new FileWriter(new File(mHostFolder, "events_2"))) {
+            out.write("1\n1 ?a=1&b=2\n2 ?c=3\n");
+        }
+        mDiskCache = new EventDiskCache(mTracker);
+        final List<Event> events = mDiskCache.uncache();
+        assertEquals(2, events.size());
+        assertEquals("?a=1&b=2", events.get(0).getEncodedQuery());
+        assertNull(events.get(0).getBatchId());
+        assertEquals(2, events.get(1).getTimeStamp());
+    }
+
+    @Test
+    public void testSizeAccounting() {
+        when(mTracker.getOfflineCacheSize()).thenReturn(1024L);
+        mDiskCache = new EventDiskCache(mTracker);
+        assertEquals(0, mDiskCache.getCurrentSize());
+        mDiskCache.cache(Arrays.asList(new Event(1, "test1"), new Event(2, "test2")));
+        assertEquals(new File(mHostFolder, "events_2").length(), mDiskCache.getCurrentSize());
+
+        mDiskCache.uncache();
+        assertEquals(0, mDiskCache.getCurrentSize());
+        assertEquals(0, mDiskCache.getEvictions());
+
+        for (int j = 0; j < 5; j++) {
+            List<Event> events = new ArrayList<>();
+            for (int k = 0; k < 10; k++) events.add(new Event(System.nanoTime(), UUID.randomUUID().toString()));
+            mDiskCache.cache(events);
+        }
+        assertEquals(mHostFolder.listFiles().length, 5 - mDiskCache.getEvictions());
+        assertTrue(mDiskCache.getEvictions() > 0);
+        long size = 0;
+        for (File container : mHostFolder.listFiles()) size += container.length();
+        assertEquals(size, mDiskCache.getCurrentSize());
+    }
+
     @Test
     public void testMaxSize_disabled() {
         when(mTracker.getOfflineCacheSize()).thenReturn(0L);
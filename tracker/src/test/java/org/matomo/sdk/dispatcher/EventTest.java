@@ -74,6 +74,24 @@ public class EventTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testEncodeParams() {
+        Map<String, String> data = new HashMap<>();
+        data.put(QueryParams.URL_PATH.toString(), "/a b");
+        assertEquals("url=%2Fa%20b", Event.encodeParams(data));
+        assertEquals("?" + Event.encodeParams(data), new Event(data).getEncodedQuery());
+        assertEquals("", Event.encodeParams(new HashMap<>()));
+    }
+
+    @Test
+    public void testDecodeQuery() {
+        TrackMe trackMe = new TrackMe()
+                .set(QueryParams.URL_PATH, "/a b?c=d&e")
+                .set(QueryParams.VISIT_SCOPE_CUSTOM_VARIABLES, "{\"1\":[\"2& ?\",\"3@#\"]}");
+        TrackMe decoded = Event.decodeQuery(new Event(trackMe.toMap()).getEncodedQuery());
+        assertEquals(trackMe.toMap(), decoded.toMap());
+    }
+
     private static Map<String, String> parseEncoding(String url) throws Exception {
         Map<String, String> values = new HashMap<>();
         List<Pair<String, String>> params = UrlHelper.parse(new URI("http://localhost/" + url), "UTF-8");
@@ -0,0 +1,71 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.extra.TrackHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import testhelpers.DefaultTestCase;
+import testhelpers.TestHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExecutorDispatcherFactoryTest extends DefaultTestCase {
+    ScheduledThreadPoolExecutor mExecutor;
+    ExecutorDispatcherFactory mFactory;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mFactory = new ExecutorDispatcherFactory(mExecutor);
+        getMatomo().setDispatcherFactory(mFactory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        getMatomo().setDispatcherFactory(new DefaultDispatcherFactory());
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        Tracker tracker = createTracker();
+        List<Packet> dryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        tracker.setDryRunTarget(dryRunTarget);
+        tracker.setDispatchInterval(-1);
+
+        TrackHelper.track().screen("/test").with(tracker);
+        assertEquals(0, dryRunTarget.size());
+
+        mFactory.flush().get(1, TimeUnit.SECONDS);
+        assertEquals(1, dryRunTarget.size());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        Tracker tracker = createTracker();
+        List<Packet> dryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        tracker.setDryRunTarget(dryRunTarget);
+        tracker.setDispatchInterval(0);
+
+        mFactory.shutdown();
+        TrackHelper.track().screen("/test").with(tracker);
+        tracker.dispatch();
+        TestHelper.sleep(100);
+        mFactory.flush().get(1, TimeUnit.SECONDS);
+        assertEquals(0, dryRunTarget.size());
+
+        // The executor belongs to the app
+        assertFalse(mExecutor.isShutdown());
+    }
+}
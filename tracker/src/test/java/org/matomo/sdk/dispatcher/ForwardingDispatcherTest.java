@@ -0,0 +1,203 @@
+package org.matomo.sdk.dispatcher;
+
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.matomo.sdk.Matomo;
+import org.matomo.sdk.QueryParams;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import testhelpers.DefaultTestCase;
+import testhelpers.TestHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ForwardingDispatcherTest extends DefaultTestCase {
+    private static final String AUTHORITY = "org.matomo.sdk.test.events";
+    private static final String TRACKER = "tracker";
+    @Mock Dispatcher mOwnerDispatcher;
+    @Mock Tracker mTracker;
+    @Mock Matomo mMatomo;
+    ScheduledThreadPoolExecutor mExecutor;
+    ForwardingDispatcher mDispatcher;
+    EventDiskCache mDiskCache;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        MockitoAnnotations.openMocks(this);
+        Robolectric.setupContentProvider(EventForwardingProvider.class, AUTHORITY);
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mDispatcher = create(null);
+
+        when(mTracker.getMatomo()).thenReturn(mMatomo);
+        when(mMatomo.getContext()).thenReturn(ApplicationProvider.getApplicationContext());
+        when(mTracker.getOfflineCacheSize()).thenReturn(4 * 1024 * 1024L);
+        mDiskCache = EventDiskCache.forForwarding(mTracker, "org.matomo.sdk.test:remote", TRACKER);
+    }
+
+    private ForwardingDispatcher create(EventDiskCache diskCache) {
+        return new ForwardingDispatcher(
+                ApplicationProvider.getApplicationContext().getContentResolver(),
+                Uri.parse("content://" + AUTHORITY),
+                TRACKER,
+                new PacketFactory("http://example.com"),
+                new DispatchScheduler(mExecutor),
+                diskCache
+        );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EventForwardingProvider.unregister(TRACKER);
+        mDiskCache.uncache();
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    private static TrackMe testEvent(String path) {
+        return new TrackMe().set(QueryParams.URL_PATH, path).set(QueryParams.ACTION_NAME, "a & b = c");
+    }
+
+    @Test
+    public void testEncoding() {
+        TrackMe trackMe = testEvent("/test?x=1&y=ü");
+        TrackMe decoded = EventForwardingProvider.decode(EventForwardingProvider.encode(trackMe));
+        assertEquals(trackMe.toMap(), decoded.toMap());
+    }
+
+    @Test
+    public void testForward() {
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        mDispatcher.submit(testEvent("/1"));
+        mDispatcher.submit(testEvent("/2"));
+
+        ArgumentCaptor<TrackMe> captor = ArgumentCaptor.forClass(TrackMe.class);
+        verify(mOwnerDispatcher, timeout(2000).times(2)).submit(captor.capture(), anyLong());
+        assertEquals("/1", captor.getAllValues().get(0).get(QueryParams.URL_PATH));
+        assertEquals("/2", captor.getAllValues().get(1).get(QueryParams.URL_PATH));
+        assertEquals("a & b = c", captor.getAllValues().get(1).get(QueryParams.ACTION_NAME));
+    }
+
+    @Test
+    public void testForward_ownerNotReady() {
+        mDispatcher.submit(testEvent("/1"));
+        assertFalse(mDispatcher.forceDispatchBlocking(1000));
+
+        // Kept until the owner accepts them
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        assertTrue(mDispatcher.forceDispatchBlocking(1000));
+        verify(mOwnerDispatcher, times(1)).submit(any(TrackMe.class), anyLong());
+        verify(mOwnerDispatcher).forceDispatch();
+    }
+
+    @Test
+    public void testExceptionMode() {
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        mDispatcher.setDispatchMode(DispatchMode.EXCEPTION);
+        mDispatcher.submit(testEvent("/crash"));
+        // Forwarded without delay
+        verify(mOwnerDispatcher).submit(any(TrackMe.class), anyLong());
+    }
+
+    @Test
+    public void testClear() {
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        mDispatcher.submit(testEvent("/1"));
+        mDispatcher.clear();
+        TestHelper.sleep(ForwardingDispatcher.FORWARD_DELAY * 2);
+        verify(mOwnerDispatcher, never()).submit(any(TrackMe.class), anyLong());
+    }
+
+    @Test
+    public void testDryRun() {
+        List<Packet> dryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        mDispatcher.setDryRunTarget(dryRunTarget);
+        mDispatcher.submit(testEvent("/1"));
+        mDispatcher.submit(testEvent("/2"));
+        mDispatcher.forceDispatchBlocking();
+        assertEquals(1, dryRunTarget.size());
+        assertEquals(2, dryRunTarget.get(0).getEventCount());
+        verify(mOwnerDispatcher, never()).submit(any(TrackMe.class), anyLong());
+    }
+
+    @Test
+    public void testTimestampKept() {
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        long before = System.currentTimeMillis();
+        mDispatcher.submit(testEvent("/1"));
+        long after = System.currentTimeMillis();
+
+        // The time it was tracked at, not the time it was forwarded at
+        ArgumentCaptor<Long> captor = ArgumentCaptor.forClass(Long.class);
+        verify(mOwnerDispatcher, timeout(2000)).submit(any(TrackMe.class), captor.capture());
+        assertTrue(captor.getValue() >= before);
+        assertTrue(captor.getValue() <= after);
+    }
+
+    @Test
+    public void testBounded_dropsOldest() {
+        for (int i = 0; i < ForwardingDispatcher.MAX_PENDING + 10; i++) mDispatcher.submit(testEvent("/" + i));
+        assertEquals(ForwardingDispatcher.MAX_PENDING, mDispatcher.getStats().snapshot().getQueueDepth());
+
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        assertTrue(mDispatcher.forceDispatchBlocking(1000));
+        ArgumentCaptor<TrackMe> captor = ArgumentCaptor.forClass(TrackMe.class);
+        verify(mOwnerDispatcher, times(ForwardingDispatcher.MAX_PENDING)).submit(captor.capture(), anyLong());
+        assertEquals("/10", captor.getAllValues().get(0).get(QueryParams.URL_PATH));
+    }
+
+    @Test
+    public void testBounded_spillsToDisk() {
+        ForwardingDispatcher dispatcher = create(mDiskCache);
+        for (int i = 0; i < ForwardingDispatcher.MAX_PENDING + 10; i++) dispatcher.submit(testEvent("/" + i));
+        assertTrue(dispatcher.getStats().snapshot().getQueueDepth() <= ForwardingDispatcher.MAX_PENDING);
+
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        ArgumentCaptor<TrackMe> captor = ArgumentCaptor.forClass(TrackMe.class);
+        verify(mOwnerDispatcher, timeout(5000).times(ForwardingDispatcher.MAX_PENDING + 10)).submit(captor.capture(), anyLong());
+        // Nothing lost, the order doesn't matter as the timestamps are kept
+        Set<String> paths = new HashSet<>();
+        for (TrackMe trackMe : captor.getAllValues()) paths.add(trackMe.get(QueryParams.URL_PATH));
+        assertEquals(ForwardingDispatcher.MAX_PENDING + 10, paths.size());
+    }
+
+    @Test
+    public void testForwardFromDisk() {
+        ForwardingDispatcher dispatcher = create(mDiskCache);
+        dispatcher.submit(testEvent("/1"));
+        assertFalse(dispatcher.forceDispatchBlocking(1000));
+        assertFalse(mDiskCache.isEmpty());
+
+        // A new run of the process picks them up
+        EventForwardingProvider.register(TRACKER, mOwnerDispatcher);
+        create(mDiskCache);
+        verify(mOwnerDispatcher, timeout(2000)).submit(any(TrackMe.class), anyLong());
+        assertTrue(mDiskCache.isEmpty());
+    }
+}
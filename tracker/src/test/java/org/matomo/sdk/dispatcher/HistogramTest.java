@@ -0,0 +1,81 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.Test;
+
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest extends BaseTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50), 0);
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 4; i++) histogram.record(i);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(6, snapshot.getSum());
+        assertEquals(3, snapshot.getMax());
+        assertEquals(1, snapshot.getPercentile(50));
+        assertEquals(3, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value : new long[]{0, 1, 4, 7, 8, 9, 10, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            long upper = Histogram.upperBoundOf(bucket);
+            assertTrue(value <= upper);
+            // Within 25% of the value
+            assertTrue(upper - value <= value / 4 + 1);
+            assertTrue(upper >= previous);
+            previous = upper;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        long p50 = snapshot.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 625);
+        long p99 = snapshot.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+    }
+
+    @Test
+    public void testNegativeClamped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) histogram.record(i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(40000, histogram.snapshot().getCount());
+        assertEquals(9999, histogram.snapshot().getMax());
+    }
+}
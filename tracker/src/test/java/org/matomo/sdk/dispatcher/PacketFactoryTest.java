@@ -4,6 +4,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -12,9 +13,11 @@ import java.util.List;
 import testhelpers.BaseTest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
 
 @RunWith(MockitoJUnitRunner.class)
 public class PacketFactoryTest extends BaseTest {
@@ -51,6 +54,18 @@ public class PacketFactoryTest extends BaseTest {
         assertTrue(factory.buildPackets(Collections.singletonList(new Event(""))).isEmpty());
     }
 
+    @Test
+    public void testEvents_skippedBatch() {
+        Event empty = new Event("");
+        empty.setBatchId("empty");
+        Event straw = new Event("straw");
+        Event berries = new Event("berries");
+        PacketFactory factory = new PacketFactory("http://example.com/");
+        List<Packet> packets = factory.buildPackets(Arrays.asList(empty, straw, berries));
+        assertEquals(1, packets.size());
+        assertEquals(Arrays.asList(straw, berries), packets.get(0).getEvents());
+    }
+
     @Test
     public void testEmptyEvents() {
         PacketFactory factory = new PacketFactory("http://example.com/");
@@ -114,4 +129,65 @@ public class PacketFactoryTest extends BaseTest {
         assertNotNull(third.getPostData());
     }
 
+    @Test
+    public void testBatchId() {
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < PacketFactory.PAGE_SIZE + 1; i++) {
+            events.add(new Event("?eve" + i));
+        }
+        PacketFactory factory = new PacketFactory("http://example.com/");
+        List<Packet> packets = factory.buildPackets(events);
+        assertNotNull(packets.get(0).getBatchId());
+        assertNotNull(packets.get(1).getBatchId());
+        assertNotEquals(packets.get(0).getBatchId(), packets.get(1).getBatchId());
+        assertEquals(packets.get(0).getBatchId(), events.get(0).getBatchId());
+        assertEquals(packets.get(0).getBatchId(), events.get(PacketFactory.PAGE_SIZE - 1).getBatchId());
+        assertEquals(packets.get(1).getBatchId(), events.get(PacketFactory.PAGE_SIZE).getBatchId());
+    }
+
+    @Test
+    public void testBatchId_retry() throws Exception {
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < PacketFactory.PAGE_SIZE; i++) {
+            events.add(new Event("?eve" + i));
+        }
+        PacketFactory factory = new PacketFactory("http://example.com/");
+        Packet original = factory.buildPackets(events).get(0);
+
+        // The failed packet comes back from the queue with new events added around it
+        List<Event> retry = new ArrayList<>();
+        retry.add(new Event("?before"));
+        retry.addAll(events);
+        retry.add(new Event("?after"));
+        List<Packet> packets = factory.buildPackets(retry);
+        assertEquals(3, packets.size());
+        assertEquals(1, packets.get(0).getEventCount());
+        assertEquals(original.getBatchId(), packets.get(1).getBatchId());
+        assertEquals(original.getPostData().toString(), packets.get(1).getPostData().toString());
+        assertEquals(1, packets.get(2).getEventCount());
+        assertNotEquals(packets.get(0).getBatchId(), packets.get(2).getBatchId());
+    }
+
+    @Test
+    public void testBatchId_retrySplit() throws Exception {
+        Event priority = new Event(1, "?priority", true);
+        Event regular1 = new Event(2, "?regular1");
+        Event regular2 = new Event(3, "?regular2");
+        PacketFactory factory = new PacketFactory("http://example.com/");
+        Packet original = factory.buildPackets(Arrays.asList(priority, regular1, regular2)).get(0);
+
+        // Requeued, then a new priority event is drained in between the events of the batch
+        EventCache cache = new EventCache(mock(EventDiskCache.class));
+        cache.requeue(original.getEvents());
+        cache.add(new Event(4, "?new", true));
+        List<Event> drained = new ArrayList<>();
+        cache.drainTo(drained);
+        assertEquals("?new", drained.get(1).getEncodedQuery());
+
+        List<Packet> packets = factory.buildPackets(drained);
+        assertEquals(2, packets.size());
+        assertEquals(original.getBatchId(), packets.get(0).getBatchId());
+        assertEquals(original.getPostData().toString(), packets.get(0).getPostData().toString());
+        assertEquals("?new", packets.get(1).getEvents().get(0).getEncodedQuery());
+    }
 }
@@ -0,0 +1,46 @@
+package org.matomo.sdk.dispatcher;
+
+import org.junit.Test;
+
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendResultTest extends BaseTest {
+
+    @Test
+    public void testNoSummary() {
+        assertTrue(SendResult.SENT.isHandled(3));
+        assertFalse(SendResult.FAILED.isHandled(3));
+        assertFalse(new SendResult(500, false).isHandled(2));
+    }
+
+    @Test
+    public void testAllTracked() {
+        assertTrue(new SendResult(200, true, 3).isHandled(3));
+    }
+
+    @Test
+    public void testInvalid_withoutIndices() {
+        // What the server answers to requests without token_auth
+        SendResult result = new SendResult(200, true, 18, 2);
+        assertTrue(result.isHandled(20));
+        assertFalse(result.isInvalid(0));
+    }
+
+    @Test
+    public void testInvalid_withIndices() {
+        SendResult result = new SendResult(400, false, 2, 1, new int[]{1});
+        assertTrue(result.isHandled(3));
+        assertTrue(result.isInvalid(1));
+        assertFalse(result.isInvalid(0));
+    }
+
+    @Test
+    public void testIncomplete() {
+        // The server stopped before all events were processed, the packet is retried as a whole
+        assertFalse(new SendResult(500, false, 2, 1, new int[]{1}).isHandled(5));
+        assertFalse(new SendResult(500, false, 0).isHandled(2));
+    }
+}
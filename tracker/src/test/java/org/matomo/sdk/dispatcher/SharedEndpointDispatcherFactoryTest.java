@@ -0,0 +1,79 @@
+package org.matomo.sdk.dispatcher;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.TrackerBuilder;
+import org.matomo.sdk.extra.TrackHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import testhelpers.DefaultTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedEndpointDispatcherFactoryTest extends DefaultTestCase {
+    SharedEndpointDispatcherFactory mFactory;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        mFactory = new SharedEndpointDispatcherFactory();
+        getMatomo().setDispatcherFactory(mFactory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        getMatomo().setDispatcherFactory(new DefaultDispatcherFactory());
+        super.tearDown();
+    }
+
+    private Tracker build(String apiUrl, int siteId, String name) {
+        Tracker tracker = new TrackerBuilder(apiUrl, siteId, name).build(getMatomo());
+        tracker.getPreferences().edit().clear().apply();
+        return tracker;
+    }
+
+    @Test
+    public void testSharedPerApiUrl() {
+        Tracker site1 = build("https://example.com/matomo.php", 1, "site1");
+        Tracker site2 = build("https://example.com/matomo.php", 2, "site2");
+        Tracker other = build("https://other.example.com/matomo.php", 1, "other");
+
+        List<Packet> dryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        site1.setDryRunTarget(dryRunTarget);
+        // Settings are shared
+        assertSame(dryRunTarget, site2.getDryRunTarget());
+
+        List<Packet> otherDryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        other.setDryRunTarget(otherDryRunTarget);
+        assertNotSame(otherDryRunTarget, site1.getDryRunTarget());
+    }
+
+    @Test
+    public void testMixedSitePackets() throws Exception {
+        Tracker site1 = build("https://example.com/matomo.php", 1, "site1");
+        Tracker site2 = build("https://example.com/matomo.php", 2, "site2");
+        List<Packet> dryRunTarget = Collections.synchronizedList(new ArrayList<>());
+        site1.setDryRunTarget(dryRunTarget);
+        site1.setDispatchInterval(-1);
+
+        TrackHelper.track().screen("/one").with(site1);
+        TrackHelper.track().screen("/two").with(site2);
+        assertTrue(site2.dispatchBlocking(1000));
+
+        assertEquals(1, dryRunTarget.size());
+        Packet packet = dryRunTarget.get(0);
+        assertEquals(2, packet.getEventCount());
+        JSONArray requests = packet.getPostData().getJSONArray("requests");
+        assertTrue(requests.getString(0).contains("idsite=1"));
+        assertTrue(requests.getString(1).contains("idsite=2"));
+    }
+}
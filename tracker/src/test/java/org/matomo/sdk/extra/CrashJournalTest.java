@@ -0,0 +1,192 @@
+package org.matomo.sdk.extra;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matomo.sdk.QueryParams;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.dispatcher.DispatchMode;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import testhelpers.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CrashJournalTest extends BaseTest {
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+    @Mock Tracker mTracker;
+    File mFile;
+    CrashJournal mJournal;
+    final List<Runnable> mTasks = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        MockitoAnnotations.openMocks(this);
+        when(mTracker.isInitialized()).thenReturn(true);
+        mFile = new File(new File(mFolder.getRoot(), "journal"), "tracker");
+        mJournal = new CrashJournal(mFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mJournal.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(mJournal.read());
+        assertTrue(mJournal.open(null));
+        assertEquals(CrashJournal.CAPACITY, mFile.length());
+        assertNull(mJournal.read());
+    }
+
+    @Test
+    public void testRecord() {
+        TrackMe base = new TrackMe().set(QueryParams.USER_ID, "user & co").set(QueryParams.URL_PATH, "/crash?q=1");
+        assertTrue(mJournal.open(base));
+        RuntimeException exception = new RuntimeException("Something\nbroke ü");
+        assertTrue(mJournal.record(exception));
+        // Only the first crash is kept
+        assertFalse(mJournal.record(new IllegalStateException()));
+        assertEquals(CrashJournal.CAPACITY, mFile.length());
+
+        TrackMe crash = new CrashJournal(mFile).read();
+        assertNotNull(crash);
+        StackTraceElement trace = exception.getStackTrace()[0];
+        String className = trace.getClassName() + "/" + trace.getMethodName() + ":" + trace.getLineNumber();
+        assertEquals("Exception", crash.get(QueryParams.EVENT_CATEGORY));
+        assertEquals(className, crash.get(QueryParams.EVENT_ACTION));
+        assertEquals("Something broke ü", crash.get(QueryParams.EVENT_NAME));
+        assertEquals("1", crash.get(QueryParams.EVENT_VALUE));
+        assertEquals("exception/fatal/" + className + "/Something broke ü", crash.get(QueryParams.ACTION_NAME));
+        assertNotNull(crash.get(QueryParams.DATETIME_OF_REQUEST));
+        assertEquals("user & co", crash.get(QueryParams.USER_ID));
+        assertEquals("/crash?q=1", crash.get(QueryParams.URL_PATH));
+
+        // Reopening clears the journal
+        assertTrue(mJournal.open(base));
+        assertNull(mJournal.read());
+    }
+
+    @Test
+    public void testRecord_noMessage() {
+        assertTrue(mJournal.open(null));
+        assertTrue(mJournal.record(new NullPointerException()));
+        TrackMe crash = mJournal.read();
+        assertNotNull(crash);
+        assertNull(crash.get(QueryParams.EVENT_NAME));
+    }
+
+    @Test
+    public void testRecord_truncated() {
+        assertTrue(mJournal.open(null));
+        StringBuilder message = new StringBuilder();
+        while (message.length() < CrashJournal.CAPACITY * 2) message.append("message ");
+        assertTrue(mJournal.record(new RuntimeException(message.toString())));
+
+        TrackMe crash = mJournal.read();
+        assertNotNull(crash);
+        assertTrue(crash.get(QueryParams.EVENT_NAME).startsWith("message message"));
+        assertTrue(crash.get(QueryParams.EVENT_NAME).length() < CrashJournal.CAPACITY);
+    }
+
+    @Test
+    public void testRecord_notOpen() {
+        assertFalse(mJournal.record(new RuntimeException()));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void testRead_corrupt() throws Exception {
+        assertTrue(mFile.getParentFile().mkdirs());
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write("MCJ1\n\nnot a timestamp\nclass\nmessage\n".getBytes());
+        }
+        assertNull(mJournal.read());
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            // Cut short
+            out.write("MCJ1\n\n123\nclass".getBytes());
+        }
+        assertNull(mJournal.read());
+    }
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) task.run();
+    }
+
+    @Test
+    public void testExceptionHandler() {
+        MatomoExceptionHandler handler = new MatomoExceptionHandler(mTracker, null, mJournal, mTasks::add);
+        // Nothing is read or written on the installing thread
+        assertFalse(mFile.exists());
+        runTasks();
+        assertEquals(CrashJournal.CAPACITY, mFile.length());
+        verify(mTracker, never()).track(any());
+
+        handler.uncaughtException(Thread.currentThread(), new RuntimeException("crash"));
+        // Recorded in the journal instead of going through the tracker
+        verify(mTracker, never()).track(any());
+        verify(mTracker).setDispatchMode(DispatchMode.EXCEPTION);
+        verify(mTracker).dispatchBlocking(anyLong());
+
+        // Next app start
+        mJournal.close();
+        mJournal = new CrashJournal(mFile);
+        new MatomoExceptionHandler(mTracker, null, mJournal, mTasks::add);
+        verify(mTracker, never()).track(any());
+        runTasks();
+        ArgumentCaptor<TrackMe> captor = ArgumentCaptor.forClass(TrackMe.class);
+        verify(mTracker).track(captor.capture());
+        assertEquals("crash", captor.getValue().get(QueryParams.EVENT_NAME));
+        assertTrue(captor.getValue().get(QueryParams.ACTION_NAME).startsWith("exception/fatal/"));
+    }
+
+    @Test
+    public void testExceptionHandler_journalNotOpenYet() {
+        MatomoExceptionHandler handler = new MatomoExceptionHandler(mTracker, null, mJournal, mTasks::add);
+        handler.uncaughtException(Thread.currentThread(), new RuntimeException("early crash"));
+        // Tracked right away instead
+        ArgumentCaptor<TrackMe> captor = ArgumentCaptor.forClass(TrackMe.class);
+        verify(mTracker).track(captor.capture());
+        assertEquals("early crash", captor.getValue().get(QueryParams.EVENT_NAME));
+    }
+
+    @Test
+    public void testExceptionHandler_trackerInitializing() {
+        MatomoExceptionHandler handler = new MatomoExceptionHandler(mTracker, null, mJournal, mTasks::add);
+        runTasks();
+        when(mTracker.isInitialized()).thenReturn(false);
+
+        handler.uncaughtException(Thread.currentThread(), new RuntimeException("crash"));
+        // Doesn't wait for the tracker, the journal has the crash
+        verify(mTracker, never()).setDispatchMode(any());
+        verify(mTracker, never()).dispatchBlocking(anyLong());
+        mJournal.close();
+        mJournal = new CrashJournal(mFile);
+        assertEquals("crash", mJournal.read().get(QueryParams.EVENT_NAME));
+    }
+}
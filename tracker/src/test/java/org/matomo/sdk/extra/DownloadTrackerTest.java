@@ -28,6 +28,7 @@ import testhelpers.TestHelper;
 import testhelpers.TestPreferences;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -176,6 +177,18 @@ public class DownloadTrackerTest extends BaseTest {
         assertEquals("http://installer", mCaptor.getValue().get(QueryParams.REFERRER));
     }
 
+    @Test
+    public void testOlderVersionFlagsRemoved() {
+        mSharedPreferences.edit().putBoolean("downloaded:package:1", true).putBoolean("downloaded:other:1", true).apply();
+        DownloadTracker downloadTracker = new DownloadTracker(mTracker);
+        downloadTracker.trackOnce(new TrackMe(), new DownloadTracker.Extra.None());
+        verify(mTracker).track(mCaptor.capture());
+
+        assertTrue(mSharedPreferences.getBoolean("downloaded:package:123", false));
+        assertFalse(mSharedPreferences.contains("downloaded:package:1"));
+        assertTrue(mSharedPreferences.contains("downloaded:other:1"));
+    }
+
     private void checkNewAppDownload(TrackMe trackMe) {
         assertTrue(trackMe.get(QueryParams.DOWNLOAD).length() > 0);
         assertTrue(trackMe.get(QueryParams.URL_PATH).length() > 0);
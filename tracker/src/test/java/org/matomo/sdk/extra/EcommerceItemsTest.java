@@ -10,6 +10,8 @@ import java.util.Locale;
 import testhelpers.BaseTest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -75,4 +77,60 @@ public class EcommerceItemsTest extends BaseTest {
         assertEquals(2, (int) item.getQuantity());
     }
 
+    @Test
+    public void testCachedJson() {
+        EcommerceItems items = new EcommerceItems();
+        items.addItem(new EcommerceItems.Item("fake_sku").name("fake_product").price(200).quantity(2));
+        items.addItem(new EcommerceItems.Item("fake_sku_2").name("fake_product_2").price(400).quantity(3));
+        String json = items.toJson();
+        assertEquals("[[\"fake_sku\",\"fake_product\",\"2.00\",\"2\"],[\"fake_sku_2\",\"fake_product_2\",\"4.00\",\"3\"]]", json);
+        assertSame(json, items.toJson());
+
+        // Same values, nothing to rebuild
+        items.addItem(new EcommerceItems.Item("fake_sku").name("fake_product").price(200).quantity(2));
+        items.remove("unknown_sku");
+        assertSame(json, items.toJson());
+
+        items.addItem(new EcommerceItems.Item("fake_sku").name("fake_product").price(200).quantity(5));
+        assertEquals("[[\"fake_sku\",\"fake_product\",\"2.00\",\"5\"],[\"fake_sku_2\",\"fake_product_2\",\"4.00\",\"3\"]]", items.toJson());
+    }
+
+    @Test
+    public void testSetQuantity() {
+        EcommerceItems items = new EcommerceItems();
+        items.addItem(new EcommerceItems.Item("fake_sku").name("fake_product").price(200).quantity(2));
+        items.addItem(new EcommerceItems.Item("fake_sku_2").price(400));
+        String json = items.toJson();
+
+        assertTrue(items.setQuantity("fake_sku", 2));
+        assertSame(json, items.toJson());
+        assertTrue(items.setQuantity("fake_sku", 3));
+        assertTrue(items.setQuantity("fake_sku_2", 1));
+        assertFalse(items.setQuantity("unknown_sku", 1));
+        assertEquals("[[\"fake_sku\",\"fake_product\",\"2.00\",\"3\"],[\"fake_sku_2\",\"4.00\",\"1\"]]", items.toJson());
+    }
+
+    @Test
+    public void testItemChangedAfterAdding() {
+        EcommerceItems items = new EcommerceItems();
+        EcommerceItems.Item item = new EcommerceItems.Item("fake_sku").quantity(1);
+        items.addItem(item);
+        item.quantity(2);
+        assertEquals("[[\"fake_sku\",\"1\"]]", items.toJson());
+
+        items.addItem(item);
+        assertEquals("[[\"fake_sku\",\"2\"]]", items.toJson());
+    }
+
+    @Test
+    public void testLargeCart() {
+        EcommerceItems items = new EcommerceItems();
+        JSONArray expected = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            EcommerceItems.Item item = new EcommerceItems.Item("sku_" + i).name("\"product\" " + i).category("cat/" + i).price(i * 101).quantity(i);
+            items.addItem(item);
+            expected.put(item.toJson());
+        }
+        assertEquals(expected.toString(), items.toJson());
+    }
 }
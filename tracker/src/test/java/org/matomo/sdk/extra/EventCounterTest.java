@@ -0,0 +1,114 @@
+package org.matomo.sdk.extra;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matomo.sdk.QueryParams;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.dispatcher.DispatchScheduler;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventCounterTest {
+    Tracker mTracker = mock(Tracker.class);
+    ArgumentCaptor<TrackMe> mCaptor = ArgumentCaptor.forClass(TrackMe.class);
+
+    @Test
+    public void testAggregation() {
+        EventCounter counter = new EventCounter(mTracker, EventCounter.DEFAULT_WINDOW, null);
+        for (int i = 0; i < 100; i++) counter.count("List", "Scrolled past", "item");
+        counter.count("Button", "Tapped", null);
+        counter.add("Button", "Tapped", null, 2.5);
+        TrackHelper.track().event("List", "Scrolled past").name("item").count(counter);
+        verify(mTracker, never()).track(any(TrackMe.class));
+        assertEquals(2, counter.getPendingCount());
+
+        counter.flush();
+        verify(mTracker, times(2)).track(mCaptor.capture());
+        Map<String, TrackMe> tracked = byCategory(mCaptor.getAllValues());
+        TrackMe list = tracked.get("List");
+        assertEquals("Scrolled past", list.get(QueryParams.EVENT_ACTION));
+        assertEquals("item", list.get(QueryParams.EVENT_NAME));
+        assertEquals(101f, Float.parseFloat(list.get(QueryParams.EVENT_VALUE)), 0f);
+        TrackMe button = tracked.get("Button");
+        assertNull(button.get(QueryParams.EVENT_NAME));
+        assertEquals(3.5f, Float.parseFloat(button.get(QueryParams.EVENT_VALUE)), 0f);
+
+        // A new window
+        assertEquals(0, counter.getPendingCount());
+        counter.flush();
+        verify(mTracker, times(2)).track(any(TrackMe.class));
+    }
+
+    @Test
+    public void testLargeTotal() {
+        EventCounter counter = new EventCounter(mTracker, EventCounter.DEFAULT_WINDOW, null);
+        counter.add("Bytes", "Downloaded", null, 1e300);
+        counter.flush();
+        verify(mTracker).track(mCaptor.capture());
+        assertEquals(Float.MAX_VALUE, Float.parseFloat(mCaptor.getValue().get(QueryParams.EVENT_VALUE)), 0f);
+    }
+
+    @Test
+    public void testNamesKeptApart() {
+        EventCounter counter = new EventCounter(mTracker, EventCounter.DEFAULT_WINDOW, null);
+        counter.count("Category", "Action", "a");
+        counter.count("Category", "Action", "b");
+        counter.count("Category", "Action", null);
+        counter.count("Category", "Other", "a");
+        assertEquals(4, counter.getPendingCount());
+    }
+
+    @Test
+    public void testGrowth() {
+        EventCounter counter = new EventCounter(mTracker, EventCounter.DEFAULT_WINDOW, null);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 1000; i++) counter.count("Category", "Action", "name" + i);
+        }
+        assertEquals(1000, counter.getPendingCount());
+
+        counter.flush();
+        verify(mTracker, times(1000)).track(mCaptor.capture());
+        for (TrackMe trackMe : mCaptor.getAllValues()) {
+            assertEquals(3f, Float.parseFloat(trackMe.get(QueryParams.EVENT_VALUE)), 0f);
+        }
+    }
+
+    @Test
+    public void testWindow() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            EventCounter counter = new EventCounter(mTracker, 100, new DispatchScheduler(executor));
+            counter.count("Category", "Action", null);
+            counter.count("Category", "Action", null);
+            verify(mTracker, timeout(1000)).track(mCaptor.capture());
+            assertEquals(2f, Float.parseFloat(mCaptor.getValue().get(QueryParams.EVENT_VALUE)), 0f);
+
+            counter.count("Category", "Action", null);
+            verify(mTracker, timeout(1000).times(2)).track(any(TrackMe.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Map<String, TrackMe> byCategory(List<TrackMe> trackMes) {
+        Map<String, TrackMe> map = new HashMap<>();
+        for (TrackMe trackMe : trackMes) map.put(trackMe.get(QueryParams.EVENT_CATEGORY), trackMe);
+        return map;
+    }
+}
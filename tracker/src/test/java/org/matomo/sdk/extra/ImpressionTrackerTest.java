@@ -0,0 +1,189 @@
+package org.matomo.sdk.extra;
+
+import android.app.Activity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+import org.junit.Test;
+import org.matomo.sdk.QueryParams;
+import org.matomo.sdk.TrackMe;
+import org.matomo.sdk.Tracker;
+import org.matomo.sdk.dispatcher.DispatchScheduler;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.Robolectric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import testhelpers.DefaultTestCase;
+import testhelpers.TestActivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
+
+public class ImpressionTrackerTest extends DefaultTestCase {
+    Tracker mTracker = mock(Tracker.class);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<TrackMe>> mCaptor = ArgumentCaptor.forClass(List.class);
+    ImpressionTracker.ContentMapper mMapper = child -> (ImpressionTracker.Content) child.getTag();
+
+    private List<TrackMe> tracked() {
+        // A fresh captor, a reused one would capture earlier batches again on every verification
+        @SuppressWarnings("unchecked") ArgumentCaptor<List<TrackMe>> captor = ArgumentCaptor.forClass(List.class);
+        verify(mTracker, atLeastOnce()).trackAll(captor.capture());
+        List<TrackMe> tracked = new ArrayList<>();
+        for (List<TrackMe> batch : captor.getAllValues()) tracked.addAll(batch);
+        return tracked;
+    }
+
+    @Test
+    public void testBatching() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        impressions.onVisible(new ImpressionTracker.Content("Ad", "banner.png", "https://example.com"));
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        verify(mTracker, never()).trackAll(anyList());
+
+        impressions.flush();
+        // One call for the whole window
+        verify(mTracker, times(1)).trackAll(mCaptor.capture());
+        verify(mTracker, never()).track(any(TrackMe.class));
+        List<TrackMe> tracked = mCaptor.getValue();
+        assertEquals(2, tracked.size());
+        assertEquals("Ad", tracked.get(0).get(QueryParams.CONTENT_NAME));
+        assertEquals("banner.png", tracked.get(0).get(QueryParams.CONTENT_PIECE));
+        assertEquals("https://example.com", tracked.get(0).get(QueryParams.CONTENT_TARGET));
+        assertEquals("Article", tracked.get(1).get(QueryParams.CONTENT_NAME));
+        assertEquals("1", tracked.get(1).get(QueryParams.CONTENT_PIECE));
+    }
+
+    @Test
+    public void testSeenOnce() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        for (int i = 0; i < 10; i++) impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        impressions.flush();
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        impressions.flush();
+        assertEquals(1, tracked().size());
+
+        impressions.reset();
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        impressions.flush();
+        assertEquals(2, tracked().size());
+    }
+
+    @Test
+    public void testContentEquality() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", "https://example.com"));
+        impressions.onVisible(new ImpressionTracker.Content("Article", null, "1"));
+        impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+        impressions.flush();
+        assertEquals(3, tracked().size());
+    }
+
+    @Test
+    public void testSeenSetBounded() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        int items = ImpressionTracker.SEEN_CAPACITY + 10;
+        for (int i = 0; i < items; i++) impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+        impressions.flush();
+        assertEquals(items, tracked().size());
+
+        // The last SEEN_CAPACITY items are still known
+        for (int i = 10; i < items; i++) impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+        impressions.flush();
+        assertEquals(items, tracked().size());
+
+        // The least recently seen were evicted and count as new
+        impressions.onVisible(new ImpressionTracker.Content("Article", "0", null));
+        impressions.flush();
+        assertEquals(items + 1, tracked().size());
+    }
+
+    @Test
+    public void testSeenSetChurn() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        int items = ImpressionTracker.SEEN_CAPACITY * 10;
+        for (int i = 0; i < items; i++) impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+        impressions.flush();
+        assertEquals(items, tracked().size());
+
+        // Evicting many items must not lose track of the ones that are still known
+        for (int i = items - ImpressionTracker.SEEN_CAPACITY; i < items; i++) impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+        impressions.flush();
+        assertEquals(items, tracked().size());
+    }
+
+    @Test
+    public void testVisibleItemNotEvicted() {
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        ImpressionTracker.Content onScreen = new ImpressionTracker.Content("Header", null, null);
+        impressions.onVisible(onScreen);
+        // Stays on screen while many other items scroll by
+        for (int i = 0; i < ImpressionTracker.SEEN_CAPACITY * 2; i++) {
+            impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+            impressions.onVisible(onScreen);
+        }
+        impressions.flush();
+        int headers = 0;
+        for (TrackMe trackMe : tracked()) if ("Header".equals(trackMe.get(QueryParams.CONTENT_NAME))) headers++;
+        assertEquals(1, headers);
+    }
+
+    @Test
+    public void testWindow() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, 100, new DispatchScheduler(executor));
+            impressions.onVisible(new ImpressionTracker.Content("Article", "1", null));
+            verify(mTracker, timeout(1000)).trackAll(anyList());
+
+            // A full batch doesn't wait for the window
+            impressions = new ImpressionTracker(mTracker, mMapper, 60 * 1000, new DispatchScheduler(executor));
+            for (int i = 0; i < ImpressionTracker.MAX_PENDING; i++) impressions.onVisible(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+            verify(mTracker, timeout(1000).times(2)).trackAll(mCaptor.capture());
+            assertEquals(ImpressionTracker.MAX_PENDING, mCaptor.getValue().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVisibility() {
+        Activity activity = Robolectric.buildActivity(TestActivity.class).create().start().resume().visible().get();
+        LinearLayout container = new LinearLayout(activity);
+        container.setOrientation(LinearLayout.VERTICAL);
+        for (int i = 0; i < 20; i++) {
+            View child = new View(activity);
+            child.setTag(new ImpressionTracker.Content("Article", String.valueOf(i), null));
+            container.addView(child, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 100));
+        }
+        activity.setContentView(container);
+        shadowOf(activity.getMainLooper()).idle();
+
+        ImpressionTracker impressions = new ImpressionTracker(mTracker, mMapper, ImpressionTracker.DEFAULT_WINDOW, null);
+        impressions.checkVisibility(container);
+        impressions.flush();
+        List<TrackMe> tracked = tracked();
+        // Only the items on screen, from the top
+        assertTrue(tracked.size() < 20);
+        for (int i = 0; i < tracked.size(); i++) assertEquals(String.valueOf(i), tracked.get(i).get(QueryParams.CONTENT_PIECE));
+
+        // Nothing new
+        impressions.checkVisibility(container);
+        impressions.flush();
+        verify(mTracker, times(1)).trackAll(anyList());
+    }
+}
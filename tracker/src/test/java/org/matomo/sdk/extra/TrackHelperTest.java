@@ -53,6 +53,7 @@ public class TrackHelperTest {
     public void setup() throws PackageManager.NameNotFoundException {
         MockitoAnnotations.initMocks(this);
         when(mTracker.getMatomo()).thenReturn(mMatomo);
+        when(mTracker.isInitialized()).thenReturn(true);
         when(mMatomo.getContext()).thenReturn(mContext);
         when(mContext.getPackageManager()).thenReturn(mPackageManager);
         when(mContext.getPackageName()).thenReturn("packageName");
@@ -500,7 +501,7 @@ public class TrackHelperTest {
         assertEquals(tracked.get(QueryParams.EVENT_VALUE), "1");
 
         verify(mTracker).setDispatchMode(DispatchMode.EXCEPTION);
-        verify(mTracker).dispatchBlocking();
+        verify(mTracker).dispatchBlocking(MatomoExceptionHandler.DEFAULT_DISPATCH_TIMEOUT);
 
         boolean exception = false;
         try {
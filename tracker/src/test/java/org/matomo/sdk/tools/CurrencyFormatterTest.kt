@@ -17,4 +17,15 @@ class CurrencyFormatterTest : BaseTest() {
         Assert.assertEquals("1747.20", CurrencyFormatter.priceString(174720))
         Assert.assertEquals("1234567.89", CurrencyFormatter.priceString(123456789))
     }
+
+    @Test
+    fun testCurrencyFormat_edgeCases() {
+        Assert.assertEquals("0.00", CurrencyFormatter.priceString(0))
+        Assert.assertEquals("0.10", CurrencyFormatter.priceString(10))
+        Assert.assertEquals("-0.05", CurrencyFormatter.priceString(-5))
+        Assert.assertEquals("-19.99", CurrencyFormatter.priceString(-1999))
+        Assert.assertEquals("21474836.47", CurrencyFormatter.priceString(Int.MAX_VALUE))
+        Assert.assertEquals("-21474836.48", CurrencyFormatter.priceString(Int.MIN_VALUE))
+        Assert.assertNull(CurrencyFormatter.priceString(null as Int?))
+    }
 }
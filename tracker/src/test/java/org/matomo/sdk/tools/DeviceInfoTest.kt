@@ -0,0 +1,110 @@
+package org.matomo.sdk.tools
+
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mock
+import org.mockito.Mockito
+import org.mockito.junit.MockitoJUnitRunner
+import testhelpers.BaseTest
+import java.util.concurrent.Executor
+
+@RunWith(MockitoJUnitRunner::class)
+class DeviceInfoTest : BaseTest() {
+    @Mock
+    lateinit var deviceHelper: DeviceHelper
+    private val tasks = ArrayList<Runnable>()
+    private val executor = Executor { tasks.add(it) }
+    private lateinit var deviceInfo: DeviceInfo
+
+    @Before
+    @Throws(Exception::class)
+    override fun setup() {
+        super.setup()
+        Mockito.`when`(deviceHelper.resolution).thenReturn(intArrayOf(480, 800))
+        Mockito.`when`(deviceHelper.userAgent).thenReturn("aUserAgent")
+        Mockito.`when`(deviceHelper.userLanguage).thenReturn("en")
+        deviceInfo = DeviceInfo(deviceHelper, executor)
+    }
+
+    @Test
+    fun testLazy() {
+        Assert.assertFalse(deviceInfo.isReady)
+        Mockito.verifyNoInteractions(deviceHelper)
+
+        Assert.assertEquals("480x800", deviceInfo.resolution)
+        Assert.assertEquals("en", deviceInfo.language)
+        Assert.assertEquals("aUserAgent", deviceInfo.userAgent)
+        Assert.assertTrue(deviceInfo.isReady)
+
+        deviceInfo.resolution
+        deviceInfo.userAgent
+        Mockito.verify(deviceHelper, Mockito.times(1)).resolution
+        Mockito.verify(deviceHelper, Mockito.times(1)).userAgent
+    }
+
+    @Test
+    fun testUnknownResolution() {
+        Mockito.`when`(deviceHelper.resolution).thenReturn(null)
+        Assert.assertEquals("unknown", deviceInfo.resolution)
+        Assert.assertEquals("en", deviceInfo.language)
+        Assert.assertEquals("aUserAgent", deviceInfo.userAgent)
+    }
+
+    @Test
+    fun testPrefetch() {
+        deviceInfo.prefetch()
+        deviceInfo.prefetch()
+        Assert.assertEquals(1, tasks.size)
+        Mockito.verifyNoInteractions(deviceHelper)
+
+        tasks.removeAt(0).run()
+        Assert.assertTrue(deviceInfo.isReady)
+        Mockito.verify(deviceHelper).resolution
+        Mockito.verify(deviceHelper).userAgent
+
+        // Nothing to do once cached
+        deviceInfo.prefetch()
+        Assert.assertTrue(tasks.isEmpty())
+    }
+
+    @Test
+    fun testInvalidate() {
+        Assert.assertEquals("480x800", deviceInfo.resolution)
+        val generation = deviceInfo.generation
+
+        Mockito.`when`(deviceHelper.resolution).thenReturn(intArrayOf(800, 480))
+        Mockito.`when`(deviceHelper.userLanguage).thenReturn("de")
+        deviceInfo.invalidate()
+        Assert.assertNotEquals(generation, deviceInfo.generation)
+        Assert.assertFalse(deviceInfo.isReady)
+        // Recomputed in the background
+        Assert.assertEquals(1, tasks.size)
+        tasks.removeAt(0).run()
+        Assert.assertTrue(deviceInfo.isReady)
+        Assert.assertEquals("800x480", deviceInfo.resolution)
+        Assert.assertEquals("de", deviceInfo.language)
+        // Fixed for the process
+        Mockito.verify(deviceHelper, Mockito.times(1)).userAgent
+    }
+
+    @Test
+    fun testWhenReady() {
+        Assert.assertNull(deviceInfo.cachedResolution)
+        var called = 0
+        deviceInfo.whenReady { called++ }
+        Assert.assertEquals(0, called)
+        Mockito.verifyNoInteractions(deviceHelper)
+
+        // Prefetch, then the callback
+        while (tasks.isNotEmpty()) tasks.removeAt(0).run()
+        Assert.assertEquals(1, called)
+        Assert.assertEquals("480x800", deviceInfo.cachedResolution)
+        Assert.assertEquals("aUserAgent", deviceInfo.cachedUserAgent)
+
+        deviceInfo.whenReady { called++ }
+        while (tasks.isNotEmpty()) tasks.removeAt(0).run()
+        Assert.assertEquals(2, called)
+    }
+}
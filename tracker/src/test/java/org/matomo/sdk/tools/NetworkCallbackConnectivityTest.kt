@@ -0,0 +1,101 @@
+package org.matomo.sdk.tools
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.NetworkCapabilities
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.robolectric.Shadows
+import org.robolectric.shadows.ShadowNetwork
+import org.robolectric.shadows.ShadowNetworkCapabilities
+import testhelpers.DefaultTestCase
+import java.util.concurrent.atomic.AtomicInteger
+
+class NetworkCallbackConnectivityTest : DefaultTestCase() {
+    private lateinit var context: Context
+    private lateinit var connectivityManager: ConnectivityManager
+
+    @Before
+    @Throws(Exception::class)
+    override fun setup() {
+        super.setup()
+        context = ApplicationProvider.getApplicationContext()
+        connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    }
+
+    @Test
+    fun testRegistersCallback() {
+        val connectivity = NetworkCallbackConnectivity(context)
+        Assert.assertTrue(Shadows.shadowOf(connectivityManager).networkCallbacks.contains(connectivity.mCallback))
+    }
+
+    @Test
+    fun testSharedCallback() {
+        val first = NetworkCallbackConnectivity(context)
+        val second = NetworkCallbackConnectivity(context)
+        Assert.assertSame(first.mCallback, second.mCallback)
+        Assert.assertEquals(1, Shadows.shadowOf(connectivityManager).networkCallbacks.size)
+
+        first.mCallback.onLost(ShadowNetwork.newInstance(42))
+        val changes = AtomicInteger(0)
+        first.setListener { changes.incrementAndGet() }
+        second.setListener { changes.incrementAndGet() }
+        first.mCallback.onCapabilitiesChanged(ShadowNetwork.newInstance(42), ShadowNetworkCapabilities.newInstance())
+        Assert.assertTrue(second.isConnected)
+        Assert.assertEquals(2, changes.get())
+    }
+
+    @Test
+    fun testStateFromCallbacks() {
+        val connectivity = NetworkCallbackConnectivity(context)
+        val network = ShadowNetwork.newInstance(42)
+
+        val wifi = ShadowNetworkCapabilities.newInstance()
+        Shadows.shadowOf(wifi).addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+        Shadows.shadowOf(wifi).addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+        connectivity.mCallback.onCapabilitiesChanged(network, wifi)
+        Assert.assertTrue(connectivity.isConnected)
+        Assert.assertTrue(connectivity.isValidated)
+        Assert.assertFalse(connectivity.isMetered)
+        Assert.assertEquals(Connectivity.Type.WIFI, connectivity.type)
+
+        val cellular = ShadowNetworkCapabilities.newInstance()
+        Shadows.shadowOf(cellular).addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+        connectivity.mCallback.onCapabilitiesChanged(network, cellular)
+        Assert.assertTrue(connectivity.isConnected)
+        Assert.assertTrue(connectivity.isMetered)
+        Assert.assertEquals(Connectivity.Type.MOBILE, connectivity.type)
+
+        connectivity.mCallback.onLost(network)
+        Assert.assertFalse(connectivity.isConnected)
+        Assert.assertFalse(connectivity.isValidated)
+        Assert.assertEquals(Connectivity.Type.NONE, connectivity.type)
+    }
+
+    @Test
+    fun testListener_onlyOnChange() {
+        val connectivity = NetworkCallbackConnectivity(context)
+        val network = ShadowNetwork.newInstance(42)
+        connectivity.mCallback.onLost(network)
+
+        val changes = AtomicInteger(0)
+        connectivity.setListener { changes.incrementAndGet() }
+
+        val wifi = ShadowNetworkCapabilities.newInstance()
+        Shadows.shadowOf(wifi).addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+        connectivity.mCallback.onCapabilitiesChanged(network, wifi)
+        Assert.assertEquals(1, changes.get())
+
+        connectivity.mCallback.onCapabilitiesChanged(network, wifi)
+        Assert.assertEquals(1, changes.get())
+
+        connectivity.mCallback.onLost(network)
+        Assert.assertEquals(2, changes.get())
+
+        connectivity.setListener(null)
+        connectivity.mCallback.onCapabilitiesChanged(network, wifi)
+        Assert.assertEquals(2, changes.get())
+    }
+}
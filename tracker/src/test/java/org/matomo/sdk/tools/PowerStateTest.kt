@@ -0,0 +1,68 @@
+package org.matomo.sdk.tools
+
+import android.content.Context
+import android.content.Intent
+import android.os.BatteryManager
+import android.os.Looper
+import android.os.PowerManager
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.robolectric.Shadows
+import testhelpers.DefaultTestCase
+import java.util.concurrent.atomic.AtomicInteger
+
+class PowerStateTest : DefaultTestCase() {
+    private lateinit var context: Context
+
+    @Before
+    @Throws(Exception::class)
+    override fun setup() {
+        super.setup()
+        context = ApplicationProvider.getApplicationContext()
+    }
+
+    @Test
+    fun testInitialState() {
+        context.sendStickyBroadcast(Intent(Intent.ACTION_BATTERY_CHANGED).putExtra(BatteryManager.EXTRA_PLUGGED, BatteryManager.BATTERY_PLUGGED_AC))
+        val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+        Shadows.shadowOf(powerManager).setIsPowerSaveMode(true)
+
+        val powerState = PowerState(context)
+        Assert.assertTrue(powerState.isCharging)
+        Assert.assertTrue(powerState.isPowerSaveMode)
+    }
+
+    @Test
+    fun testChargingBroadcasts() {
+        val powerState = PowerState(context)
+        Assert.assertFalse(powerState.isCharging)
+
+        val changes = AtomicInteger(0)
+        powerState.setListener { changes.incrementAndGet() }
+
+        context.sendBroadcast(Intent(Intent.ACTION_POWER_CONNECTED))
+        Shadows.shadowOf(Looper.getMainLooper()).idle()
+        Assert.assertTrue(powerState.isCharging)
+        Assert.assertEquals(1, changes.get())
+
+        context.sendBroadcast(Intent(Intent.ACTION_POWER_DISCONNECTED))
+        Shadows.shadowOf(Looper.getMainLooper()).idle()
+        Assert.assertFalse(powerState.isCharging)
+        Assert.assertEquals(2, changes.get())
+    }
+
+    @Test
+    fun testObserve() {
+        val powerState = PowerState(context)
+        val changes = AtomicInteger(0)
+        powerState.setListener { changes.incrementAndGet() }
+        powerState.observe()
+
+        // Notified although no value was requested
+        context.sendBroadcast(Intent(Intent.ACTION_POWER_CONNECTED))
+        Shadows.shadowOf(Looper.getMainLooper()).idle()
+        Assert.assertEquals(1, changes.get())
+    }
+}
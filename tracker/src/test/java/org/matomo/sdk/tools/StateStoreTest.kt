@@ -0,0 +1,265 @@
+package org.matomo.sdk.tools
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.test.core.app.ApplicationProvider
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import testhelpers.DefaultTestCase
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.Executor
+
+class StateStoreTest : DefaultTestCase() {
+    private lateinit var context: Context
+    private val tasks = ArrayList<Runnable>()
+    private val executor = Executor { tasks.add(it) }
+
+    @Before
+    @Throws(Exception::class)
+    override fun setup() {
+        super.setup()
+        context = ApplicationProvider.getApplicationContext()
+        StateStore.releaseAll()
+        storeFile().delete()
+    }
+
+    @After
+    @Throws(Exception::class)
+    override fun tearDown() {
+        StateStore.releaseAll()
+        super.tearDown()
+    }
+
+    private fun open(): StateStore = StateStore.open(context, NAME, executor)
+
+    private fun reopen(): StateStore {
+        runTasks()
+        StateStore.releaseAll()
+        return open()
+    }
+
+    private fun runTasks() {
+        while (tasks.isNotEmpty()) tasks.removeAt(0).run()
+    }
+
+    private fun storeFile() = File(File(context.filesDir, "matomo"), "$NAME.state")
+
+    @Test
+    fun testSameInstance() {
+        Assert.assertSame(StateStore.open(context, NAME), StateStore.open(context, NAME))
+        Assert.assertNotSame(StateStore.open(context, NAME), StateStore.open(context, "other"))
+    }
+
+    @Test
+    fun testPersistence() {
+        open().edit()
+            .putString("string", "value")
+            .putInt("int", 42)
+            .putLong("long", Long.MAX_VALUE)
+            .putFloat("float", 1.5f)
+            .putBoolean("boolean", true)
+            .putStringSet("set", setOf("a", "b"))
+            .apply()
+
+        val store = reopen()
+        Assert.assertEquals("value", store.getString("string", null))
+        Assert.assertEquals(42, store.getInt("int", 0))
+        Assert.assertEquals(Long.MAX_VALUE, store.getLong("long", 0))
+        Assert.assertEquals(1.5f, store.getFloat("float", 0f), 0f)
+        Assert.assertTrue(store.getBoolean("boolean", false))
+        Assert.assertEquals(setOf("a", "b"), store.getStringSet("set", null))
+        Assert.assertEquals(6, store.all.size)
+    }
+
+    @Test
+    fun testRemoveAndClear() {
+        open().edit().putString("a", "1").putString("b", "2").putString("c", "3").commit()
+        open().edit().remove("a").putString("b", null).commit()
+        var store = reopen()
+        Assert.assertFalse(store.contains("a"))
+        Assert.assertFalse(store.contains("b"))
+        Assert.assertEquals("3", store.getString("c", null))
+
+        store.edit().clear().putString("d", "4").commit()
+        store = reopen()
+        Assert.assertEquals(mapOf("d" to "4"), store.all)
+    }
+
+    @Test
+    fun testIncrementalWrites() {
+        val store = open()
+        store.edit().putLong("tracker.visitcount", 1).apply()
+        runTasks()
+        val size = store.logSize
+        store.edit().putLong("tracker.visitcount", 2).apply()
+        runTasks()
+        // Type, key length, key and value
+        Assert.assertEquals(size + 3 + "tracker.visitcount".length + 8, store.logSize)
+
+        // Unchanged values are not written again
+        store.edit().putLong("tracker.visitcount", 2).apply()
+        Assert.assertTrue(tasks.isEmpty())
+        Assert.assertEquals(size + 3 + "tracker.visitcount".length + 8, store.logSize)
+    }
+
+    @Test
+    fun testApplyInBackground() {
+        val store = open()
+        val size = store.logSize
+        store.edit().putString("a", "1").apply()
+        store.edit().putString("a", "2").putString("b", "3").apply()
+        // Readable right away, written later and only once
+        Assert.assertEquals("2", store.getString("a", null))
+        Assert.assertEquals(size, store.logSize)
+        Assert.assertEquals(1, tasks.size)
+
+        runTasks()
+        Assert.assertEquals(size + 2 * (3 + 1 + 4 + 1), store.logSize)
+        Assert.assertEquals(mapOf("a" to "2", "b" to "3"), reopen().all)
+    }
+
+    @Test
+    fun testFlushAll() {
+        val store = open()
+        val size = store.logSize
+        store.edit().putString("a", "1").apply()
+        StateStore.flushAll()
+        // Written without the scheduled task, which then finds nothing left to do
+        Assert.assertEquals(size + 3 + 1 + 4 + 1, store.logSize)
+        runTasks()
+        Assert.assertEquals(size + 3 + 1 + 4 + 1, store.logSize)
+        StateStore.releaseAll()
+        Assert.assertEquals("1", open().getString("a", null))
+    }
+
+    @Test
+    fun testCompaction() {
+        val store = open()
+        store.edit().putString("keep", "me").apply()
+        for (i in 0 until 10000) {
+            store.edit().putLong("tracker.previousvisit", i.toLong()).apply()
+            runTasks()
+        }
+        // Compacted instead of grown
+        Assert.assertEquals(4 * 1024L, storeFile().length())
+
+        val reopened = reopen()
+        Assert.assertEquals("me", reopened.getString("keep", null))
+        Assert.assertEquals(9999L, reopened.getLong("tracker.previousvisit", -1))
+    }
+
+    @Test
+    fun testCompactionInBackground() {
+        val store = open()
+        var i = 0L
+        // Scheduled once the log is three quarters full
+        while (tasks.isEmpty()) store.edit().putLong("tracker.previousvisit", i++).commit()
+        val size = store.logSize
+        Assert.assertTrue(size >= 3 * 1024)
+
+        runTasks()
+        Assert.assertTrue(store.logSize < size)
+        Assert.assertEquals(4 * 1024L, storeFile().length())
+        Assert.assertEquals(i - 1, reopen().getLong("tracker.previousvisit", -1))
+    }
+
+    @Test
+    fun testSharedBetweenProcesses() {
+        val first = open()
+        StateStore.releaseAll()
+        // A second instance on the same file, like in another process
+        val second = open()
+
+        first.edit().putString("a", "1").commit()
+        Assert.assertEquals("1", second.getString("a", null))
+        second.edit().putString("b", "2").commit()
+        Assert.assertEquals(mapOf("a" to "1", "b" to "2"), first.all)
+
+        // Not written yet, so it wins over the other process
+        first.edit().putString("c", "mine").apply()
+        second.edit().putString("c", "theirs").commit()
+        Assert.assertEquals("mine", first.getString("c", null))
+        runTasks()
+        Assert.assertEquals("mine", second.getString("c", null))
+
+        // The second one compacts, the first one notices the replaced log
+        var i = 0L
+        while (tasks.isEmpty()) second.edit().putLong("counter", i++).commit()
+        runTasks()
+        Assert.assertEquals(i - 1, first.getLong("counter", -1))
+        first.edit().putString("d", "4").commit()
+        Assert.assertEquals("4", second.getString("d", null))
+
+        val expected = mapOf("a" to "1", "b" to "2", "c" to "mine", "counter" to i - 1, "d" to "4")
+        Assert.assertEquals(expected, reopen().all)
+    }
+
+    @Test
+    fun testGrowsForLargeValues() {
+        val large = "x".repeat(10 * 1024)
+        open().edit().putString("large", large).putString("small", "value").apply()
+        val store = reopen()
+        Assert.assertEquals(large, store.getString("large", null))
+        Assert.assertEquals("value", store.getString("small", null))
+    }
+
+    @Test
+    fun testTruncatedLog() {
+        val store = open()
+        store.edit().putString("a", "1").commit()
+        val intact = store.logSize
+        store.edit().putString("b", "2").commit()
+        StateStore.releaseAll()
+        // As if the process died while "b" was written
+        RandomAccessFile(storeFile(), "rw").use { it.setLength(intact + 3L) }
+
+        val reopened = reopen()
+        Assert.assertEquals("1", reopened.getString("a", null))
+        Assert.assertFalse(reopened.contains("b"))
+
+        reopened.edit().putString("c", "3").commit()
+        Assert.assertEquals(mapOf("a" to "1", "c" to "3"), reopen().all)
+    }
+
+    @Test
+    fun testImport() {
+        val legacy = context.getSharedPreferences(NAME, Context.MODE_PRIVATE)
+        legacy.edit().putString("tracker.visitorid", "0123456789abcdef").putLong("tracker.visitcount", 3).putBoolean("downloaded:pkg:1", true).commit()
+        val legacyFile = File(File(context.filesDir.parentFile, "shared_prefs"), "$NAME.xml")
+        Assert.assertTrue(legacyFile.exists())
+
+        var store = open()
+        Assert.assertEquals("0123456789abcdef", store.getString("tracker.visitorid", null))
+        Assert.assertEquals(3L, store.getLong("tracker.visitcount", 0))
+        Assert.assertTrue(store.getBoolean("downloaded:pkg:1", false))
+        Assert.assertFalse(legacyFile.exists())
+
+        // Only once
+        store.edit().putLong("tracker.visitcount", 4).commit()
+        store = reopen()
+        Assert.assertEquals(4L, store.getLong("tracker.visitcount", 0))
+    }
+
+    @Test
+    fun testListener() {
+        val store = open()
+        val changed = ArrayList<String>()
+        val listener = SharedPreferences.OnSharedPreferenceChangeListener { _, key -> changed.add(key!!) }
+        store.registerOnSharedPreferenceChangeListener(listener)
+        store.edit().putString("a", "1").putString("b", "2").apply()
+        store.edit().putString("a", "1").apply()
+        store.edit().remove("b").apply()
+        Assert.assertEquals(listOf("a", "b", "b"), changed)
+
+        store.unregisterOnSharedPreferenceChangeListener(listener)
+        store.edit().putString("a", "2").apply()
+        Assert.assertEquals(3, changed.size)
+    }
+
+    companion object {
+        private const val NAME = "org.matomo.sdk_test"
+    }
+}
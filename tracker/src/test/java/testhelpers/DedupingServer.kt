@@ -0,0 +1,62 @@
+package testhelpers
+
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.RecordedRequest
+import org.json.JSONObject
+import org.matomo.sdk.dispatcher.DefaultPacketSender
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Stand-in for a tracking endpoint that drops packets whose batch id it has already stored.
+ *
+ * Use as [okhttp3.mockwebserver.MockWebServer.dispatcher].
+ */
+class DedupingServer @JvmOverloads constructor(
+    private val header: String = DefaultPacketSender.BATCH_ID_HEADER,
+    private val parameter: String? = null
+) : Dispatcher() {
+    private val batchIds = Collections.synchronizedSet(HashSet<String>())
+    private val ingested = AtomicInteger()
+    private val duplicates = AtomicInteger()
+
+    /**
+     * Number of upcoming requests that are stored, but answered only after this many milliseconds, e.g. to outlast the client's timeout.
+     */
+    @Volatile
+    var stallFor = 0L
+
+    @Volatile
+    var stallCount = 0
+
+    /**
+     * @return events stored, without duplicates
+     */
+    val ingestedEvents: Int
+        get() = ingested.get()
+
+    /**
+     * @return packets that were recognized as retries and dropped
+     */
+    val duplicatePackets: Int
+        get() = duplicates.get()
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+        val batchId = (if (parameter != null) request.requestUrl?.queryParameter(parameter) else null) ?: request.getHeader(header)
+        if (batchId != null && !batchIds.add(batchId)) {
+            duplicates.incrementAndGet()
+            return MockResponse()
+        }
+        val body = request.body.readUtf8()
+        ingested.addAndGet(if (body.isEmpty()) 1 else JSONObject(body).getJSONArray("requests").length())
+
+        synchronized(this) {
+            if (stallCount > 0) {
+                stallCount--
+                TestHelper.sleep(stallFor)
+            }
+        }
+        return MockResponse()
+    }
+}
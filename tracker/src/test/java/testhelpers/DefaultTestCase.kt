@@ -12,11 +12,12 @@ import org.robolectric.annotation.Config
 abstract class DefaultTestCase : BaseTest() {
     fun createTracker(): Tracker {
         val app = ApplicationProvider.getApplicationContext<MatomoTestApplication>()
-        val tracker = app.onCreateTrackerConfig().build(getInstance(ApplicationProvider.getApplicationContext()))
+        val tracker = app.onCreateTrackerConfig().build(matomo)
         tracker.preferences.edit().clear().apply()
         return tracker
     }
 
+    // With the device info cached, events are submitted right away instead of once it was queried in the background
     val matomo: Matomo
-        get() = getInstance(ApplicationProvider.getApplicationContext())
+        get() = getInstance(ApplicationProvider.getApplicationContext()).also { it.deviceInfo.load() }
 }
@@ -0,0 +1,234 @@
+package testhelpers
+
+import android.content.Context
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.json.JSONObject
+import org.matomo.sdk.Matomo
+import org.matomo.sdk.TrackMe
+import org.matomo.sdk.Tracker
+import org.matomo.sdk.TrackerBuilder
+import org.matomo.sdk.dispatcher.DefaultDispatcher
+import org.matomo.sdk.dispatcher.DefaultPacketSender
+import org.matomo.sdk.dispatcher.DispatchScheduler
+import org.matomo.sdk.dispatcher.DispatcherFactory
+import org.matomo.sdk.dispatcher.EventCache
+import org.matomo.sdk.dispatcher.EventDiskCache
+import org.matomo.sdk.dispatcher.Histogram
+import org.matomo.sdk.dispatcher.PacketFactory
+import org.matomo.sdk.tools.Connectivity
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * Drives [Tracker.track] from several threads through the real dispatch pipeline against a local stand-in server,
+ * and reports how many events arrived, how fast and how late.
+ *
+ * Every event carries a unique [EVENT_ID] parameter, so the server can tell lost and duplicated events apart.
+ */
+class LoadHarness(private val matomo: Matomo) {
+
+    class Config {
+        var threads = 4
+        var eventsPerThread = 250
+
+        // Server behavior
+        var serverLatency = 0L
+        var errorRate = 0.0
+
+        // Share of requests that the server stores, but answers only after the client's timeout
+        var stallRate = 0.0
+
+        // Whether the server drops packets with a batch id it has already stored
+        var dedupeBatches = true
+
+        // Connectivity goes on and off every this many milliseconds, 0 to stay online
+        var flapInterval = 0L
+
+        var dispatchInterval = 100L
+        var connectionTimeout = 500
+
+        // Give up waiting for the delivery of all events after this many milliseconds
+        var deliveryTimeout = 30 * 1000L
+        var seed = 42L
+    }
+
+    class Report(
+        val eventsTracked: Int,
+        val eventsDelivered: Int,
+        val eventsLost: Int,
+        val eventsDuplicated: Int,
+        val eventsPerSecond: Double,
+        val latency: Histogram.Snapshot,
+        val requests: Int,
+        val peakHeap: Long
+    ) {
+        override fun toString(): String = "LoadHarness.Report(" +
+                "tracked=$eventsTracked, delivered=$eventsDelivered, lost=$eventsLost, duplicated=$eventsDuplicated, " +
+                "throughput=${"%.0f".format(eventsPerSecond)}/s, latency p50=${latency.getPercentile(50.0)}ms " +
+                "p99=${latency.getPercentile(99.0)}ms max=${latency.max}ms, requests=$requests, peakHeap=${peakHeap / 1024}KB)"
+    }
+
+    private class FlappingConnectivity(context: Context) : Connectivity(context) {
+        @Volatile
+        var connected = true
+            set(value) {
+                field = value
+                listener?.onConnectivityChanged(this)
+            }
+
+        @Volatile
+        private var listener: Listener? = null
+
+        override fun isConnected(): Boolean = connected
+
+        override fun getType(): Type = if (connected) Type.WIFI else Type.NONE
+
+        override fun isMetered(): Boolean = false
+
+        override fun setListener(listener: Listener?) {
+            this.listener = listener
+        }
+    }
+
+    private class LoadServer(private val config: Config) : Dispatcher() {
+        private val random = Random(config.seed)
+        private val batchIds = Collections.synchronizedSet(HashSet<String>())
+        val trackedAt = ConcurrentHashMap<Long, Long>()
+        val deliveries = ConcurrentHashMap<Long, AtomicInteger>()
+        val latency = Histogram()
+        val requests = AtomicInteger()
+        val lastDelivery = AtomicLong()
+
+        override fun dispatch(request: RecordedRequest): MockResponse {
+            requests.incrementAndGet()
+            if (config.serverLatency > 0) TestHelper.sleep(config.serverLatency)
+            val (error, stall) = synchronized(random) { Pair(random.nextDouble() < config.errorRate, random.nextDouble() < config.stallRate) }
+            if (error) return MockResponse().setResponseCode(500)
+
+            val batchId = request.getHeader(DefaultPacketSender.BATCH_ID_HEADER)
+            if (config.dedupeBatches && batchId != null && !batchIds.add(batchId)) return MockResponse()
+
+            val body = request.body.readUtf8()
+            val queries = if (body.isEmpty()) listOf(request.path ?: "") else {
+                val requests = JSONObject(body).getJSONArray("requests")
+                List(requests.length()) { requests.getString(it) }
+            }
+            val now = System.nanoTime()
+            for (query in queries) {
+                val id = EVENT_ID_PATTERN.find(query)?.groupValues?.get(1)?.toLong() ?: continue
+                deliveries.computeIfAbsent(id) { AtomicInteger() }.incrementAndGet()
+                trackedAt[id]?.let { latency.record(TimeUnit.NANOSECONDS.toMillis(now - it)) }
+            }
+            lastDelivery.set(now)
+            // Stored, but the client gives up before it sees the response
+            if (stall) TestHelper.sleep(config.connectionTimeout * 2L)
+            return MockResponse()
+        }
+    }
+
+    fun run(config: Config): Report {
+        val server = LoadServer(config)
+        val webServer = MockWebServer()
+        webServer.dispatcher = server
+        webServer.start()
+
+        val executor = ScheduledThreadPoolExecutor(2)
+        val connectivity = FlappingConnectivity(matomo.context)
+        val dispatchers = Collections.synchronizedList(ArrayList<DefaultDispatcher>())
+        val previousFactory = matomo.dispatcherFactory
+        matomo.dispatcherFactory = object : DispatcherFactory {
+            override fun build(tracker: Tracker) = DefaultDispatcher(
+                EventCache(EventDiskCache(tracker)),
+                connectivity,
+                PacketFactory(tracker.apiUrl),
+                DefaultPacketSender(),
+                null,
+                DispatchScheduler(executor)
+            ).also { dispatchers.add(it) }
+        }
+
+        val done = AtomicBoolean()
+        val peakHeap = AtomicLong()
+        val heapSampler = thread(name = "LoadHarness-heap") {
+            val runtime = Runtime.getRuntime()
+            while (!done.get()) {
+                peakHeap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory()) { a, b -> maxOf(a, b) }
+                TestHelper.sleep(10)
+            }
+        }
+        val flapper = if (config.flapInterval <= 0) null else thread(name = "LoadHarness-flapper") {
+            while (!done.get()) {
+                TestHelper.sleep(config.flapInterval)
+                connectivity.connected = !connectivity.connected
+            }
+            connectivity.connected = true
+        }
+
+        try {
+            val tracker = TrackerBuilder(webServer.url("/matomo.php").toString(), 1, "LoadHarness-" + System.nanoTime()).build(matomo)
+            tracker.setDispatchInterval(config.dispatchInterval)
+            tracker.setDispatchTimeout(config.connectionTimeout)
+
+            val total = config.threads * config.eventsPerThread
+            val nextId = AtomicLong()
+            val start = System.nanoTime()
+            val finished = CountDownLatch(config.threads)
+            repeat(config.threads) {
+                thread(name = "LoadHarness-track-$it") {
+                    repeat(config.eventsPerThread) {
+                        val id = nextId.incrementAndGet()
+                        server.trackedAt[id] = System.nanoTime()
+                        tracker.track(TrackMe().set(EVENT_ID, id.toString()))
+                    }
+                    finished.countDown()
+                }
+            }
+            finished.await()
+
+            val deadline = System.currentTimeMillis() + config.deliveryTimeout
+            while (server.deliveries.size < total && System.currentTimeMillis() < deadline) {
+                tracker.dispatch()
+                TestHelper.sleep(50)
+            }
+            done.set(true)
+            flapper?.join()
+            heapSampler.join()
+
+            val delivered = server.deliveries.size
+            val duplicated = server.deliveries.values.sumOf { maxOf(0, it.get() - 1) }
+            val elapsed = TimeUnit.NANOSECONDS.toMillis(maxOf(server.lastDelivery.get(), start) - start).coerceAtLeast(1)
+            return Report(
+                eventsTracked = total,
+                eventsDelivered = delivered,
+                eventsLost = total - delivered,
+                eventsDuplicated = duplicated,
+                eventsPerSecond = delivered * 1000.0 / elapsed,
+                latency = server.latency.snapshot(),
+                requests = server.requests.get(),
+                peakHeap = peakHeap.get()
+            )
+        } finally {
+            done.set(true)
+            for (dispatcher in dispatchers) dispatcher.shutdown()
+            matomo.dispatcherFactory = previousFactory
+            executor.shutdownNow()
+            webServer.close()
+        }
+    }
+
+    companion object {
+        const val EVENT_ID = "load_id"
+        private val EVENT_ID_PATTERN = Regex("[?&]$EVENT_ID=(\\d+)")
+    }
+}